@@ -15,6 +15,7 @@ import jakarta.persistence.*;
 @EqualsAndHashCode(callSuper = true)
 @Entity
 @Table(name = "iot_device_credential")
+@EntityListeners(DeviceCredentialListener.class)
 public class DeviceCredential extends JpaBaseEntity {
     private static final long serialVersionUID = 1L;
 
@@ -57,4 +58,4 @@ public class DeviceCredential extends JpaBaseEntity {
     @OneToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "device_id", referencedColumnName = "id", insertable = false, updatable = false)
     private Device device;
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,62 @@
+package com.baccano.iot.auth.entity;
+
+import com.baccano.iot.auth.service.DeviceCredentialSyncService;
+import jakarta.annotation.Resource;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 设备凭证实体监听器，凭证变更后同步到Redis
+ * <p>
+ * 在事务提交后再同步，回滚的变更不会被设备接入服务看到。同步失败只记录日志，
+ * 由设备接入服务的缓存过期和认证服务启动时的全量同步兜底。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class DeviceCredentialListener {
+    /**
+     * 设备凭证同步服务，延迟注入，避免与EntityManagerFactory循环依赖
+     */
+    @Lazy
+    @Resource
+    private DeviceCredentialSyncService deviceCredentialSyncService;
+
+    @PostPersist
+    @PostUpdate
+    public void onSave(DeviceCredential credential) {
+        afterCommit(() -> deviceCredentialSyncService.publish(credential));
+    }
+
+    @PostRemove
+    public void onRemove(DeviceCredential credential) {
+        afterCommit(() -> deviceCredentialSyncService.remove(credential));
+    }
+
+    private void afterCommit(Runnable task) {
+        Runnable safeTask = () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("设备凭证同步失败: error={}", e.getMessage(), e);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    safeTask.run();
+                }
+            });
+        } else {
+            safeTask.run();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.baccano.iot.auth.repository;
+
+import com.baccano.iot.auth.entity.DeviceCredential;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * 设备凭证Repository
+ *
+ * @author baccano-iot
+ */
+@Repository
+public interface DeviceCredentialRepository extends JpaRepository<DeviceCredential, String> {
+}
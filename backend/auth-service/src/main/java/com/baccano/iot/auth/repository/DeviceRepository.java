@@ -0,0 +1,14 @@
+package com.baccano.iot.auth.repository;
+
+import com.baccano.iot.auth.entity.Device;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * 设备Repository
+ *
+ * @author baccano-iot
+ */
+@Repository
+public interface DeviceRepository extends JpaRepository<Device, String> {
+}
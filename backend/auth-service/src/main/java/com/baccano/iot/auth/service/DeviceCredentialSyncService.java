@@ -0,0 +1,34 @@
+package com.baccano.iot.auth.service;
+
+import com.baccano.iot.auth.entity.DeviceCredential;
+
+/**
+ * 设备凭证同步服务接口
+ * <p>
+ * 把设备凭证的摘要写入Redis并发布变更通知，设备接入服务（device-connect）据此在本地缓存中校验设备凭证，
+ * CONNECT时不需要同步调用认证服务。
+ *
+ * @author baccano-iot
+ */
+public interface DeviceCredentialSyncService {
+    /**
+     * 同步一条设备凭证（新增、修改、禁用），已逻辑删除的凭证从Redis中移除
+     *
+     * @param credential 设备凭证
+     */
+    void publish(DeviceCredential credential);
+
+    /**
+     * 从Redis中移除一条设备凭证
+     *
+     * @param credential 设备凭证
+     */
+    void remove(DeviceCredential credential);
+
+    /**
+     * 全量同步所有设备凭证
+     *
+     * @return 发生变更（写入或删除）的凭证数
+     */
+    int syncAll();
+}
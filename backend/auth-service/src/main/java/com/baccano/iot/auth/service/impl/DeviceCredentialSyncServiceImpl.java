@@ -0,0 +1,182 @@
+package com.baccano.iot.auth.service.impl;
+
+import com.baccano.iot.auth.entity.Device;
+import com.baccano.iot.auth.entity.DeviceCredential;
+import com.baccano.iot.auth.repository.DeviceCredentialRepository;
+import com.baccano.iot.auth.repository.DeviceRepository;
+import com.baccano.iot.auth.service.DeviceCredentialSyncService;
+import com.baccano.iot.common.utils.DigestUtils;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 设备凭证同步服务实现类
+ * <p>
+ * Redis中每个设备一个Hash {@code device:credential:{设备Key}}，字段为：
+ * t=凭证类型、h=凭证摘要（见 {@link DigestUtils#credentialDigest}）、s=凭证状态、e=过期时间（毫秒时间戳，0表示不过期）。
+ * 凭证内容只以摘要形式离开认证服务；有过期时间的凭证同时设置Key的过期时间。
+ * 凭证实际发生变更（写入的字段与Redis中不同，或删除了存在的Key）后向 {@code device:credential:events} 发布设备Key，
+ * 设备接入服务收到后丢弃本地缓存；内容未变的写入不改动Redis也不发通知，启动时的全量同步不会逐个失效所有节点的缓存。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Service
+public class DeviceCredentialSyncServiceImpl implements DeviceCredentialSyncService {
+    private static final String KEY_PREFIX = "device:credential:";
+
+    /**
+     * 凭证变更通知频道
+     */
+    private static final String EVENT_CHANNEL = "device:credential:events";
+
+    /**
+     * 写入凭证：字段与现有值完全相同时直接返回0；否则整体替换Hash，设置或清除过期时间，发布变更通知并返回1
+     */
+    private static final RedisScript<Long> PUT_SCRIPT = new DefaultRedisScript<>(
+            "local old = redis.call('HMGET', KEYS[1], 't', 'h', 's', 'e') "
+                    + "if old[1] == ARGV[1] and old[2] == ARGV[2] and old[3] == ARGV[3] and old[4] == ARGV[4] then "
+                    + "return 0 end "
+                    + "redis.call('DEL', KEYS[1]) "
+                    + "redis.call('HSET', KEYS[1], 't', ARGV[1], 'h', ARGV[2], 's', ARGV[3], 'e', ARGV[4]) "
+                    + "if tonumber(ARGV[4]) > 0 then redis.call('PEXPIREAT', KEYS[1], ARGV[4]) end "
+                    + "redis.call('PUBLISH', ARGV[5], ARGV[6]) "
+                    + "return 1",
+            Long.class);
+
+    /**
+     * 删除凭证，Key存在时发布变更通知并返回1，否则返回0
+     */
+    private static final RedisScript<Long> REMOVE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('DEL', KEYS[1]) == 0 then return 0 end "
+                    + "redis.call('PUBLISH', ARGV[1], ARGV[2]) "
+                    + "return 1",
+            Long.class);
+
+    /**
+     * 设备凭证Repository
+     */
+    @Resource
+    private DeviceCredentialRepository deviceCredentialRepository;
+
+    /**
+     * 设备Repository
+     */
+    @Resource
+    private DeviceRepository deviceRepository;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 启动时是否全量同步
+     */
+    @Value("${device.credential.syncOnStartup}")
+    private Boolean syncOnStartup;
+
+    /**
+     * 全量同步每页条数
+     */
+    @Value("${device.credential.syncPageSize}")
+    private Integer syncPageSize;
+
+    /**
+     * 启动时全量同步一次，修复停机期间遗漏的变更
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!syncOnStartup) {
+            return;
+        }
+        try {
+            int changed = syncAll();
+            log.info("设备凭证全量同步完成: changed={}", changed);
+        } catch (Exception e) {
+            log.error("设备凭证全量同步失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void publish(DeviceCredential credential) {
+        Device device = deviceRepository.findById(credential.getDeviceId()).orElse(null);
+        if (device == null) {
+            log.warn("设备凭证同步失败: 设备不存在, deviceId={}", credential.getDeviceId());
+            return;
+        }
+        write(device.getDeviceKey(), credential);
+    }
+
+    @Override
+    public void remove(DeviceCredential credential) {
+        Device device = deviceRepository.findById(credential.getDeviceId()).orElse(null);
+        if (device == null) {
+            log.warn("设备凭证移除失败: 设备不存在, deviceId={}", credential.getDeviceId());
+            return;
+        }
+        stringRedisTemplate.execute(REMOVE_SCRIPT, List.of(KEY_PREFIX + device.getDeviceKey()),
+                EVENT_CHANNEL, device.getDeviceKey());
+        log.debug("设备凭证已移除: deviceKey={}", device.getDeviceKey());
+    }
+
+    @Override
+    public int syncAll() {
+        int changed = 0;
+        Page<DeviceCredential> page = deviceCredentialRepository.findAll(PageRequest.of(0, syncPageSize));
+        while (true) {
+            List<String> deviceIds = page.getContent().stream().map(DeviceCredential::getDeviceId).toList();
+            Map<String, String> deviceKeys = deviceRepository.findAllById(deviceIds).stream()
+                    .collect(Collectors.toMap(Device::getId, Device::getDeviceKey, (a, b) -> a));
+            for (DeviceCredential credential : page.getContent()) {
+                String deviceKey = deviceKeys.get(credential.getDeviceId());
+                if (deviceKey != null && write(deviceKey, credential)) {
+                    changed++;
+                }
+            }
+            if (!page.hasNext()) {
+                return changed;
+            }
+            page = deviceCredentialRepository.findAll(page.nextPageable());
+        }
+    }
+
+    /**
+     * 写入或删除设备凭证
+     *
+     * @return Redis中的凭证是否发生了变更
+     */
+    private boolean write(String deviceKey, DeviceCredential credential) {
+        String key = KEY_PREFIX + deviceKey;
+        if (credential.getDeleted() != null && credential.getDeleted() == 1) {
+            Long removed = stringRedisTemplate.execute(REMOVE_SCRIPT, List.of(key), EVENT_CHANNEL, deviceKey);
+            return removed != null && removed == 1;
+        }
+        long expireAt = credential.getExpireTime() != null
+                ? credential.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                : 0;
+        Long written = stringRedisTemplate.execute(PUT_SCRIPT, List.of(key),
+                String.valueOf(credential.getType()),
+                DigestUtils.credentialDigest(deviceKey, credential.getContent()),
+                String.valueOf(credential.getStatus()),
+                String.valueOf(expireAt),
+                EVENT_CHANNEL, deviceKey);
+        if (written == null || written == 0) {
+            return false;
+        }
+        log.debug("设备凭证已同步: deviceKey={}, type={}, status={}", deviceKey, credential.getType(), credential.getStatus());
+        return true;
+    }
+}
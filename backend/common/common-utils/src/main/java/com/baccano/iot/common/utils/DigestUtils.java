@@ -0,0 +1,51 @@
+package com.baccano.iot.common.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * 摘要工具类
+ *
+ * @author baccano-iot
+ */
+public class DigestUtils {
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * 计算SHA-256摘要
+     *
+     * @param value 原文（UTF-8编码）
+     * @return 摘要
+     */
+    public static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // 所有JDK都必须提供SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 计算SHA-256摘要并转为小写十六进制字符串
+     *
+     * @param value 原文（UTF-8编码）
+     * @return 十六进制摘要
+     */
+    public static String sha256Hex(String value) {
+        return HEX.formatHex(sha256(value));
+    }
+
+    /**
+     * 设备凭证摘要：以设备Key为盐计算凭证内容的SHA-256，凭证同步和校验两侧必须使用同一算法
+     *
+     * @param deviceKey 设备Key
+     * @param content   凭证内容（密钥、证书ID或Token）
+     * @return 十六进制摘要
+     */
+    public static String credentialDigest(String deviceKey, String content) {
+        return sha256Hex(deviceKey + ':' + content);
+    }
+}
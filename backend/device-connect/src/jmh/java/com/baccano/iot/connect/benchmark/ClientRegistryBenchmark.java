@@ -0,0 +1,108 @@
+package com.baccano.iot.connect.benchmark;
+
+import com.baccano.iot.connect.mqtt.qos.InflightWindow;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接注册表的连接/断开吞吐
+ * <p>
+ * 每个线程循环使用自己的一组Channel，每次操作完成一次注册和一次注销，模拟多个工作线程上的连接风暴。
+ * 对照组是原先 {@code deviceTopicMap} 的做法（按Channel短ID存放的HashMap），加上保证正确性所需的最小同步。
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="ClientRegistryBenchmark"
+ * </pre>
+ *
+ * @author baccano-iot
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientRegistryBenchmark {
+    /**
+     * 每个线程使用的Channel数
+     */
+    @Param({"1024"})
+    private int connectionsPerThread;
+
+    private ClientRegistry registry;
+    private Map<String, String> synchronizedMap;
+    private final AtomicInteger threadIds = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        registry = new ClientRegistry();
+        synchronizedMap = Collections.synchronizedMap(new HashMap<>());
+    }
+
+    @State(Scope.Thread)
+    public static class Connections {
+        private ClientConnection[] connections;
+        private int next;
+
+        @Setup
+        public void setup(ClientRegistryBenchmark benchmark) {
+            int threadId = benchmark.threadIds.getAndIncrement();
+            connections = new ClientConnection[benchmark.connectionsPerThread];
+            for (int i = 0; i < connections.length; i++) {
+                String deviceKey = "device-" + threadId + "-" + i;
+                connections[i] = new ClientConnection(new EmbeddedChannel(), deviceKey, deviceKey, 4, false,
+                        new InflightWindow(16, 16), null);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            for (ClientConnection connection : connections) {
+                connection.getChannel().close();
+            }
+        }
+
+        private ClientConnection next() {
+            ClientConnection connection = connections[next];
+            next = next + 1 == connections.length ? 0 : next + 1;
+            return connection;
+        }
+    }
+
+    @Benchmark
+    public ClientConnection registry(Connections connections) {
+        ClientConnection connection = connections.next();
+        registry.register(connection);
+        return registry.unregister(connection.getChannel());
+    }
+
+    @Benchmark
+    public String synchronizedMap(Connections connections) {
+        ClientConnection connection = connections.next();
+        Channel channel = connection.getChannel();
+        synchronizedMap.put(channel.id().asShortText(), connection.getDeviceKey());
+        return synchronizedMap.remove(channel.id().asShortText());
+    }
+}
@@ -0,0 +1,83 @@
+package com.baccano.iot.connect.benchmark;
+
+import com.baccano.iot.connect.mqtt.MqttPackets;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 固定应答报文的编码开销
+ * <p>
+ * 对照组为构造 {@link MqttMessage} 交给 {@link MqttEncoder} 编码，现在的做法是 {@link MqttPackets}：
+ * PINGRESP写出共享只读报文的duplicate，PUBACK直接写4个字节。两组都经过带 {@link MqttEncoder} 的同一个管道。
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="ConstantPacketBenchmark -prof gc"
+ * </pre>
+ *
+ * @author baccano-iot
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConstantPacketBenchmark {
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int pingRespEncoder() {
+        return write(MqttMessage.PINGRESP);
+    }
+
+    @Benchmark
+    public int pingRespPreEncoded() {
+        return write(MqttPackets.pingResp());
+    }
+
+    @Benchmark
+    public int pubAckEncoder() {
+        return write(MqttMessageBuilders.pubAck().packetId(1).build());
+    }
+
+    @Benchmark
+    public int pubAckDirect() {
+        return write(MqttPackets.ack(channel.alloc(), MqttMessageType.PUBACK, 1));
+    }
+
+    private int write(Object packet) {
+        channel.writeOutbound(packet);
+        ByteBuf encoded = channel.readOutbound();
+        try {
+            return encoded.readableBytes();
+        } finally {
+            encoded.release();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.baccano.iot.connect.benchmark;
+
+import com.baccano.iot.connect.entity.DeviceSession;
+import com.baccano.iot.connect.session.DeviceSessionCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话编码的体积与编解码耗时
+ * <p>
+ * 对照组为原先整对象存取的JSON序列化，现在的做法是 {@link DeviceSessionCodec} 的哈希布局
+ * （短字段名、epoch毫秒、小整数协议编码，属性超过阈值时压缩）。每个会话的字节数在启动时输出
+ * （哈希按字段名加字段值计），编解码耗时为单个会话的平均值，乘以100万即为100万个会话的耗时。
+ * 一半会话带有需要压缩的长属性。
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="DeviceSessionCodecBenchmark"
+ * </pre>
+ *
+ * @author baccano-iot
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceSessionCodecBenchmark {
+    private static final int EXTRAPOLATED_SESSIONS = 1_000_000;
+
+    /**
+     * 轮流编解码的不同会话数
+     */
+    @Param({"1024"})
+    private int variants;
+
+    private ObjectMapper objectMapper;
+    private DeviceSession[] sessions;
+    private Map<String, String>[] hashes;
+    private String[] jsons;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        sessions = new DeviceSession[variants];
+        hashes = new Map[variants];
+        jsons = new String[variants];
+        long hashBytes = 0;
+        long jsonBytes = 0;
+        for (int i = 0; i < variants; i++) {
+            sessions[i] = session(i);
+            hashes[i] = DeviceSessionCodec.encode(sessions[i]);
+            jsons[i] = objectMapper.writeValueAsString(sessions[i]);
+            hashBytes += hashBytes(hashes[i]);
+            jsonBytes += jsons[i].getBytes(StandardCharsets.UTF_8).length;
+        }
+        System.out.printf("%n会话字节数: hash=%d B/session, json=%d B/session, 100万会话: hash=%d MB, json=%d MB%n",
+                hashBytes / variants, jsonBytes / variants,
+                hashBytes * EXTRAPOLATED_SESSIONS / variants >> 20, jsonBytes * EXTRAPOLATED_SESSIONS / variants >> 20);
+    }
+
+    @Benchmark
+    public Map<String, String> encodeHash() {
+        return DeviceSessionCodec.encode(sessions[nextIndex()]);
+    }
+
+    @Benchmark
+    public DeviceSession decodeHash() {
+        return DeviceSessionCodec.decode(hashes[nextIndex()]);
+    }
+
+    @Benchmark
+    public String encodeJson() throws Exception {
+        return objectMapper.writeValueAsString(sessions[nextIndex()]);
+    }
+
+    @Benchmark
+    public DeviceSession decodeJson() throws Exception {
+        return objectMapper.readValue(jsons[nextIndex()], DeviceSession.class);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == variants ? 0 : index + 1;
+        return index;
+    }
+
+    private static long hashBytes(Map<String, String> hash) {
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : hash.entrySet()) {
+            bytes += entry.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + entry.getValue().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes;
+    }
+
+    private static DeviceSession session(int i) throws Exception {
+        LocalDateTime now = LocalDateTime.now();
+        DeviceSession session = new DeviceSession();
+        session.setDeviceId(String.valueOf(100000 + i));
+        session.setDeviceKey("device-" + i);
+        session.setProductId("product-" + (i % 16));
+        session.setStatus(1);
+        session.setProtocol("mqtt");
+        session.setClientId("client-" + i);
+        session.setNodeId("node-" + (i % 4));
+        session.setCleanSession(i % 2 == 0);
+        session.setIp("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF));
+        session.setPort(40000 + i);
+        session.setConnectTime(now.minusMinutes(i));
+        session.setLastOnlineTime(now);
+        session.setHeartbeatTime(now);
+        session.setTimeout(3600);
+        if (i % 2 == 0) {
+            session.setAttributes(new ObjectMapper().writeValueAsString(Map.of(
+                    "firmware", "v2.3." + i,
+                    "model", "sensor-gateway-x1",
+                    "tags", List.of("building-a", "floor-3", "zone-north", "hvac", "temperature", "humidity"),
+                    "location", Map.of("lat", 31.2304, "lng", 121.4737, "address", "Room 301, Building A"),
+                    "description", "Environmental monitoring gateway aggregating downstream sensors over Modbus")));
+        }
+        return session;
+    }
+}
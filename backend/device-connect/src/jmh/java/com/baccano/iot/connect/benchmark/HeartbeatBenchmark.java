@@ -0,0 +1,104 @@
+package com.baccano.iot.connect.benchmark;
+
+import com.baccano.iot.connect.entity.DeviceSession;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.session.HeartbeatAggregator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单次心跳在本节点上的处理开销
+ * <p>
+ * 对照组为原先的读-改-写：取出整个会话的序列化结果，反序列化后修改心跳时间和最后在线时间，再整体序列化写回
+ * （这里用内存Map代替Redis，只计CPU开销，不含每次两个网络往返）。现在的做法只在连接上写入最后心跳秒
+ * （基本类型字段，同一秒内只写一次，不分配对象），由刷新任务每个周期对每个设备写一次，且整批在一个管道中完成。
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="HeartbeatBenchmark -prof gc"
+ * </pre>
+ *
+ * @author baccano-iot
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeartbeatBenchmark {
+    /**
+     * 设备数
+     */
+    @Param({"200000"})
+    private int devices;
+
+    private String[] deviceKeys;
+    private ClientConnection[] connections;
+    private HeartbeatAggregator aggregator;
+    private ObjectMapper objectMapper;
+    private ConcurrentHashMap<String, String> store;
+
+    @Setup
+    public void setup() throws Exception {
+        aggregator = new HeartbeatAggregator();
+        objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        store = new ConcurrentHashMap<>(devices * 2);
+        deviceKeys = new String[devices];
+        connections = new ClientConnection[devices];
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < devices; i++) {
+            String deviceKey = "device-" + i;
+            deviceKeys[i] = deviceKey;
+            // 只用到心跳字段，不需要真实的Channel和在途窗口
+            connections[i] = new ClientConnection(null, deviceKey, deviceKey, 4, false, null, null);
+            DeviceSession session = new DeviceSession();
+            session.setDeviceId(String.valueOf(i));
+            session.setDeviceKey(deviceKey);
+            session.setProductId("product-1");
+            session.setStatus(1);
+            session.setProtocol("mqtt");
+            session.setClientId(deviceKey);
+            session.setNodeId("node-1");
+            session.setCleanSession(true);
+            session.setIp("10.0.0.1");
+            session.setPort(50000);
+            session.setConnectTime(now);
+            session.setLastOnlineTime(now);
+            session.setHeartbeatTime(now);
+            session.setTimeout(3600);
+            store.put(deviceKey, objectMapper.writeValueAsString(session));
+        }
+    }
+
+    @Benchmark
+    public void readModifyWrite() throws Exception {
+        String deviceKey = deviceKeys[ThreadLocalRandom.current().nextInt(devices)];
+        DeviceSession session = objectMapper.readValue(store.get(deviceKey), DeviceSession.class);
+        LocalDateTime now = LocalDateTime.now();
+        session.setHeartbeatTime(now);
+        session.setLastOnlineTime(now);
+        store.put(deviceKey, objectMapper.writeValueAsString(session));
+    }
+
+    @Benchmark
+    public void aggregate() {
+        aggregator.record(connections[ThreadLocalRandom.current().nextInt(devices)]);
+    }
+}
@@ -0,0 +1,122 @@
+package com.baccano.iot.connect.benchmark;
+
+import com.baccano.iot.connect.mqtt.MqttPackets;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 出站应答的flush合并吞吐
+ * <p>
+ * 通过本机回环TCP连接发送PUBACK：每次操作在连接的EventLoop上连续发出一批应答（模拟一次读取中解码出的多个QoS 1 PUBLISH），
+ * 每个应答都按 {@code MqttHandler} 的方式调用writeAndFlush，等待最后一个写完成。
+ * flushConsolidation为0时每个应答一次系统调用，大于0时与服务端配置相同，在管道头部加入 {@link FlushConsolidationHandler}。
+ * 结果为每毫秒发出的应答数。
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="OutboundFlushBenchmark"
+ * </pre>
+ *
+ * @author baccano-iot
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboundFlushBenchmark {
+    private static final int ACKS_PER_READ = 16;
+
+    /**
+     * 最多合并的flush次数，0表示不合并
+     */
+    @Param({"0", "64"})
+    private int flushConsolidation;
+
+    private EventLoopGroup group;
+    private Channel server;
+    private Channel client;
+    private int packetId;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        group = new MultiThreadIoEventLoopGroup(2, NioIoHandler.newFactory());
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        ReferenceCountUtil.release(msg);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+        client = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (flushConsolidation > 0) {
+                            ch.pipeline().addLast(new FlushConsolidationHandler(flushConsolidation, true));
+                        }
+                    }
+                })
+                .connect(server.localAddress())
+                .sync()
+                .channel();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        client.close().sync();
+        server.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACKS_PER_READ)
+    public void pubAck() throws Exception {
+        ChannelFuture last = client.eventLoop().submit(() -> {
+            ChannelFuture future = null;
+            for (int i = 0; i < ACKS_PER_READ; i++) {
+                packetId = packetId == 0xFFFF ? 1 : packetId + 1;
+                future = client.writeAndFlush(MqttPackets.ack(client.alloc(), MqttMessageType.PUBACK, packetId));
+            }
+            return future;
+        }).get();
+        last.sync();
+    }
+}
@@ -0,0 +1,84 @@
+package com.baccano.iot.connect.benchmark;
+
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUBLISH上行路径的分配率
+ * <p>
+ * 对照组为原先的做法：消息体复制为 {@code byte[]}，再构造字符串用于INFO日志；
+ * 现在的做法是把解码器产生的池化缓冲区以retainedSlice交给下游，处理完后释放，不产生堆内拷贝。
+ * 分配率需配合GC分析器查看（gc.alloc.rate.norm，每次操作分配的字节数）：
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="PublishPathBenchmark -prof gc"
+ * </pre>
+ *
+ * @author baccano-iot
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishPathBenchmark {
+    /**
+     * 消息体大小，单位：字节
+     */
+    @Param({"64", "512", "4096"})
+    private int payloadSize;
+
+    /**
+     * 模拟解码器产生的PUBLISH报文缓冲区
+     */
+    private ByteBuf frame;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'a');
+        frame = PooledByteBufAllocator.DEFAULT.directBuffer(payloadSize).writeBytes(payload);
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+    }
+
+    @Benchmark
+    public void copyPayload(Blackhole blackhole) {
+        byte[] bytes = ByteBufUtil.getBytes(frame);
+        blackhole.consume(bytes);
+        blackhole.consume(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void retainedSlice(Blackhole blackhole) {
+        PublishMessage message = new PublishMessage(null, "device-1", "client-1", "v1/device-1/telemetry", 1, false,
+                frame.retainedSlice());
+        try {
+            blackhole.consume(message.getPayload());
+        } finally {
+            message.release();
+        }
+    }
+}
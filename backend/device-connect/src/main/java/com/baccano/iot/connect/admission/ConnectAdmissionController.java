@@ -0,0 +1,206 @@
+package com.baccano.iot.connect.admission;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MQTT CONNECT准入控制
+ * <p>
+ * 每个CONNECT先经过单IP令牌桶，再经过全局令牌桶：全局令牌不足时进入有界等待队列，
+ * 由后台任务按全局速率放行；队列已满、等待超时或单IP超限的连接，
+ * 在随机抖动延迟后回复"服务不可用"并断开，使设备的重试时间分散开，
+ * 从而把断网恢复后的重连洪峰削平为Redis可以承受的稳定速率。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class ConnectAdmissionController {
+    private static final long DRAIN_TICK_MILLIS = 10;
+
+    /**
+     * 全局每秒放行的CONNECT数
+     */
+    @Value("${mqtt.admission.globalRate}")
+    private Double globalRate;
+
+    /**
+     * 全局突发容量
+     */
+    @Value("${mqtt.admission.globalBurst}")
+    private Integer globalBurst;
+
+    /**
+     * 单IP每秒放行的CONNECT数
+     */
+    @Value("${mqtt.admission.perIpRate}")
+    private Double perIpRate;
+
+    /**
+     * 单IP突发容量
+     */
+    @Value("${mqtt.admission.perIpBurst}")
+    private Integer perIpBurst;
+
+    /**
+     * 等待队列容量
+     */
+    @Value("${mqtt.admission.queueSize}")
+    private Integer queueSize;
+
+    /**
+     * 最长排队时间，单位：毫秒
+     */
+    @Value("${mqtt.admission.queueTimeout}")
+    private Long queueTimeout;
+
+    /**
+     * 拒绝应答的最大随机延迟，单位：毫秒
+     */
+    @Value("${mqtt.admission.rejectJitter}")
+    private Long rejectJitter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private TokenBucket globalBucket;
+    private final ConcurrentHashMap<String, TokenBucket> ipBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<PendingConnect> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingSize = new AtomicInteger();
+    private ScheduledExecutorService scheduler;
+
+    private Counter admittedCounter;
+    private Counter queuedCounter;
+    private Counter rejectedIpCounter;
+    private Counter rejectedQueueFullCounter;
+    private Counter rejectedTimeoutCounter;
+
+    @PostConstruct
+    public void start() {
+        globalBucket = new TokenBucket(globalRate, globalBurst);
+        admittedCounter = counter("admitted", "none");
+        queuedCounter = counter("queued", "none");
+        rejectedIpCounter = counter("rejected", "ip_rate");
+        rejectedQueueFullCounter = counter("rejected", "queue_full");
+        rejectedTimeoutCounter = counter("rejected", "queue_timeout");
+        Gauge.builder("mqtt.connect.pending", pendingSize, AtomicInteger::get)
+                .description("等待准入的CONNECT数")
+                .register(meterRegistry);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-admission", true));
+        scheduler.scheduleWithFixedDelay(this::drain, DRAIN_TICK_MILLIS, DRAIN_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::evictIdleBuckets, 60, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 对CONNECT进行准入判定
+     *
+     * @param channel  连接通道
+     * @param ip       客户端IP
+     * @param onAdmit  放行后的处理，在Channel的EventLoop中执行
+     * @param onReject 拒绝时的处理（回复CONNACK并断开），在抖动延迟后于Channel的EventLoop中执行
+     */
+    public void admit(Channel channel, String ip, Runnable onAdmit, Runnable onReject) {
+        TokenBucket ipBucket = ipBuckets.computeIfAbsent(ip, k -> new TokenBucket(perIpRate, perIpBurst));
+        if (!ipBucket.tryAcquire()) {
+            rejectedIpCounter.increment();
+            log.debug("CONNECT超过单IP速率限制: ip={}", ip);
+            reject(channel, onReject);
+            return;
+        }
+        // 队列中已有等待者时新连接排到队尾，保证先到先放行
+        if (pendingSize.get() == 0 && globalBucket.tryAcquire()) {
+            admittedCounter.increment();
+            onAdmit.run();
+            return;
+        }
+        if (pendingSize.incrementAndGet() > queueSize) {
+            pendingSize.decrementAndGet();
+            rejectedQueueFullCounter.increment();
+            reject(channel, onReject);
+            return;
+        }
+        queuedCounter.increment();
+        pending.offer(new PendingConnect(channel, onAdmit, onReject, System.nanoTime()));
+    }
+
+    /**
+     * 按全局速率放行排队的连接
+     */
+    private void drain() {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        PendingConnect head;
+        while ((head = pending.peek()) != null) {
+            if (!head.channel().isActive()) {
+                removeHead(head);
+                continue;
+            }
+            if (System.nanoTime() - head.enqueueNanos() > timeoutNanos) {
+                removeHead(head);
+                rejectedTimeoutCounter.increment();
+                reject(head.channel(), head.onReject());
+                continue;
+            }
+            if (!globalBucket.tryAcquire()) {
+                return;
+            }
+            removeHead(head);
+            admittedCounter.increment();
+            head.channel().eventLoop().execute(head.onAdmit());
+        }
+    }
+
+    private void removeHead(PendingConnect head) {
+        if (pending.remove(head)) {
+            pendingSize.decrementAndGet();
+        }
+    }
+
+    private void reject(Channel channel, Runnable onReject) {
+        long delay = rejectJitter > 0 ? ThreadLocalRandom.current().nextLong(rejectJitter) : 0;
+        channel.eventLoop().schedule(() -> {
+            if (channel.isActive()) {
+                onReject.run();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictIdleBuckets() {
+        ipBuckets.values().removeIf(TokenBucket::isIdle);
+    }
+
+    private Counter counter(String result, String reason) {
+        return Counter.builder("mqtt.connect.admission")
+                .description("CONNECT准入结果")
+                .tag("result", result)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private record PendingConnect(Channel channel, Runnable onAdmit, Runnable onReject, long enqueueNanos) {
+    }
+}
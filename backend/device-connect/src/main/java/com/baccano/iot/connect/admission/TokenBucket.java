@@ -0,0 +1,67 @@
+package com.baccano.iot.connect.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶（GCRA算法实现）
+ * <p>
+ * 只保存一个"理论到达时间"，获取令牌是一次CAS，不需要后台补充线程，
+ * 适合为大量IP各自维护一个桶。
+ *
+ * @author baccano-iot
+ */
+public class TokenBucket {
+    /**
+     * 每个令牌的间隔，单位：纳秒
+     */
+    private final long intervalNanos;
+
+    /**
+     * 突发容忍度，单位：纳秒
+     */
+    private final long burstNanos;
+
+    /**
+     * 理论到达时间
+     */
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param ratePerSecond 每秒令牌数
+     * @param burst         桶容量
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 尝试获取一个令牌
+     *
+     * @return 是否获取成功
+     */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long base = tat - now > 0 ? tat : now;
+            if (base - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, base + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 桶是否已经补满（长时间未使用），可被回收
+     *
+     * @return 是否已补满
+     */
+    public boolean isIdle() {
+        return theoreticalArrival.get() - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,379 @@
+package com.baccano.iot.connect.auth;
+
+import com.baccano.iot.common.utils.DigestUtils;
+import com.baccano.iot.connect.executor.SessionExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 设备凭证校验
+ * <p>
+ * 认证服务把设备凭证的摘要同步到Redis（{@code device:credential:{设备Key}}，字段见认证服务的凭证同步服务），
+ * 这里在本地缓存这些摘要，CONNECT时只需计算一次SHA-256并比较，不访问Redis也不调用认证服务：
+ * <ul>
+ *     <li>启动时分批扫描Redis预热缓存</li>
+ *     <li>未命中时在会话执行器上读取Redis，不存在的设备也缓存一段较短的时间，避免错误凭证反复穿透到Redis</li>
+ *     <li>缓存时间不超过凭证的过期时间，凭证过期后不会被继续放行</li>
+ *     <li>认证服务修改凭证后向 {@value #EVENT_CHANNEL} 发布设备Key，收到后丢弃该设备的缓存</li>
+ * </ul>
+ * 缓存中只有凭证摘要，不保存凭证原文。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class CredentialVerifier implements MessageListener {
+    /**
+     * 凭证变更通知频道
+     */
+    public static final String EVENT_CHANNEL = "device:credential:events";
+
+    private static final String KEY_PREFIX = "device:credential:";
+
+    private static final String TYPE = "t";
+    private static final String DIGEST = "h";
+    private static final String STATUS = "s";
+    private static final String EXPIRE_AT = "e";
+
+    /**
+     * 凭证类型：证书认证，凭证内容为证书ID，其余类型的凭证内容由设备作为密码提交
+     */
+    private static final int TYPE_CERTIFICATE = 1;
+
+    /**
+     * 凭证状态：启用
+     */
+    private static final int STATUS_ENABLED = 1;
+
+    /**
+     * 淘汰时最多检查的条目数
+     */
+    private static final int EVICTION_SCAN = 16;
+
+    /**
+     * 预热时每批读取的凭证数
+     */
+    private static final int WARMUP_BATCH = 500;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private SessionExecutor sessionExecutor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 凭证缓存条数上限
+     */
+    @Value("${device.credential.cache.maxSize}")
+    private Integer maxSize;
+
+    /**
+     * 凭证缓存时间，单位：秒
+     */
+    @Value("${device.credential.cache.ttl}")
+    private Integer ttl;
+
+    /**
+     * 不存在的设备的缓存时间，单位：秒
+     */
+    @Value("${device.credential.cache.negativeTtl}")
+    private Integer negativeTtl;
+
+    /**
+     * 启动时是否预热缓存
+     */
+    @Value("${device.credential.cache.warmup}")
+    private Boolean warmup;
+
+    /**
+     * 设备Key -> 凭证缓存条目
+     */
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>(1 << 16);
+
+    /**
+     * 每收到一次变更通知加一，读取Redis期间发生过变更时读到的结果不写入缓存
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private Counter hitCounter;
+    private Counter missCounter;
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(EVENT_CHANNEL));
+        hitCounter = Counter.builder("device.credential.cache")
+                .description("设备凭证缓存查询次数")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        missCounter = Counter.builder("device.credential.cache")
+                .description("设备凭证缓存查询次数")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("device.credential.cache.size", cache, Map::size)
+                .description("设备凭证缓存条数")
+                .register(meterRegistry);
+        if (warmup) {
+            Thread warmupThread = new Thread(this::warmUp, "credential-warmup");
+            warmupThread.setDaemon(true);
+            warmupThread.start();
+        }
+    }
+
+    /**
+     * 校验设备凭证。缓存命中时直接返回已完成的结果，未命中时在会话执行器上读取Redis
+     *
+     * @param deviceKey     设备Key（CONNECT用户名）
+     * @param password      CONNECT密码，未携带时为空字符串
+     * @param certificateId TLS设备证书ID，非TLS连接或未提供证书时为null
+     * @return 校验结果，读取Redis失败时异常完成
+     */
+    public CompletableFuture<Result> verify(String deviceKey, String password, String certificateId) {
+        if (deviceKey == null || deviceKey.isEmpty()) {
+            return CompletableFuture.completedFuture(Result.BAD_CREDENTIALS);
+        }
+        Entry entry = lookup(deviceKey);
+        if (entry != null) {
+            hitCounter.increment();
+            return CompletableFuture.completedFuture(check(deviceKey, entry, password, certificateId));
+        }
+        missCounter.increment();
+        return sessionExecutor.submit(deviceKey, () -> check(deviceKey, load(deviceKey), password, certificateId));
+    }
+
+    /**
+     * 丢弃设备的缓存条目
+     *
+     * @param deviceKey 设备Key
+     */
+    public void invalidate(String deviceKey) {
+        invalidations.incrementAndGet();
+        cache.remove(deviceKey);
+    }
+
+    /**
+     * 缓存条数
+     *
+     * @return 条数
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String deviceKey = new String(message.getBody(), StandardCharsets.UTF_8);
+        invalidate(deviceKey);
+        log.debug("设备凭证缓存失效: deviceKey={}", deviceKey);
+    }
+
+    private Result check(String deviceKey, Entry entry, String password, String certificateId) {
+        if (entry.digest() == null) {
+            return Result.BAD_CREDENTIALS;
+        }
+        if (entry.status() != STATUS_ENABLED
+                || (entry.expireAtMillis() > 0 && System.currentTimeMillis() >= entry.expireAtMillis())) {
+            return Result.NOT_AUTHORIZED;
+        }
+        String presented = entry.type() == TYPE_CERTIFICATE ? certificateId : password;
+        if (presented == null || presented.isEmpty()) {
+            return Result.BAD_CREDENTIALS;
+        }
+        // 常量时间比较，避免通过比较耗时推测摘要
+        byte[] expected = entry.digest().getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = DigestUtils.credentialDigest(deviceKey, presented).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual) ? Result.ACCEPTED : Result.BAD_CREDENTIALS;
+    }
+
+    private Entry lookup(String deviceKey) {
+        Entry entry = cache.get(deviceKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.cachedUntilNanos() - System.nanoTime() < 0) {
+            cache.remove(deviceKey, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 从Redis读取设备凭证并写入缓存，设备没有凭证时缓存一个空条目
+     */
+    private Entry load(String deviceKey) {
+        long version = invalidations.get();
+        Map<Object, Object> hash = stringRedisTemplate.opsForHash().entries(KEY_PREFIX + deviceKey);
+        Entry entry = toEntry(hash);
+        if (invalidations.get() == version) {
+            put(deviceKey, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 分批扫描Redis中的全部凭证写入缓存，达到缓存上限后停止
+     */
+    private void warmUp() {
+        long start = System.nanoTime();
+        ScanOptions options = ScanOptions.scanOptions().match(KEY_PREFIX + "*").count(WARMUP_BATCH).build();
+        List<String> keys = new ArrayList<>(WARMUP_BATCH);
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            while (cursor.hasNext() && cache.size() < maxSize) {
+                keys.add(cursor.next());
+                if (keys.size() >= WARMUP_BATCH) {
+                    warmUpBatch(keys);
+                    keys.clear();
+                }
+            }
+            if (!keys.isEmpty() && cache.size() < maxSize) {
+                warmUpBatch(keys);
+            }
+            log.info("设备凭证缓存预热完成: size={}, cost={}ms",
+                    cache.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            log.error("设备凭证缓存预热失败: size={}, error={}", cache.size(), e.getMessage(), e);
+        }
+    }
+
+    private void warmUpBatch(List<String> keys) {
+        long version = invalidations.get();
+        List<Object> hashes = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                for (String key : keys) {
+                    operations.opsForHash().entries(key);
+                }
+                return null;
+            }
+        });
+        if (invalidations.get() != version) {
+            // 预热期间有凭证变更，无法判断这一批中哪些已过时，交给未命中时再读取
+            return;
+        }
+        for (int i = 0; i < keys.size() && i < hashes.size(); i++) {
+            if (hashes.get(i) instanceof Map<?, ?> hash && !hash.isEmpty()) {
+                cache.putIfAbsent(keys.get(i).substring(KEY_PREFIX.length()), toEntry(hash));
+            }
+        }
+    }
+
+    private void put(String deviceKey, Entry entry) {
+        if (cache.size() >= maxSize && !cache.containsKey(deviceKey)) {
+            evict();
+        }
+        cache.put(deviceKey, entry);
+    }
+
+    /**
+     * 优先淘汰已过期的条目，没有则淘汰遍历到的第一条
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Entry>> iterator = cache.entrySet().iterator();
+        Map.Entry<String, Entry> victim = null;
+        for (int scanned = 0; iterator.hasNext() && scanned < EVICTION_SCAN; scanned++) {
+            Map.Entry<String, Entry> candidate = iterator.next();
+            if (candidate.getValue().cachedUntilNanos() - now < 0) {
+                victim = candidate;
+                break;
+            }
+            if (victim == null) {
+                victim = candidate;
+            }
+        }
+        if (victim != null) {
+            cache.remove(victim.getKey(), victim.getValue());
+        }
+    }
+
+    /**
+     * 把Redis中的凭证Hash转为缓存条目，缓存时间不超过凭证剩余有效期
+     */
+    private Entry toEntry(Map<?, ?> hash) {
+        long now = System.nanoTime();
+        if (hash == null || hash.isEmpty() || hash.get(DIGEST) == null) {
+            return new Entry(0, null, 0, 0, now + TimeUnit.SECONDS.toNanos(negativeTtl));
+        }
+        long expireAtMillis = parseLong(hash.get(EXPIRE_AT));
+        long cacheNanos = TimeUnit.SECONDS.toNanos(ttl);
+        if (expireAtMillis > 0) {
+            long remainingMillis = Math.max(0, expireAtMillis - System.currentTimeMillis());
+            cacheNanos = Math.min(cacheNanos, TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+        }
+        return new Entry((int) parseLong(hash.get(TYPE)), hash.get(DIGEST).toString(),
+                (int) parseLong(hash.get(STATUS)), expireAtMillis, now + cacheNanos);
+    }
+
+    private static long parseLong(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 校验结果
+     */
+    public enum Result {
+        /**
+         * 凭证正确
+         */
+        ACCEPTED,
+        /**
+         * 设备不存在或凭证不匹配
+         */
+        BAD_CREDENTIALS,
+        /**
+         * 凭证已禁用或已过期
+         */
+        NOT_AUTHORIZED
+    }
+
+    /**
+     * 凭证缓存条目
+     *
+     * @param type             凭证类型
+     * @param digest           凭证摘要，设备没有凭证时为null
+     * @param status           凭证状态
+     * @param expireAtMillis   凭证过期时间，0表示不过期
+     * @param cachedUntilNanos 缓存失效时间（System.nanoTime）
+     */
+    private record Entry(int type, String digest, int status, long expireAtMillis, long cachedUntilNanos) {
+    }
+}
@@ -0,0 +1,333 @@
+package com.baccano.iot.connect.cluster;
+
+import com.baccano.iot.connect.entity.DeviceSession;
+import com.baccano.iot.connect.executor.SessionExecutor;
+import com.baccano.iot.connect.mqtt.qos.InflightMessage;
+import com.baccano.iot.connect.mqtt.qos.InflightWindow;
+import com.baccano.iot.connect.mqtt.qos.QosDeliveryManager;
+import com.baccano.iot.connect.offline.OfflineMessage;
+import com.baccano.iot.connect.offline.OfflineQueue;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import com.baccano.iot.connect.service.DeviceSessionService;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 下行消息路由
+ * <p>
+ * 设备连接在本节点时直接投递；否则按会话中记录的所属节点（会话归属表）转发到该节点，
+ * 由目标节点在本地投递。下行消息的入口为 {@link com.baccano.iot.connect.controller.DownlinkController}，
+ * 平台其他服务可以把请求发到任意一个节点。收到转发消息时设备已不在本节点的：设备已离线则按下述规则存入离线队列，
+ * 已迁移到其他节点则直接丢弃，不做二次转发，避免环路。
+ * <p>
+ * 设备不在线且会话为持久会话（cleanSession=false）时，QoS 1/2消息进入 {@link OfflineQueue}。
+ * 设备重连后按在途窗口大小分批取出：本节点日志中的消息直接投递，其他节点日志中的消息发送重放请求，
+ * 由所在节点读出后作为下行消息转发回来；一批全部确认（在途窗口清空）后再取下一批。
+ * 本节点日志中的消息在设备确认后才确认日志记录；连接断开时持久会话未完成的下行消息放回离线队列（见 {@link #requeueInflight}）。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class DownlinkRouter {
+    private static final int STATUS_ONLINE = 1;
+
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Autowired
+    private QosDeliveryManager qosDeliveryManager;
+
+    @Autowired
+    private DeviceSessionService deviceSessionService;
+
+    @Autowired
+    private NodeForwarder nodeForwarder;
+
+    @Autowired
+    private LocalNode localNode;
+
+    @Autowired
+    private OfflineQueue offlineQueue;
+
+    @Autowired
+    private SessionExecutor sessionExecutor;
+
+    @PostConstruct
+    public void start() throws Exception {
+        nodeForwarder.start(this::onForwarded);
+    }
+
+    /**
+     * 向设备发送下行消息，可在任意线程调用；设备不在本节点时会查询Redis（会话缓存未命中时）或写离线日志，不应在EventLoop上调用
+     *
+     * @param deviceKey 设备Key
+     * @param topic     主题
+     * @param qos       QoS等级
+     * @param payload   消息体
+     * @return 路由结果
+     */
+    public Result send(String deviceKey, String topic, MqttQoS qos, byte[] payload) {
+        ClientConnection connection = clientRegistry.get(deviceKey);
+        if (connection != null) {
+            return qosDeliveryManager.deliver(connection, topic, qos, Unpooled.wrappedBuffer(payload))
+                    ? Result.DELIVERED : Result.BUSY;
+        }
+        DeviceSession session = deviceSessionService.getSession(deviceKey);
+        String owner = ownerOf(session);
+        if (owner != null && !owner.equals(localNode.getId())) {
+            return nodeForwarder.forward(owner, NodeMessage.downlink(deviceKey, topic, qos.value(), payload))
+                    ? Result.FORWARDED : Result.BUSY;
+        }
+        if (session != null && Boolean.FALSE.equals(session.getCleanSession()) && qos != MqttQoS.AT_MOST_ONCE) {
+            return offlineQueue.enqueue(deviceKey, topic, qos.value(), payload) ? Result.QUEUED : Result.BUSY;
+        }
+        return Result.OFFLINE;
+    }
+
+    /**
+     * 取出下一批离线消息投递给设备，访问Redis和本地日志，在会话执行器上调用
+     *
+     * @param connection 设备连接（已回复CONNACK）
+     */
+    public void deliverOffline(ClientConnection connection) {
+        if (!connection.getChannel().isActive()) {
+            return;
+        }
+        String deviceKey = connection.getDeviceKey();
+        // 每批取出的条数与该连接的下行在途上限一致
+        int batchSize = connection.getInflightWindow().getSendMaximum();
+        OfflineQueue.Entries entries = offlineQueue.take(deviceKey, batchSize);
+        if (entries.taken() == 0) {
+            return;
+        }
+        long[] localIds = entries.local().stream().mapToLong(Long::longValue).toArray();
+        List<OfflineMessage> messages = offlineQueue.readLocal(deviceKey, localIds);
+        connection.getChannel().eventLoop().execute(() -> deliverLocal(connection, messages));
+        Map<String, List<Long>> remoteIds = new LinkedHashMap<>();
+        for (OfflineQueue.RemoteEntry entry : entries.remote()) {
+            remoteIds.computeIfAbsent(entry.nodeId(), nodeId -> new ArrayList<>()).add(entry.id());
+        }
+        for (Map.Entry<String, List<Long>> entry : remoteIds.entrySet()) {
+            long[] ids = entry.getValue().stream().mapToLong(Long::longValue).toArray();
+            if (!nodeForwarder.forward(entry.getKey(), NodeMessage.offlineReplay(deviceKey, localNode.getId(), ids))) {
+                log.warn("离线消息重放请求被拒绝: deviceKey={}, node={}, count={}", deviceKey, entry.getKey(), ids.length);
+            }
+        }
+        if (entries.taken() >= batchSize) {
+            // 排在本批投递任务之后执行，此时本批消息已进入在途窗口
+            connection.getChannel().eventLoop().execute(() -> {
+                connection.setOfflinePending(true);
+                onOutboundComplete(connection, 0);
+            });
+        }
+        log.info("投递离线消息: deviceKey={}, local={}, remote={}", deviceKey, localIds.length, entries.remote().size());
+    }
+
+    /**
+     * 把本节点日志中读出的离线消息加入在途窗口，连接已关闭时放回离线队列，在Channel所属EventLoop中执行
+     */
+    private void deliverLocal(ClientConnection connection, List<OfflineMessage> messages) {
+        List<OfflineQueue.Undelivered> undelivered = new ArrayList<>(0);
+        for (OfflineMessage message : messages) {
+            if (!qosDeliveryManager.deliverOffline(connection, message.topic(), MqttQoS.valueOf(message.qos()),
+                    Unpooled.wrappedBuffer(message.payload()), message.id())) {
+                undelivered.add(new OfflineQueue.Undelivered(message.id(), message.topic(), message.qos(), null));
+            }
+        }
+        requeue(connection.getDeviceKey(), undelivered);
+    }
+
+    /**
+     * 连接关闭时释放在途窗口：持久会话中尚未被设备收到（未发送或已发送PUBLISH）的消息放回离线队列，
+     * 下次连接时重新投递；设备已收到的QoS 2消息（已发送PUBREL）确认离线日志记录后丢弃。订阅时下发的保留消息不放回，
+     * 设备重新订阅时会再次下发。必须在Channel所属EventLoop中调用
+     *
+     * @param connection 设备连接
+     */
+    public void requeueInflight(ClientConnection connection) {
+        String deviceKey = connection.getDeviceKey();
+        InflightWindow window = connection.getInflightWindow();
+        List<OfflineQueue.Undelivered> undelivered = new ArrayList<>(window.outboundSize());
+        for (InflightMessage message : window.drain()) {
+            try {
+                if (message.getState() == InflightMessage.State.PUBREL_SENT) {
+                    ackOffline(deviceKey, message.getOfflineId());
+                } else if (!message.isRetain()) {
+                    undelivered.add(new OfflineQueue.Undelivered(message.getOfflineId(), message.getTopic(),
+                            message.getQos().value(),
+                            message.getOfflineId() != 0 ? null : ByteBufUtil.getBytes(message.getPayload())));
+                }
+            } finally {
+                message.release();
+            }
+        }
+        window.clear();
+        requeue(deviceKey, undelivered);
+    }
+
+    /**
+     * 确认本节点离线日志中的记录，在会话执行器上写日志
+     *
+     * @param deviceKey 设备Key
+     * @param offlineId 离线消息ID，为0时忽略
+     */
+    public void ackOffline(String deviceKey, long offlineId) {
+        if (offlineId != 0 && !sessionExecutor.execute(deviceKey, () -> offlineQueue.ack(offlineId))) {
+            // 日志记录已不被索引引用，随过期和压缩清除
+            log.debug("会话IO队列已满，离线消息确认交给过期清除: deviceKey={}, id={}", deviceKey, offlineId);
+        }
+    }
+
+    private void requeue(String deviceKey, List<OfflineQueue.Undelivered> undelivered) {
+        if (undelivered.isEmpty()) {
+            return;
+        }
+        if (!sessionExecutor.execute(deviceKey, () -> {
+            int requeued = offlineQueue.requeue(deviceKey, undelivered);
+            log.info("未完成的下行消息放回离线队列: deviceKey={}, count={}", deviceKey, requeued);
+        })) {
+            log.warn("会话IO队列已满，未完成的下行消息无法放回离线队列: deviceKey={}, count={}",
+                    deviceKey, undelivered.size());
+        }
+    }
+
+    /**
+     * 下行QoS流程结束（收到PUBACK/PUBCOMP）时调用：确认离线日志记录，在途窗口清空且离线队列还有剩余时取下一批，
+     * 必须在Channel所属EventLoop中调用
+     *
+     * @param connection 设备连接
+     * @param offlineId  结束的消息在本节点离线日志中的ID，不是离线消息时为0
+     */
+    public void onOutboundComplete(ClientConnection connection, long offlineId) {
+        ackOffline(connection.getDeviceKey(), offlineId);
+        if (connection.isOfflinePending() && connection.getInflightWindow().outboundSize() == 0) {
+            // 队列已满时保留标记，下一次QoS流程结束时再取
+            connection.setOfflinePending(!sessionExecutor.execute(connection.getDeviceKey(), () -> deliverOffline(connection)));
+        }
+    }
+
+    /**
+     * 设备当前所属节点，设备不在线时返回null
+     */
+    private String ownerOf(DeviceSession session) {
+        if (session == null || session.getStatus() == null || session.getStatus() != STATUS_ONLINE) {
+            return null;
+        }
+        return session.getNodeId();
+    }
+
+    private void onForwarded(List<NodeMessage> batch) {
+        for (NodeMessage message : batch) {
+            if (message.type() == NodeMessage.OFFLINE_REPLAY) {
+                replay(message);
+                continue;
+            }
+            ClientConnection connection = clientRegistry.get(message.deviceKey());
+            if (connection == null) {
+                onForwardedMiss(message);
+                continue;
+            }
+            if (message.type() == NodeMessage.RESUME) {
+                resume(connection, message);
+                continue;
+            }
+            qosDeliveryManager.deliver(connection, message.topic(), MqttQoS.valueOf(message.qos()),
+                    Unpooled.wrappedBuffer(message.payload()));
+        }
+    }
+
+    /**
+     * 恢复其他节点迁移过来的在途消息，保留原报文标识符（见 {@link QosDeliveryManager#resume}）
+     */
+    private void resume(ClientConnection connection, NodeMessage message) {
+        InflightMessage inflight = new InflightMessage(message.resumePacketId(), message.topic(),
+                MqttQoS.valueOf(message.qos()), false, Unpooled.wrappedBuffer(message.resumePayload()));
+        inflight.setState(InflightMessage.State.values()[message.resumeState()]);
+        connection.getChannel().eventLoop().execute(() -> qosDeliveryManager.resume(connection, inflight));
+    }
+
+    /**
+     * 转发到达时设备已不在本节点：已离线的持久会话存入离线队列（与本节点直接收到时相同），
+     * 已迁移到其他节点的丢弃，不做二次转发。在转发通道的接收线程上执行，不在EventLoop上
+     */
+    private void onForwardedMiss(NodeMessage message) {
+        String deviceKey = message.deviceKey();
+        if (message.type() == NodeMessage.RESUME) {
+            if (message.resumeState() == InflightMessage.State.PUBREL_SENT.ordinal()) {
+                // 设备已收到该消息，只差PUBREL，不再保存
+                return;
+            }
+            message = NodeMessage.downlink(deviceKey, message.topic(), message.qos(), message.resumePayload());
+        }
+        if (message.qos() != MqttQoS.AT_MOST_ONCE.value()) {
+            DeviceSession session = deviceSessionService.getSession(deviceKey);
+            if (session != null && ownerOf(session) == null && Boolean.FALSE.equals(session.getCleanSession())) {
+                if (!offlineQueue.enqueue(deviceKey, message.topic(), message.qos(), message.payload())) {
+                    log.warn("转发的下行消息存入离线队列失败: deviceKey={}, topic={}", deviceKey, message.topic());
+                }
+                return;
+            }
+        }
+        log.debug("转发的下行消息目标设备不在本节点，丢弃: deviceKey={}, topic={}", deviceKey, message.topic());
+    }
+
+    /**
+     * 处理其他节点的重放请求：从本地日志读出离线消息，作为下行消息转发给请求节点，转发成功后确认日志记录，
+     * 请求节点积压时放回离线队列
+     */
+    private void replay(NodeMessage request) {
+        String requesterNode = request.topic();
+        int forwarded = 0;
+        List<OfflineQueue.Undelivered> rejected = new ArrayList<>(0);
+        for (OfflineMessage message : offlineQueue.readLocal(request.deviceKey(), request.replayIds())) {
+            if (nodeForwarder.forward(requesterNode, NodeMessage.downlink(message.deviceKey(), message.topic(),
+                    message.qos(), message.payload()))) {
+                offlineQueue.ack(message.id());
+                forwarded++;
+            } else {
+                rejected.add(new OfflineQueue.Undelivered(message.id(), message.topic(), message.qos(), null));
+            }
+        }
+        requeue(request.deviceKey(), rejected);
+        log.debug("重放离线消息: deviceKey={}, requesterNode={}, forwarded={}",
+                request.deviceKey(), requesterNode, forwarded);
+    }
+
+    /**
+     * 路由结果
+     */
+    public enum Result {
+        /**
+         * 已提交本地投递
+         */
+        DELIVERED,
+        /**
+         * 已转发到所属节点
+         */
+        FORWARDED,
+        /**
+         * 设备不在线，已存入离线队列
+         */
+        QUEUED,
+        /**
+         * 设备不在线
+         */
+        OFFLINE,
+        /**
+         * 本地在途窗口已满、目标节点积压或离线消息写入失败
+         */
+        BUSY
+    }
+}
@@ -0,0 +1,52 @@
+package com.baccano.iot.connect.cluster;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 进程内转发通道，用于单节点部署
+ * <p>
+ * 同一JVM内的节点共享一张节点表，批次经过与网络通道相同的编解码后直接交给目标节点的接收方法；
+ * 单节点部署时会话只会归属本节点，{@link DownlinkRouter} 不会向其他节点转发。
+ *
+ * @author baccano-iot
+ */
+@Component
+@ConditionalOnProperty(name = "device.cluster.transport", havingValue = "memory", matchIfMissing = true)
+public class InProcessNodeTransport implements NodeTransport {
+    private static final Map<String, Consumer<List<NodeMessage>>> NODES = new ConcurrentHashMap<>();
+
+    private String nodeId;
+
+    @Override
+    public void start(String nodeId, Consumer<List<NodeMessage>> receiver) {
+        this.nodeId = nodeId;
+        NODES.put(nodeId, receiver);
+    }
+
+    @Override
+    public void send(String nodeId, List<NodeMessage> batch) {
+        Consumer<List<NodeMessage>> receiver = NODES.get(nodeId);
+        if (receiver == null) {
+            throw new IllegalStateException("节点不在本进程内: " + nodeId);
+        }
+        receiver.accept(NodeMessageCodec.decode(NodeMessageCodec.encode(batch)));
+    }
+
+    @Override
+    public void close() {
+        if (nodeId != null) {
+            NODES.remove(nodeId);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+}
@@ -0,0 +1,88 @@
+package com.baccano.iot.connect.cluster;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * 本节点标识
+ * <p>
+ * 会话中记录所属节点，用于判断会话归属和节点间转发，离线消息索引也以节点ID定位消息所在的日志。
+ * 未配置时由主机名加随机后缀生成，并保存在离线消息日志目录中，进程重启后沿用同一标识，
+ * 重启前写入的离线消息仍按本节点的消息直接读取。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class LocalNode {
+    private static final String NODE_ID_FILE = "node.id";
+    /**
+     * 配置的节点ID，为空时自动生成
+     */
+    @Value("${device.node.id:}")
+    private String configuredId;
+
+    /**
+     * 离线消息日志目录，自动生成的节点ID保存在其中
+     */
+    @Value("${device.offline.dir}")
+    private String offlineDir;
+
+    /**
+     * 节点ID
+     */
+    @Getter
+    private String id;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (StringUtils.hasText(configuredId)) {
+            id = configuredId;
+        } else {
+            id = loadOrGenerate(Paths.get(offlineDir, NODE_ID_FILE));
+        }
+        log.info("本节点ID: {}", id);
+    }
+
+    /**
+     * 读取保存的节点ID，不存在时生成并保存
+     */
+    private static String loadOrGenerate(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String saved = Files.readString(file, StandardCharsets.UTF_8).trim();
+            if (!saved.isEmpty()) {
+                return saved;
+            }
+        }
+        String generated = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        Files.createDirectories(file.getParent());
+        // 先写临时文件再改名，进程在写入中途退出不会留下不完整的ID
+        Path temp = file.resolveSibling(NODE_ID_FILE + ".tmp");
+        Files.writeString(temp, generated, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("生成节点ID并保存: file={}", file.toAbsolutePath());
+        return generated;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "device-connect";
+        }
+    }
+}
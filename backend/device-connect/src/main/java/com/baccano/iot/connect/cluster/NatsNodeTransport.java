@@ -0,0 +1,78 @@
+package com.baccano.iot.connect.cluster;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 基于NATS的节点间转发通道
+ * <p>
+ * 每个节点订阅主题 {@code device-connect.node.<节点ID>}，一个批次编码为一条NATS消息。
+ * NATS为至多一次投递，节点间转发只作为下行消息的传递通道，可靠性由MQTT QoS在设备侧保证。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "device.cluster.transport", havingValue = "nats")
+public class NatsNodeTransport implements NodeTransport {
+    private static final String SUBJECT_PREFIX = "device-connect.node.";
+
+    @Value("${device.cluster.natsUrl}")
+    private String natsUrl;
+
+    private Connection connection;
+    private Dispatcher dispatcher;
+
+    @Override
+    public void start(String nodeId, Consumer<List<NodeMessage>> receiver) throws Exception {
+        Options options = new Options.Builder()
+                .server(natsUrl)
+                .connectionName(nodeId)
+                .maxReconnects(-1)
+                .reconnectWait(Duration.ofSeconds(1))
+                .build();
+        connection = Nats.connect(options);
+        dispatcher = connection.createDispatcher(message -> {
+            try {
+                receiver.accept(NodeMessageCodec.decode(message.getData()));
+            } catch (Exception e) {
+                log.error("节点间消息处理失败: subject={}, error={}", message.getSubject(), e.getMessage(), e);
+            }
+        });
+        dispatcher.subscribe(SUBJECT_PREFIX + nodeId);
+        log.info("NATS节点间转发通道启动成功: url={}, subject={}", natsUrl, SUBJECT_PREFIX + nodeId);
+    }
+
+    @Override
+    public void send(String nodeId, List<NodeMessage> batch) {
+        connection.publish(SUBJECT_PREFIX + nodeId, NodeMessageCodec.encode(batch));
+    }
+
+    @Override
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.closeDispatcher(dispatcher);
+            connection.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "nats";
+    }
+}
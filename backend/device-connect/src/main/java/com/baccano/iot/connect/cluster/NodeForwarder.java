@@ -0,0 +1,265 @@
+package com.baccano.iot.connect.cluster;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 节点间下行消息批量转发器
+ * <p>
+ * 每个目标节点一个发送队列，由单线程按序发送：达到条数上限立即发送，否则在linger时间到期后发送。
+ * 每个目标节点的待发送字节数有上限，超过后拒绝新的消息，由调用方决定丢弃或稍后重试，
+ * 一个节点变慢或不可达不会占满本节点内存，也不影响发往其他节点的消息。
+ * 空闲超过一定时间的发送队列连同其线程被回收，下线节点的队列不会一直保留，再次转发时重新创建。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class NodeForwarder {
+    @Autowired
+    private NodeTransport transport;
+
+    @Autowired
+    private LocalNode localNode;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 单批次最大消息数
+     */
+    @Value("${device.cluster.batchSize}")
+    private Integer batchSize;
+
+    /**
+     * 最长攒批时间，单位：毫秒
+     */
+    @Value("${device.cluster.lingerMs}")
+    private Integer lingerMs;
+
+    /**
+     * 单个目标节点的待发送字节数上限
+     */
+    @Value("${device.cluster.maxPendingBytes}")
+    private Long maxPendingBytes;
+
+    /**
+     * 发送队列空闲回收时间，单位：秒
+     */
+    @Value("${device.cluster.idleTimeout}")
+    private Integer idleTimeout;
+
+    private final ConcurrentHashMap<String, NodeQueue> queues = new ConcurrentHashMap<>();
+    private ScheduledExecutorService lingerScheduler;
+
+    private Counter sentCounter;
+    private Counter rejectedCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        sentCounter = Counter.builder("mqtt.cluster.forward").tag("result", "sent").register(meterRegistry);
+        rejectedCounter = Counter.builder("mqtt.cluster.forward").tag("result", "rejected").register(meterRegistry);
+        failedCounter = Counter.builder("mqtt.cluster.forward").tag("result", "failed").register(meterRegistry);
+        lingerScheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("node-forward-linger", true));
+        long tick = Math.max(1, lingerMs / 2);
+        lingerScheduler.scheduleWithFixedDelay(this::flushExpired, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开始接收其他节点转发给本节点的消息
+     *
+     * @param receiver 消息批次处理器
+     * @throws Exception 转发通道启动失败
+     */
+    public void start(Consumer<List<NodeMessage>> receiver) throws Exception {
+        transport.start(localNode.getId(), receiver);
+        log.info("节点间转发器启动: transport={}, nodeId={}, batchSize={}, lingerMs={}",
+                transport.name(), localNode.getId(), batchSize, lingerMs);
+    }
+
+    /**
+     * 将消息转发到目标节点
+     *
+     * @param nodeId  目标节点ID
+     * @param message 消息
+     * @return 是否已接收；目标节点积压超过上限时返回false
+     */
+    public boolean forward(String nodeId, NodeMessage message) {
+        int size = message.payload().length;
+        NodeQueue queue;
+        List<NodeMessage> full = null;
+        while (true) {
+            queue = queues.computeIfAbsent(nodeId, NodeQueue::new);
+            synchronized (queue) {
+                if (queue.closed) {
+                    // 队列刚被空闲回收，重新创建
+                    continue;
+                }
+                if (queue.pendingBytes + size > maxPendingBytes) {
+                    rejectedCounter.increment();
+                    return false;
+                }
+                long now = System.nanoTime();
+                if (queue.buffer.isEmpty()) {
+                    queue.firstMessageNanos = now;
+                }
+                queue.lastActiveNanos = now;
+                queue.buffer.add(message);
+                queue.pendingBytes += size;
+                if (queue.buffer.size() >= batchSize) {
+                    full = queue.drain();
+                }
+                break;
+            }
+        }
+        if (full != null) {
+            queue.submit(full);
+        }
+        return true;
+    }
+
+    /**
+     * 发往目标节点的待发送字节数
+     *
+     * @param nodeId 目标节点ID
+     * @return 字节数
+     */
+    public long pendingBytes(String nodeId) {
+        NodeQueue queue = queues.get(nodeId);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.pendingBytes;
+        }
+    }
+
+    /**
+     * 发送攒批到期的缓冲区，回收空闲的发送队列
+     */
+    private void flushExpired() {
+        long now = System.nanoTime();
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        long idleNanos = TimeUnit.SECONDS.toNanos(idleTimeout);
+        for (NodeQueue queue : queues.values()) {
+            List<NodeMessage> batch = null;
+            boolean idle = false;
+            synchronized (queue) {
+                if (!queue.buffer.isEmpty()) {
+                    if (now - queue.firstMessageNanos >= lingerNanos) {
+                        batch = queue.drain();
+                    }
+                } else if (queue.pendingBytes == 0 && now - queue.lastActiveNanos >= idleNanos) {
+                    queue.closed = true;
+                    idle = true;
+                }
+            }
+            if (batch != null) {
+                queue.submit(batch);
+            }
+            if (idle) {
+                queues.remove(queue.nodeId, queue);
+                queue.sender.shutdown();
+                log.info("回收空闲的节点间转发队列: nodeId={}", queue.nodeId);
+            }
+        }
+    }
+
+    private void send(NodeQueue queue, List<NodeMessage> batch) {
+        long bytes = 0;
+        for (NodeMessage message : batch) {
+            bytes += message.payload().length;
+        }
+        try {
+            transport.send(queue.nodeId, batch);
+            sentCounter.increment(batch.size());
+        } catch (Exception e) {
+            failedCounter.increment(batch.size());
+            log.error("节点间消息转发失败: transport={}, nodeId={}, size={}, error={}",
+                    transport.name(), queue.nodeId, batch.size(), e.getMessage(), e);
+        } finally {
+            synchronized (queue) {
+                queue.pendingBytes -= bytes;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (lingerScheduler != null) {
+            lingerScheduler.shutdownNow();
+        }
+        for (NodeQueue queue : queues.values()) {
+            List<NodeMessage> batch;
+            synchronized (queue) {
+                batch = queue.buffer.isEmpty() ? null : queue.drain();
+            }
+            if (batch != null) {
+                queue.submit(batch);
+            }
+            queue.sender.shutdown();
+        }
+        for (NodeQueue queue : queues.values()) {
+            try {
+                if (!queue.sender.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.warn("节点间转发队列关闭超时: nodeId={}", queue.nodeId);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        transport.close();
+        log.info("节点间转发器已关闭");
+    }
+
+    /**
+     * 目标节点的发送队列，缓冲区由队列对象锁保护
+     */
+    private final class NodeQueue {
+        private final String nodeId;
+        private final ExecutorService sender;
+        private List<NodeMessage> buffer;
+        private long pendingBytes;
+        private long firstMessageNanos;
+        private long lastActiveNanos;
+
+        /**
+         * 已被空闲回收，不再接收消息
+         */
+        private boolean closed;
+
+        private NodeQueue(String nodeId) {
+            this.nodeId = nodeId;
+            this.sender = Executors.newSingleThreadExecutor(new DefaultThreadFactory("node-forward", true));
+            this.buffer = new ArrayList<>(batchSize);
+            this.lastActiveNanos = System.nanoTime();
+        }
+
+        private List<NodeMessage> drain() {
+            List<NodeMessage> batch = buffer;
+            buffer = new ArrayList<>(batchSize);
+            return batch;
+        }
+
+        private void submit(List<NodeMessage> batch) {
+            sender.execute(() -> send(this, batch));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.baccano.iot.connect.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 节点间转发的消息
+ * <p>
+ * {@link #DOWNLINK}：下行消息，由目标节点投递给本地连接的设备；
+ * {@link #OFFLINE_REPLAY}：离线消息重放请求，topic为请求节点ID，payload为离线消息ID列表，
+ * 目标节点从本地离线日志读出这些消息后作为下行消息转发给请求节点；
+ * {@link #RESUME}：会话被其他节点接管时迁移的在途消息，payload前3字节为原报文标识符(short)和在途状态(byte)，
+ * 目标节点保留原报文标识符恢复QoS流程，不作为新消息投递。
+ *
+ * @param type      消息类型
+ * @param deviceKey 目标设备Key
+ * @param topic     主题
+ * @param qos       QoS等级
+ * @param payload   消息体
+ * @author baccano-iot
+ */
+public record NodeMessage(int type, String deviceKey, String topic, int qos, byte[] payload) {
+    public static final int DOWNLINK = 0;
+    public static final int OFFLINE_REPLAY = 1;
+    public static final int RESUME = 2;
+
+    private static final int RESUME_HEADER_SIZE = Short.BYTES + 1;
+
+    /**
+     * 创建下行消息
+     *
+     * @param deviceKey 目标设备Key
+     * @param topic     主题
+     * @param qos       QoS等级
+     * @param payload   消息体
+     * @return 节点间消息
+     */
+    public static NodeMessage downlink(String deviceKey, String topic, int qos, byte[] payload) {
+        return new NodeMessage(DOWNLINK, deviceKey, topic, qos, payload);
+    }
+
+    /**
+     * 创建离线消息重放请求
+     *
+     * @param deviceKey     设备Key
+     * @param requesterNode 请求节点ID（设备当前连接的节点）
+     * @param ids           离线消息ID
+     * @return 节点间消息
+     */
+    public static NodeMessage offlineReplay(String deviceKey, String requesterNode, long[] ids) {
+        ByteBuffer buffer = ByteBuffer.allocate(ids.length * Long.BYTES);
+        for (long id : ids) {
+            buffer.putLong(id);
+        }
+        return new NodeMessage(OFFLINE_REPLAY, deviceKey, requesterNode, 0, buffer.array());
+    }
+
+    /**
+     * 创建迁移的在途消息
+     *
+     * @param deviceKey 设备Key
+     * @param topic     主题
+     * @param qos       QoS等级
+     * @param packetId  原报文标识符
+     * @param state     在途状态序号（{@link com.baccano.iot.connect.mqtt.qos.InflightMessage.State}）
+     * @param payload   消息体
+     * @return 节点间消息
+     */
+    public static NodeMessage resume(String deviceKey, String topic, int qos, int packetId, int state, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(RESUME_HEADER_SIZE + payload.length);
+        buffer.putShort((short) packetId).put((byte) state).put(payload);
+        return new NodeMessage(RESUME, deviceKey, topic, qos, buffer.array());
+    }
+
+    /**
+     * 迁移的在途消息的原报文标识符
+     *
+     * @return 报文标识符
+     */
+    public int resumePacketId() {
+        return ByteBuffer.wrap(payload).getShort() & 0xFFFF;
+    }
+
+    /**
+     * 迁移的在途消息的在途状态序号
+     *
+     * @return 状态序号
+     */
+    public int resumeState() {
+        return payload[Short.BYTES];
+    }
+
+    /**
+     * 迁移的在途消息的消息体
+     *
+     * @return 消息体
+     */
+    public byte[] resumePayload() {
+        return Arrays.copyOfRange(payload, RESUME_HEADER_SIZE, payload.length);
+    }
+
+    /**
+     * 重放请求中的离线消息ID
+     *
+     * @return 离线消息ID
+     */
+    public long[] replayIds() {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long[] ids = new long[payload.length / Long.BYTES];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = buffer.getLong();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,84 @@
+package com.baccano.iot.connect.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 节点间消息批次编解码
+ * <p>
+ * 格式：消息数(int)，随后每条消息依次为 类型(byte) 设备Key长度(short) 设备Key 主题长度(short) 主题 QoS(byte)
+ * 消息体长度(int) 消息体，
+ * 字符串为UTF-8。
+ *
+ * @author baccano-iot
+ */
+public final class NodeMessageCodec {
+    private NodeMessageCodec() {
+    }
+
+    /**
+     * 编码一批消息
+     *
+     * @param batch 消息批次
+     * @return 字节数组
+     */
+    public static byte[] encode(List<NodeMessage> batch) {
+        List<byte[]> strings = new ArrayList<>(batch.size() * 2);
+        int size = Integer.BYTES;
+        for (NodeMessage message : batch) {
+            byte[] deviceKey = message.deviceKey().getBytes(StandardCharsets.UTF_8);
+            byte[] topic = message.topic().getBytes(StandardCharsets.UTF_8);
+            strings.add(deviceKey);
+            strings.add(topic);
+            size += 1 + Short.BYTES + deviceKey.length + Short.BYTES + topic.length
+                    + 1 + Integer.BYTES + message.payload().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            NodeMessage message = batch.get(i);
+            buffer.put((byte) message.type());
+            putString(buffer, strings.get(i * 2));
+            putString(buffer, strings.get(i * 2 + 1));
+            buffer.put((byte) message.qos());
+            buffer.putInt(message.payload().length);
+            buffer.put(message.payload());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 解码一批消息
+     *
+     * @param data 字节数组
+     * @return 消息批次
+     */
+    public static List<NodeMessage> decode(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int count = buffer.getInt();
+        List<NodeMessage> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = buffer.get();
+            String deviceKey = getString(buffer);
+            String topic = getString(buffer);
+            int qos = buffer.get();
+            byte[] payload = new byte[buffer.getInt()];
+            buffer.get(payload);
+            batch.add(new NodeMessage(type, deviceKey, topic, qos, payload));
+        }
+        return batch;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,44 @@
+package com.baccano.iot.connect.cluster;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 节点间转发通道
+ * <p>
+ * 每个节点按自己的节点ID接收消息；发送方按目标节点ID投递一批消息。
+ *
+ * @author baccano-iot
+ */
+public interface NodeTransport {
+
+    /**
+     * 开始接收发往本节点的消息
+     *
+     * @param nodeId   本节点ID
+     * @param receiver 消息批次处理器，在通道的接收线程上调用
+     * @throws Exception 连接失败
+     */
+    void start(String nodeId, Consumer<List<NodeMessage>> receiver) throws Exception;
+
+    /**
+     * 向目标节点发送一批消息
+     *
+     * @param nodeId 目标节点ID
+     * @param batch  消息批次
+     * @throws Exception 发送失败
+     */
+    void send(String nodeId, List<NodeMessage> batch) throws Exception;
+
+    /**
+     * 停止接收并释放连接
+     */
+    void close();
+
+    /**
+     * 通道名称，用于日志
+     *
+     * @return 名称
+     */
+    String name();
+}
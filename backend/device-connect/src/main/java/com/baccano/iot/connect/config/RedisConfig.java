@@ -0,0 +1,53 @@
+package com.baccano.iot.connect.config;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis配置类
+ *
+ * @author baccano-iot
+ */
+@Configuration
+public class RedisConfig {
+    /**
+     * 集群通知处理线程数
+     */
+    @Value("${device.event.threads}")
+    private Integer eventThreads;
+
+    /**
+     * 集群通知处理队列容量
+     */
+    @Value("${device.event.queueCapacity}")
+    private Integer eventQueueCapacity;
+
+    /**
+     * Redis消息监听容器，用于订阅会话变更等集群内通知
+     * <p>
+     * 每个节点都会收到全部会话变更和凭证变更通知，每条通知对每个监听器分发一次。容器默认的执行器为每次分发新建线程，
+     * 设备集中重连时线程数随通知数增长，这里改为固定大小的线程池。队列满时由订阅线程自己处理，
+     * 暂停读取后续通知而不是丢弃。监听器的onMessage不能阻塞，需要访问Redis的处理提交到会话执行器
+     *
+     * @param connectionFactory Redis连接工厂
+     * @return RedisMessageListenerContainer
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setTaskExecutor(new ThreadPoolExecutor(eventThreads, eventThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(eventQueueCapacity),
+                new DefaultThreadFactory("redis-event", true),
+                new ThreadPoolExecutor.CallerRunsPolicy()));
+        return container;
+    }
+}
@@ -0,0 +1,66 @@
+package com.baccano.iot.connect.controller;
+
+import com.baccano.iot.common.core.response.Result;
+import com.baccano.iot.common.core.response.ResultCode;
+import com.baccano.iot.connect.cluster.DownlinkRouter;
+import com.baccano.iot.connect.dto.DownlinkRequest;
+import com.baccano.iot.connect.mqtt.topic.Topics;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import jakarta.validation.Valid;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 设备下行消息Controller
+ * <p>
+ * 平台其他服务通过任意一个接入节点下发消息：设备连接在本节点时直接投递，连接在其他节点时转发到所属节点，
+ * 设备离线且为持久会话时QoS 1/2消息进入离线队列（见 {@link DownlinkRouter}）。
+ * 请求在Web容器线程上处理，路由过程中的Redis访问和离线日志写入不占用Netty EventLoop。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/v1/devices")
+public class DownlinkController {
+    @Autowired
+    private DownlinkRouter downlinkRouter;
+
+    @Value("${mqtt.topic.devicePrefix}")
+    private String devicePrefix;
+
+    @Value("${mqtt.topic.commandSuffix}")
+    private String commandSuffix;
+
+    /**
+     * 向设备发送下行消息
+     *
+     * @param deviceKey 设备Key
+     * @param request   下行消息
+     * @return 路由结果 DELIVERED/FORWARDED/QUEUED/OFFLINE
+     */
+    @PostMapping("/{deviceKey}/downlink")
+    public Result<DownlinkRouter.Result> send(@PathVariable String deviceKey, @Valid @RequestBody DownlinkRequest request) {
+        String topic = request.getTopic() != null && !request.getTopic().isEmpty()
+                ? request.getTopic()
+                : devicePrefix + "/" + deviceKey + "/" + commandSuffix;
+        if (!Topics.isValidTopic(topic)) {
+            return Result.fail(ResultCode.PARAM_ERROR, "下行主题不合法: " + topic);
+        }
+        DownlinkRouter.Result result = downlinkRouter.send(deviceKey, topic, MqttQoS.valueOf(request.getQos()),
+                request.getPayload().getBytes(StandardCharsets.UTF_8));
+        log.debug("下行消息: deviceKey={}, topic={}, qos={}, result={}", deviceKey, topic, request.getQos(), result);
+        if (result == DownlinkRouter.Result.BUSY) {
+            return Result.fail(ResultCode.SERVICE_UNAVAILABLE, "下行通道繁忙，请稍后重试");
+        }
+        return Result.success(result);
+    }
+}
@@ -0,0 +1,32 @@
+package com.baccano.iot.connect.dto;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+
+/**
+ * 下行消息请求DTO
+ *
+ * @author baccano-iot
+ */
+@Data
+public class DownlinkRequest {
+    /**
+     * 下行主题，为空时使用设备的指令主题（{devicePrefix}/{deviceKey}/{commandSuffix}）
+     */
+    private String topic;
+
+    /**
+     * QoS等级
+     */
+    @Min(value = 0, message = "QoS取值为0、1或2")
+    @Max(value = 2, message = "QoS取值为0、1或2")
+    private int qos = 1;
+
+    /**
+     * 消息体（UTF-8文本）
+     */
+    @NotNull(message = "消息体不能为空")
+    private String payload;
+}
@@ -41,6 +41,16 @@ public class DeviceSession {
      */
     private String clientId;
 
+    /**
+     * 所属节点ID
+     */
+    private String nodeId;
+
+    /**
+     * 是否清理会话，为false时设备离线期间的下行消息进入离线队列
+     */
+    private Boolean cleanSession;
+
     /**
      * 设备IP
      */
@@ -67,7 +77,7 @@ public class DeviceSession {
     private LocalDateTime disconnectTime;
 
     /**
-     * 心跳时间
+     * 心跳时间，建立连接时写入；之后的心跳由心跳聚合器批量写入，最多落后一个刷新周期
      */
     private LocalDateTime heartbeatTime;
 
@@ -80,4 +90,4 @@ public class DeviceSession {
      * 会话属性，JSON格式
      */
     private String attributes;
-}
\ No newline at end of file
+}
\ No newline at end of file
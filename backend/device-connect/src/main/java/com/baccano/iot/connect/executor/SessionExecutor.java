@@ -0,0 +1,158 @@
+package com.baccano.iot.connect.executor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话阻塞IO执行器
+ * <p>
+ * Redis等阻塞调用不能在Netty EventLoop上执行，否则一次慢调用会拖住共享该EventLoop的所有连接。
+ * 任务按设备Key哈希到固定的单线程分片上执行，同一设备的上线、心跳、下线严格按提交顺序执行，
+ * 不同设备之间互不阻塞。每个分片的队列有界，队列满时拒绝任务：提交线程通常是EventLoop，不能在其上执行阻塞调用，
+ * 插队执行也会打乱同一设备的任务顺序。{@link #submit} 返回失败的Future，{@link #execute} 返回false，由调用方决定
+ * 如何降级（例如CONNECT回复服务不可用）。拒绝次数计入指标，日志限频输出。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class SessionExecutor {
+    /**
+     * 分片数（线程数）
+     */
+    @Value("${device.session.executor.threads}")
+    private Integer threads;
+
+    /**
+     * 单个分片的队列容量
+     */
+    @Value("${device.session.executor.queueCapacity}")
+    private Integer queueCapacity;
+
+    /**
+     * 拒绝日志的最小间隔，单位：毫秒
+     */
+    private static final long REJECT_LOG_INTERVAL_MILLIS = 10_000;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor[] stripes;
+    private Counter rejectedCounter;
+    private final AtomicLong rejectedSinceLog = new AtomicLong();
+    private final AtomicLong lastRejectLogMillis = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        rejectedCounter = Counter.builder("session.executor.rejected")
+                .description("会话IO队列已满或已关闭而被拒绝的任务数")
+                .register(meterRegistry);
+        stripes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    new DefaultThreadFactory("session-io-" + i, true),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * 提交无返回值的任务
+     *
+     * @param key  排序键（设备Key）
+     * @param task 任务
+     * @return 队列已满或执行器已关闭时返回false，任务不会执行
+     */
+    public boolean execute(String key, Runnable task) {
+        try {
+            stripeOf(key).execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("会话IO任务执行失败: key={}, error={}", key, e.getMessage(), e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            onRejected(key);
+            return false;
+        }
+    }
+
+    /**
+     * 提交有返回值的任务
+     *
+     * @param key  排序键（设备Key）
+     * @param task 任务
+     * @param <T>  返回值类型
+     * @return 任务结果，队列已满或执行器已关闭时以 {@link RejectedExecutionException} 失败
+     */
+    public <T> CompletableFuture<T> submit(String key, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            stripeOf(key).execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onRejected(key);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 记录拒绝，日志每个间隔最多输出一次并带上间隔内的拒绝次数
+     */
+    private void onRejected(String key) {
+        rejectedCounter.increment();
+        long rejected = rejectedSinceLog.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long last = lastRejectLogMillis.get();
+        if (now - last >= REJECT_LOG_INTERVAL_MILLIS && lastRejectLogMillis.compareAndSet(last, now)) {
+            rejectedSinceLog.addAndGet(-rejected);
+            log.warn("会话IO队列已满，拒绝任务: key={}, queueCapacity={}, rejected={}", key, queueCapacity, rejected);
+        }
+    }
+
+    private ThreadPoolExecutor stripeOf(String key) {
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (stripes == null) {
+            return;
+        }
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+        for (ThreadPoolExecutor stripe : stripes) {
+            try {
+                if (!stripe.awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.warn("会话IO执行器关闭超时，剩余任务: {}", stripe.getQueue().size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
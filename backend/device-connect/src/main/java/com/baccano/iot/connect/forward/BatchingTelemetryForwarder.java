@@ -0,0 +1,337 @@
+package com.baccano.iot.connect.forward;
+
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+import com.baccano.iot.connect.mqtt.publish.PublishSink;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 上行消息批量转发器
+ * <p>
+ * 消息按设备Key哈希到固定分区，保证同一设备的消息顺序；每个分区独立攒批，
+ * 达到条数或字节上限立即发送，否则在linger时间到期后发送。每个分区由单线程发送，
+ * 发送期间消息体保持池化引用，发送完成后统一释放。
+ * <p>
+ * 待发送字节数超过高水位时关闭来源Channel的autoRead，降到低水位以下再恢复，
+ * 从而把下游的拥塞传导回设备连接，而不是在内存里无限堆积。每个分区排队的批次数另有上限。
+ * <p>
+ * 转发是最多一次（at-most-once）：QoS 1消息进入转发器时已向设备回复PUBACK，设备不会重发。
+ * 发送失败的批次、分区队列已满时的批次以及转发器关闭后到达的消息都直接丢弃，不重试，
+ * 丢弃的消息数按原因记录在 {@code mqtt.forward.dropped}（reason=send_failed/queue_full/shutdown）。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class BatchingTelemetryForwarder implements PublishSink {
+    @Autowired
+    private TelemetryTransport transport;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 分区数
+     */
+    @Value("${mqtt.forward.partitions}")
+    private Integer partitionCount;
+
+    /**
+     * 单批次最大消息数
+     */
+    @Value("${mqtt.forward.batchSize}")
+    private Integer batchSize;
+
+    /**
+     * 单批次最大字节数
+     */
+    @Value("${mqtt.forward.batchBytes}")
+    private Integer batchBytes;
+
+    /**
+     * 最长攒批时间，单位：毫秒
+     */
+    @Value("${mqtt.forward.lingerMs}")
+    private Integer lingerMs;
+
+    /**
+     * 待发送字节数高水位，超过后暂停读取
+     */
+    @Value("${mqtt.forward.highWaterMark}")
+    private Long highWaterMark;
+
+    /**
+     * 待发送字节数低水位，低于后恢复读取
+     */
+    @Value("${mqtt.forward.lowWaterMark}")
+    private Long lowWaterMark;
+
+    /**
+     * 每个分区排队等待发送的批次上限
+     */
+    @Value("${mqtt.forward.queueCapacity}")
+    private Integer queueCapacity;
+
+    private Partition[] partitions;
+    private ScheduledExecutorService lingerScheduler;
+    private Counter sendFailedCounter;
+    private Counter queueFullCounter;
+    private Counter shutdownCounter;
+
+    /**
+     * 是否已关闭，由分区锁保证关闭后不再有消息进入缓冲区
+     */
+    private volatile boolean closed;
+
+    /**
+     * 已接收但尚未发送完成的消息体字节数
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /**
+     * 因背压被暂停读取的通道
+     */
+    private final Set<Channel> pausedChannels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 暂停期间关闭的通道从暂停集合中移除，恢复读取时从closeFuture上摘除，监听器不会随暂停次数累积
+     */
+    private final ChannelFutureListener removeOnClose = future -> pausedChannels.remove(future.channel());
+
+    @PostConstruct
+    public void start() {
+        sendFailedCounter = droppedCounter("send_failed");
+        queueFullCounter = droppedCounter("queue_full");
+        shutdownCounter = droppedCounter("shutdown");
+        partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i);
+        }
+        lingerScheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("telemetry-linger", true));
+        long tick = Math.max(1, lingerMs / 2);
+        lingerScheduler.scheduleWithFixedDelay(this::flushExpired, tick, tick, TimeUnit.MILLISECONDS);
+        log.info("上行消息转发器启动: transport={}, partitions={}, batchSize={}, lingerMs={}",
+                transport.name(), partitionCount, batchSize, lingerMs);
+    }
+
+    @Override
+    public void onPublish(PublishMessage message) {
+        Partition partition = partitions[(message.getDeviceKey().hashCode() & Integer.MAX_VALUE) % partitions.length];
+        int size = message.payloadSize();
+        List<PublishMessage> full = null;
+        synchronized (partition) {
+            if (closed) {
+                shutdownCounter.increment();
+                message.release();
+                return;
+            }
+            if (partition.buffer.isEmpty()) {
+                partition.firstMessageNanos = System.nanoTime();
+            }
+            partition.buffer.add(message);
+            partition.bufferBytes += size;
+            if (partition.buffer.size() >= batchSize || partition.bufferBytes >= batchBytes) {
+                full = partition.drain();
+            }
+            // 在锁内计入，关闭时排空缓冲区的批次一定已经计入
+            pendingBytes.addAndGet(size);
+        }
+
+        if (pendingBytes.get() >= highWaterMark) {
+            pause(message.getChannel());
+        }
+        if (full != null) {
+            partition.submit(full);
+        }
+    }
+
+    /**
+     * 当前待发送字节数
+     *
+     * @return 字节数
+     */
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * 发送攒批超时的分区
+     */
+    private void flushExpired() {
+        long now = System.nanoTime();
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        for (Partition partition : partitions) {
+            List<PublishMessage> batch = null;
+            synchronized (partition) {
+                if (!partition.buffer.isEmpty() && now - partition.firstMessageNanos >= lingerNanos) {
+                    batch = partition.drain();
+                }
+            }
+            if (batch != null) {
+                partition.submit(batch);
+            }
+        }
+        // 兜底：暂停与恢复存在竞争时，由定时任务再检查一次
+        if (pendingBytes.get() <= lowWaterMark) {
+            resumeAll();
+        }
+    }
+
+    private void send(Partition partition, List<PublishMessage> batch) {
+        try {
+            transport.send(batch);
+        } catch (Exception e) {
+            // 设备已收到PUBACK，不会重发，批次就此丢失
+            sendFailedCounter.increment(batch.size());
+            log.error("上行消息转发失败，批次丢弃: transport={}, partition={}, size={}, error={}",
+                    transport.name(), partition.index, batch.size(), e.getMessage(), e);
+        } finally {
+            release(batch);
+        }
+    }
+
+    /**
+     * 丢弃未能提交发送的批次
+     */
+    private void discard(Partition partition, List<PublishMessage> batch, boolean shutdown) {
+        (shutdown ? shutdownCounter : queueFullCounter).increment(batch.size());
+        log.warn("上行消息批次未能提交发送，丢弃: partition={}, size={}, reason={}",
+                partition.index, batch.size(), shutdown ? "shutdown" : "queue_full");
+        release(batch);
+    }
+
+    /**
+     * 释放批次中的消息体并扣减待发送字节数
+     */
+    private void release(List<PublishMessage> batch) {
+        long bytes = 0;
+        for (PublishMessage message : batch) {
+            bytes += message.payloadSize();
+            message.release();
+        }
+        if (pendingBytes.addAndGet(-bytes) <= lowWaterMark) {
+            resumeAll();
+        }
+    }
+
+    private Counter droppedCounter(String reason) {
+        return Counter.builder("mqtt.forward.dropped")
+                .description("转发器丢弃的上行消息数")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    private void pause(Channel channel) {
+        if (channel != null && channel.config().isAutoRead()) {
+            channel.config().setAutoRead(false);
+            if (pausedChannels.add(channel)) {
+                channel.closeFuture().addListener(removeOnClose);
+            }
+            log.debug("转发积压，暂停读取: channel={}, pendingBytes={}", channel.id().asShortText(), pendingBytes.get());
+        }
+    }
+
+    private void resumeAll() {
+        if (pausedChannels.isEmpty()) {
+            return;
+        }
+        for (Channel channel : pausedChannels) {
+            if (pausedChannels.remove(channel)) {
+                channel.closeFuture().removeListener(removeOnClose);
+                if (channel.isActive()) {
+                    channel.config().setAutoRead(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭转发器，发送剩余消息，之后到达的消息直接丢弃
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (lingerScheduler != null) {
+            lingerScheduler.shutdownNow();
+        }
+        if (partitions == null) {
+            return;
+        }
+        closed = true;
+        for (Partition partition : partitions) {
+            List<PublishMessage> batch;
+            synchronized (partition) {
+                batch = partition.buffer.isEmpty() ? null : partition.drain();
+            }
+            if (batch != null) {
+                partition.submit(batch);
+            }
+            partition.sender.shutdown();
+        }
+        for (Partition partition : partitions) {
+            try {
+                if (!partition.sender.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.warn("上行消息转发分区关闭超时: partition={}", partition.index);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("上行消息转发器已关闭");
+    }
+
+    /**
+     * 转发分区，缓冲区由分区对象锁保护；发送线程的队列有界，满时拒绝而不是无限排队
+     */
+    private final class Partition {
+        private final int index;
+        private final ThreadPoolExecutor sender;
+        private List<PublishMessage> buffer;
+        private long bufferBytes;
+        private long firstMessageNanos;
+
+        private Partition(int index) {
+            this.index = index;
+            this.sender = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    new DefaultThreadFactory("telemetry-forward-" + index, true),
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.buffer = new ArrayList<>(batchSize);
+        }
+
+        private List<PublishMessage> drain() {
+            List<PublishMessage> batch = buffer;
+            buffer = new ArrayList<>(batchSize);
+            bufferBytes = 0;
+            return batch;
+        }
+
+        private void submit(List<PublishMessage> batch) {
+            try {
+                sender.execute(() -> send(this, batch));
+            } catch (RejectedExecutionException e) {
+                discard(this, batch, sender.isShutdown());
+            }
+        }
+    }
+}
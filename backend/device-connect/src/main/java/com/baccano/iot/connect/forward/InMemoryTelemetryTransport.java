@@ -0,0 +1,74 @@
+package com.baccano.iot.connect.forward;
+
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+import lombok.Getter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存转发通道，用于测试与本地开发，保存收到的消息副本
+ *
+ * @author baccano-iot
+ */
+@Component
+@ConditionalOnProperty(name = "mqtt.forward.transport", havingValue = "memory")
+public class InMemoryTelemetryTransport implements TelemetryTransport {
+    /**
+     * 收到的消息副本
+     */
+    @Getter
+    private final Queue<Record> records = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 收到的批次数
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    @Override
+    public void send(List<PublishMessage> batch) {
+        List<Record> copies = new ArrayList<>(batch.size());
+        for (PublishMessage message : batch) {
+            copies.add(new Record(message.getDeviceKey(), message.getTopic(), message.payloadBytes()));
+        }
+        records.addAll(copies);
+        batchCount.incrementAndGet();
+    }
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    /**
+     * 收到的批次数
+     *
+     * @return 批次数
+     */
+    public long batchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * 清空已收到的消息
+     */
+    public void clear() {
+        records.clear();
+        batchCount.set(0);
+    }
+
+    /**
+     * 消息副本
+     *
+     * @param deviceKey 设备Key
+     * @param topic     MQTT主题
+     * @param payload   消息体
+     */
+    public record Record(String deviceKey, String topic, byte[] payload) {
+    }
+}
@@ -0,0 +1,85 @@
+package com.baccano.iot.connect.forward;
+
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于RocketMQ批量发送的转发通道
+ * <p>
+ * 一个批次对应一次 {@code producer.send(Collection)}，消息Tag为MQTT主题的最后一级
+ * （telemetry/event/response），Key为设备Key，便于下游按设备检索。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "mqtt.forward.transport", havingValue = "rocketmq", matchIfMissing = true)
+public class RocketMqTelemetryTransport implements TelemetryTransport {
+    @Value("${spring.rocketmq.name-server}")
+    private String nameServer;
+
+    @Value("${spring.rocketmq.producer.group}")
+    private String producerGroup;
+
+    @Value("${mqtt.forward.topic}")
+    private String topic;
+
+    private DefaultMQProducer producer;
+
+    @PostConstruct
+    public void start() throws Exception {
+        producer = new DefaultMQProducer(producerGroup);
+        producer.setNamesrvAddr(nameServer);
+        producer.start();
+        log.info("RocketMQ转发通道启动成功: nameServer={}, topic={}", nameServer, topic);
+    }
+
+    @Override
+    public void send(List<PublishMessage> batch) throws Exception {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (PublishMessage publishMessage : batch) {
+            Message message = new Message(topic, tagOf(publishMessage.getTopic()), publishMessage.getDeviceKey(),
+                    publishMessage.payloadBytes());
+            message.putUserProperty("mqttTopic", publishMessage.getTopic());
+            message.putUserProperty("qos", String.valueOf(publishMessage.getQos()));
+            message.putUserProperty("receiveTime", String.valueOf(publishMessage.getReceiveTimeMillis()));
+            messages.add(message);
+        }
+        SendResult result = producer.send(messages);
+        if (result.getSendStatus() != SendStatus.SEND_OK) {
+            log.warn("RocketMQ批量发送状态异常: status={}, size={}", result.getSendStatus(), messages.size());
+        }
+    }
+
+    @Override
+    public String name() {
+        return "rocketmq";
+    }
+
+    /**
+     * 取MQTT主题最后一级作为消息Tag
+     */
+    private String tagOf(String mqttTopic) {
+        int index = mqttTopic.lastIndexOf('/');
+        return index >= 0 ? mqttTopic.substring(index + 1) : mqttTopic;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (producer != null) {
+            producer.shutdown();
+        }
+    }
+}
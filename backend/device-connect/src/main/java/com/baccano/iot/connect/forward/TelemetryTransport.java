@@ -0,0 +1,30 @@
+package com.baccano.iot.connect.forward;
+
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+
+import java.util.List;
+
+/**
+ * 上行消息转发通道（RocketMQ、NATS、内存等）
+ * <p>
+ * {@link #send(List)} 返回后批次中的消息体会被转发器立即释放，
+ * 实现方如需异步发送，必须在返回前复制所需的数据。
+ *
+ * @author baccano-iot
+ */
+public interface TelemetryTransport {
+    /**
+     * 发送一批消息，同一批次内的消息来自同一分区，保持设备维度的先后顺序
+     *
+     * @param batch 消息批次
+     * @throws Exception 发送失败
+     */
+    void send(List<PublishMessage> batch) throws Exception;
+
+    /**
+     * 通道名称
+     *
+     * @return 名称
+     */
+    String name();
+}
@@ -0,0 +1,141 @@
+package com.baccano.iot.connect.mqtt;
+
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * 连接出站缓冲监控
+ * <p>
+ * 定期采样每个连接出站缓冲中待写出的字节数，记录分布和总量；出站缓冲超过上限的连接视为慢消费者，直接断开。
+ * 正常情况下高水位和在途窗口已限制了单个连接的出站缓冲，超限通常意味着设备长期不读取（例如只发不收的异常设备
+ * 持续收到PUBACK）。同时导出ByteBuf分配器的内存占用。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class ConnectionBufferMonitor {
+    /**
+     * 单连接出站缓冲上限，单位：字节
+     */
+    @Value("${mqtt.connection.maxOutboundBytes}")
+    private Long maxOutboundBytes;
+
+    /**
+     * 采样周期，单位：秒
+     */
+    @Value("${mqtt.connection.sampleInterval}")
+    private Integer sampleInterval;
+
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Autowired
+    private MqttServer mqttServer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicInteger unwritable = new AtomicInteger();
+    private DistributionSummary bytesPerConnection;
+    private Counter slowConsumerCounter;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        bytesPerConnection = DistributionSummary.builder("mqtt.connection.outbound.bytes")
+                .description("单个连接出站缓冲中待写出的字节数")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("mqtt.connection.outbound.total", totalBytes, AtomicLong::get)
+                .description("全部连接出站缓冲中待写出的字节数")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("mqtt.connection.unwritable", unwritable, AtomicInteger::get)
+                .description("出站缓冲超过高水位的连接数")
+                .register(meterRegistry);
+        slowConsumerCounter = Counter.builder("mqtt.connection.slow_consumer")
+                .description("出站缓冲超限被断开的连接数")
+                .register(meterRegistry);
+        registerAllocatorGauge("mqtt.allocator.direct.used", "分配器已占用的堆外内存", ByteBufAllocatorMetric::usedDirectMemory);
+        registerAllocatorGauge("mqtt.allocator.heap.used", "分配器已占用的堆内存", ByteBufAllocatorMetric::usedHeapMemory);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-buffer-monitor", true));
+        scheduler.scheduleWithFixedDelay(this::sampleQuietly, sampleInterval, sampleInterval, TimeUnit.SECONDS);
+    }
+
+    private void sampleQuietly() {
+        try {
+            sample();
+        } catch (Exception e) {
+            log.error("连接出站缓冲采样失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 出站缓冲的字节计数是原子更新的，可以在EventLoop之外读取
+     */
+    private void sample() {
+        long total = 0;
+        int unwritableCount = 0;
+        for (ClientConnection connection : clientRegistry.connections()) {
+            Channel channel = connection.getChannel();
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            if (buffer == null) {
+                continue;
+            }
+            long bytes = buffer.totalPendingWriteBytes();
+            total += bytes;
+            bytesPerConnection.record(bytes);
+            if (!channel.isWritable()) {
+                unwritableCount++;
+            }
+            if (bytes > maxOutboundBytes) {
+                slowConsumerCounter.increment();
+                log.warn("连接出站缓冲超限，断开慢消费者: deviceKey={}, bytes={}, max={}",
+                        connection.getDeviceKey(), bytes, maxOutboundBytes);
+                channel.close();
+            }
+        }
+        totalBytes.set(total);
+        unwritable.set(unwritableCount);
+    }
+
+    private void registerAllocatorGauge(String name, String description, ToLongFunction<ByteBufAllocatorMetric> value) {
+        Gauge.builder(name, mqttServer, server -> server.getAllocator() instanceof ByteBufAllocatorMetricProvider provider
+                        ? value.applyAsLong(provider.metric())
+                        : Double.NaN)
+                .description(description)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.baccano.iot.connect.mqtt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳超时检测
+ * <p>
+ * 全部连接共用一个 {@link HashedWheelTimer}，不再为每个连接在EventLoop上维护 {@code IdleStateHandler} 的定时任务。
+ * 收到数据只更新连接的最后读取时间，不重新调度；定时到期时按最后读取时间计算剩余时间，未超时则按剩余时间重新入轮，
+ * 因此每个连接每个心跳周期最多调度一次。定时到期后时间轮线程只把检查提交到连接所属EventLoop，
+ * 心跳状态的读写和重新入轮都在EventLoop上完成，不会与CONNECT时的重新计时交错而留下两个有效的定时。
+ * <p>
+ * 连接建立后到收到CONNECT之前按 {@code connectTimeout} 计时；收到CONNECT后按设备声明的Keep Alive的1.5倍计时
+ * （MQTT规范3.1.2.10），Keep Alive为0表示设备关闭了心跳，不再检测。超时后在连接所属EventLoop上向后传递
+ * {@link IdleStateEvent}，由 {@link MqttHandler} 断开连接。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+@ChannelHandler.Sharable
+public class KeepAliveHandler extends ChannelInboundHandlerAdapter {
+    private static final AttributeKey<Tracker> TRACKER = AttributeKey.valueOf("mqtt.keepAlive");
+
+    /**
+     * 建立连接后等待CONNECT的时长，单位：秒
+     */
+    @Value("${mqtt.keepAlive.connectTimeout}")
+    private Integer connectTimeout;
+
+    /**
+     * 时间轮刻度，单位：毫秒，决定超时检测的精度
+     */
+    @Value("${mqtt.keepAlive.tickDuration}")
+    private Integer tickDuration;
+
+    /**
+     * 时间轮槽数
+     */
+    @Value("${mqtt.keepAlive.ticksPerWheel}")
+    private Integer ticksPerWheel;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private HashedWheelTimer timer;
+    private Counter timeoutCounter;
+
+    @PostConstruct
+    public void start() {
+        timer = new HashedWheelTimer(new DefaultThreadFactory("mqtt-keepalive", true),
+                tickDuration, TimeUnit.MILLISECONDS, ticksPerWheel);
+        timer.start();
+        timeoutCounter = Counter.builder("mqtt.keepalive.timeouts")
+                .description("心跳超时断开的连接数")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        Tracker tracker = new Tracker(ctx);
+        ctx.channel().attr(TRACKER).set(tracker);
+        tracker.reschedule(TimeUnit.SECONDS.toNanos(connectTimeout));
+        ctx.fireChannelActive();
+    }
+
+    /**
+     * 每次读取只写一次时间戳，放在解码器之前，一次读取中的多个报文只记录一次
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        Tracker tracker = ctx.channel().attr(TRACKER).get();
+        if (tracker != null) {
+            tracker.lastReadNanos = System.nanoTime();
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        Tracker tracker = ctx.channel().attr(TRACKER).getAndSet(null);
+        if (tracker != null) {
+            tracker.cancel();
+        }
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * 按CONNECT中声明的Keep Alive重新计时，必须在Channel所属EventLoop中调用
+     *
+     * @param ctx              任意处理器的上下文，用于定位连接
+     * @param keepAliveSeconds 设备声明的Keep Alive，单位：秒，0表示关闭心跳
+     */
+    public void keepAlive(ChannelHandlerContext ctx, int keepAliveSeconds) {
+        Tracker tracker = ctx.channel().attr(TRACKER).get();
+        if (tracker == null) {
+            return;
+        }
+        tracker.lastReadNanos = System.nanoTime();
+        if (keepAliveSeconds <= 0) {
+            tracker.cancel();
+            return;
+        }
+        // 1.5倍Keep Alive，换算为毫秒避免奇数秒取整
+        tracker.reschedule(TimeUnit.MILLISECONDS.toNanos(keepAliveSeconds * 1500L));
+    }
+
+    /**
+     * 单个连接的心跳状态，只在连接所属EventLoop中访问
+     */
+    private final class Tracker implements TimerTask {
+        private final ChannelHandlerContext ctx;
+        private long lastReadNanos = System.nanoTime();
+        private long timeoutNanos;
+        private Timeout timeout;
+
+        private Tracker(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        private void reschedule(long timeoutNanos) {
+            this.timeoutNanos = timeoutNanos;
+            Timeout previous = timeout;
+            if (previous != null) {
+                previous.cancel();
+            }
+            timeout = timer.newTimeout(this, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void cancel() {
+            timeoutNanos = 0;
+            Timeout previous = timeout;
+            if (previous != null) {
+                previous.cancel();
+                timeout = null;
+            }
+        }
+
+        /**
+         * 在时间轮线程上执行，检查交给EventLoop
+         */
+        @Override
+        public void run(Timeout expired) {
+            if (!expired.isCancelled()) {
+                ctx.executor().execute(() -> check(expired));
+            }
+        }
+
+        /**
+         * 在EventLoop上检查是否超时，未超时按剩余时间重新入轮
+         *
+         * @param expired 到期的定时，已被重新计时或取消替换掉时忽略
+         */
+        private void check(Timeout expired) {
+            long period = timeoutNanos;
+            if (expired != timeout || period <= 0 || !ctx.channel().isActive()) {
+                return;
+            }
+            long remaining = period - (System.nanoTime() - lastReadNanos);
+            if (remaining > 0) {
+                timeout = timer.newTimeout(this, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            timeout = null;
+            timeoutCounter.increment();
+            ctx.fireUserEventTriggered(IdleStateEvent.ALL_IDLE_STATE_EVENT);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+}
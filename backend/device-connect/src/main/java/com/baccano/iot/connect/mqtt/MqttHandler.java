@@ -1,104 +1,377 @@
 package com.baccano.iot.connect.mqtt;
 
+import com.baccano.iot.connect.admission.ConnectAdmissionController;
+import com.baccano.iot.connect.auth.CredentialVerifier;
+import com.baccano.iot.connect.cluster.DownlinkRouter;
+import com.baccano.iot.connect.executor.SessionExecutor;
+import com.baccano.iot.connect.mqtt.publish.PublishDispatcher;
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+import com.baccano.iot.connect.mqtt.qos.InflightWindow;
+import com.baccano.iot.connect.mqtt.qos.QosDeliveryManager;
+import com.baccano.iot.connect.mqtt.retain.RetainedMessage;
+import com.baccano.iot.connect.mqtt.retain.RetainedMessageStore;
+import com.baccano.iot.connect.mqtt.tls.MqttTlsContext;
+import com.baccano.iot.connect.mqtt.topic.SubscriptionRouter;
+import com.baccano.iot.connect.mqtt.topic.Topics;
+import com.baccano.iot.connect.offline.OfflineQueue;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
 import com.baccano.iot.connect.service.DeviceSessionService;
+import com.baccano.iot.connect.session.HeartbeatAggregator;
+import com.baccano.iot.connect.session.SessionTakeover;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 /**
  * MQTT消息处理器
+ * <p>
+ * 单例在所有Channel间共享，自身不持有连接状态，连接状态统一由 {@link ClientRegistry} 管理。
+ * <p>
+ * 同时支持MQTT 3.1.1和5.0，编解码器按CONNECT中的协议级别自动切换。5.0连接额外支持：
+ * CONNECT中的Receive Maximum（限制下行在途数）和Session Expiry Interval（决定会话是否持久），
+ * CONNACK中声明服务端的Receive Maximum和Topic Alias Maximum，上行主题别名，
+ * 以及带原因码的CONNACK/UNSUBACK/DISCONNECT。
  *
  * @author baccano-iot
  */
 @Slf4j
 @Component
+@ChannelHandler.Sharable
 public class MqttHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * MQTT 5属性标识符（规范2.2.2.2），Netty只在已废弃的MqttPropertyType中公开
+     */
+    private static final int SESSION_EXPIRY_INTERVAL = 0x11;
+    private static final int RECEIVE_MAXIMUM = 0x21;
+    private static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+    private static final int TOPIC_ALIAS = 0x23;
+    private static final int MAXIMUM_PACKET_SIZE = 0x27;
+
+    @Autowired
+    private KeepAliveHandler keepAliveHandler;
+
     @Autowired
     private DeviceSessionService deviceSessionService;
 
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Autowired
+    private PublishDispatcher publishDispatcher;
+
+    @Autowired
+    private QosDeliveryManager qosDeliveryManager;
+
+    @Autowired
+    private SubscriptionRouter subscriptionRouter;
+
+    @Autowired
+    private ConnectAdmissionController connectAdmissionController;
+
+    @Autowired
+    private SessionExecutor sessionExecutor;
+
+    @Autowired
+    private SessionTakeover sessionTakeover;
+
+    @Autowired
+    private HeartbeatAggregator heartbeatAggregator;
+
+    @Autowired
+    private DownlinkRouter downlinkRouter;
+
+    @Autowired
+    private OfflineQueue offlineQueue;
+
+    @Autowired
+    private RetainedMessageStore retainedMessageStore;
+
+    @Autowired
+    private CredentialVerifier credentialVerifier;
+
+    /**
+     * 单个会话上行未完成QoS 2报文数上限，作为Receive Maximum告知MQTT 5客户端
+     */
+    @Value("${mqtt.qos.receiveMaximum}")
+    private Integer receiveMaximum;
+
+    /**
+     * MQTT 5上行主题别名上限，0表示不支持别名
+     */
+    @Value("${mqtt.protocol.topicAliasMaximum}")
+    private Integer topicAliasMaximum;
+
     /**
-     * 存储设备主题订阅关系
+     * 单个报文最大字节数，作为Maximum Packet Size告知MQTT 5客户端
      */
-    private final Map<String, String> deviceTopicMap = new HashMap<>();
+    @Value("${mqtt.connection.maxPacketSize}")
+    private Integer maxPacketSize;
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        if (msg instanceof MqttMessage) {
-            MqttMessage mqttMessage = (MqttMessage) msg;
-            MqttFixedHeader fixedHeader = mqttMessage.fixedHeader();
-            MqttMessageType messageType = fixedHeader.messageType();
-
-            switch (messageType) {
-                case CONNECT -> handleConnect(ctx, (MqttConnectMessage) mqttMessage);
-                case CONNACK -> handleConnAck(ctx, (MqttConnAckMessage) mqttMessage);
-                case PUBLISH -> handlePublish(ctx, (MqttPublishMessage) mqttMessage);
-                case PUBACK -> handlePubAck(ctx, (MqttPubAckMessage) mqttMessage);
-                // case PUBREC -> handlePubRec(ctx, (MqttPubRecMessage) mqttMessage);
-                // case PUBREL -> handlePubRel(ctx, (MqttPubRelMessage) mqttMessage);
-                // case PUBCOMP -> handlePubComp(ctx, (MqttPubCompMessage) mqttMessage);
-                case SUBSCRIBE -> handleSubscribe(ctx, (MqttSubscribeMessage) mqttMessage);
-                case SUBACK -> handleSubAck(ctx, (MqttSubAckMessage) mqttMessage);
-                case UNSUBSCRIBE -> handleUnsubscribe(ctx, (MqttUnsubscribeMessage) mqttMessage);
-                case UNSUBACK -> handleUnsubAck(ctx, (MqttUnsubAckMessage) mqttMessage);
-                case PINGREQ -> handlePingReq(ctx, mqttMessage);
-                case PINGRESP -> handlePingResp(ctx, mqttMessage);
-                case DISCONNECT -> handleDisconnect(ctx, mqttMessage);
-                default -> log.warn("未知MQTT消息类型: {}", messageType);
+        try {
+            if (msg instanceof MqttMessage) {
+                MqttMessage mqttMessage = (MqttMessage) msg;
+                if (mqttMessage.decoderResult().isFailure()) {
+                    handleDecodeFailure(ctx, mqttMessage.decoderResult().cause());
+                    return;
+                }
+                MqttFixedHeader fixedHeader = mqttMessage.fixedHeader();
+                MqttMessageType messageType = fixedHeader.messageType();
+                if (messageType != MqttMessageType.CONNECT) {
+                    recordHeartbeat(ctx.channel());
+                }
+
+                switch (messageType) {
+                    case CONNECT -> handleConnect(ctx, (MqttConnectMessage) mqttMessage);
+                    case CONNACK -> handleConnAck(ctx, (MqttConnAckMessage) mqttMessage);
+                    case PUBLISH -> handlePublish(ctx, (MqttPublishMessage) mqttMessage);
+                    case PUBACK -> handlePubAck(ctx, (MqttPubAckMessage) mqttMessage);
+                    case PUBREC -> handlePubRec(ctx, mqttMessage);
+                    case PUBREL -> handlePubRel(ctx, mqttMessage);
+                    case PUBCOMP -> handlePubComp(ctx, mqttMessage);
+                    case SUBSCRIBE -> handleSubscribe(ctx, (MqttSubscribeMessage) mqttMessage);
+                    case SUBACK -> handleSubAck(ctx, (MqttSubAckMessage) mqttMessage);
+                    case UNSUBSCRIBE -> handleUnsubscribe(ctx, (MqttUnsubscribeMessage) mqttMessage);
+                    case UNSUBACK -> handleUnsubAck(ctx, (MqttUnsubAckMessage) mqttMessage);
+                    case PINGREQ -> handlePingReq(ctx, mqttMessage);
+                    case PINGRESP -> handlePingResp(ctx, mqttMessage);
+                    case DISCONNECT -> handleDisconnect(ctx, mqttMessage);
+                    default -> log.warn("未知MQTT消息类型: {}", messageType);
+                }
             }
+        } finally {
+            // 解码出的PUBLISH持有池化内存，需要下游保留的部分已在处理时retain
+            ReferenceCountUtil.release(msg);
         }
     }
 
     /**
-     * 处理连接请求
+     * 报文解码失败（超过最大报文长度或格式错误）：解码器之后会丢弃该连接的全部输入，只能断开
+     */
+    private void handleDecodeFailure(ChannelHandlerContext ctx, Throwable cause) {
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        log.warn("MQTT报文解码失败，断开连接: channel={}, deviceKey={}, error={}", ctx.channel().id().asShortText(),
+                connection != null ? connection.getDeviceKey() : null, cause.getMessage());
+        disconnect(ctx, connection, cause instanceof TooLongFrameException
+                ? MqttReasonCodes.Disconnect.PACKET_TOO_LARGE
+                : MqttReasonCodes.Disconnect.MALFORMED_PACKET);
+    }
+
+    /**
+     * 处理连接请求：先经过准入控制，放行后再建立会话
      */
     private void handleConnect(ChannelHandlerContext ctx, MqttConnectMessage msg) {
+        // 收到CONNECT后按设备声明的Keep Alive计时，准入排队和凭证校验期间同样适用
+        keepAliveHandler.keepAlive(ctx, msg.variableHeader().keepAliveTimeSeconds());
+        InetSocketAddress address = (InetSocketAddress) ctx.channel().remoteAddress();
+        String ip = address.getAddress().getHostAddress();
+        int version = msg.variableHeader().version();
+        connectAdmissionController.admit(ctx.channel(), ip,
+                () -> doConnect(ctx, msg),
+                () -> rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE));
+    }
+
+    /**
+     * 拒绝连接：回复CONNACK后断开，MQTT 5连接使用对应的5.0原因码
+     *
+     * @param version    协议级别
+     * @param returnCode 3.1.1返回码
+     */
+    private void rejectConnect(ChannelHandlerContext ctx, int version, MqttConnectReturnCode returnCode) {
+        if (version == MqttVersion.MQTT_5.protocolLevel()) {
+            returnCode = switch (returnCode) {
+                case CONNECTION_REFUSED_SERVER_UNAVAILABLE -> MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE_5;
+                case CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD -> MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USERNAME_OR_PASSWORD;
+                case CONNECTION_REFUSED_NOT_AUTHORIZED -> MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED_5;
+                case CONNECTION_REFUSED_IDENTIFIER_REJECTED -> MqttConnectReturnCode.CONNECTION_REFUSED_CLIENT_IDENTIFIER_NOT_VALID;
+                default -> returnCode;
+            };
+        }
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
+        MqttConnAckVariableHeader variableHeader = new MqttConnAckVariableHeader(returnCode, false);
+        ctx.writeAndFlush(new MqttConnAckMessage(fixedHeader, variableHeader)).addListener(ChannelFutureListener.CLOSE);
+        log.debug("拒绝设备连接: channel={}, returnCode={}", ctx.channel().id().asShortText(), returnCode);
+    }
+
+    /**
+     * 服务端主动断开连接：MQTT 5连接先发送带原因码的DISCONNECT
+     *
+     * @param connection 设备连接，未完成CONNECT时为null
+     * @param reason     断开原因
+     */
+    private void disconnect(ChannelHandlerContext ctx, ClientConnection connection, MqttReasonCodes.Disconnect reason) {
+        if (connection == null || connection.getProtocolVersion() != MqttVersion.MQTT_5.protocolLevel()) {
+            ctx.close();
+            return;
+        }
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0);
+        MqttReasonCodeAndPropertiesVariableHeader variableHeader =
+                new MqttReasonCodeAndPropertiesVariableHeader(reason.byteValue(), MqttProperties.NO_PROPERTIES);
+        ctx.writeAndFlush(new MqttMessage(fixedHeader, variableHeader)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 读取整数属性
+     *
+     * @return 属性值，未携带时返回默认值
+     */
+    private static int intProperty(MqttProperties properties, int propertyId, int defaultValue) {
+        MqttProperties.MqttProperty<?> property = properties.getProperty(propertyId);
+        return property != null && property.value() instanceof Integer value ? value : defaultValue;
+    }
+
+    /**
+     * 建立连接（已通过准入控制）
+     */
+    private void doConnect(ChannelHandlerContext ctx, MqttConnectMessage msg) {
         MqttConnectPayload payload = msg.payload();
         String clientId = payload.clientIdentifier();
         String username = payload.userName();
-        String password = new String(payload.passwordInBytes());
+        String password = payload.passwordInBytes() != null
+                ? new String(payload.passwordInBytes(), StandardCharsets.UTF_8)
+                : "";
         String protocol = "mqtt";
+        MqttConnectVariableHeader connectHeader = msg.variableHeader();
+        int version = connectHeader.version();
+        boolean mqtt5 = version == MqttVersion.MQTT_5.protocolLevel();
+        // 3.1.1的cleanSession在5.0中为cleanStart：为true时丢弃之前的会话
+        boolean cleanStart = connectHeader.isCleanSession();
+        // 会话在断开后是否保留：3.1.1由cleanSession决定，5.0由会话过期间隔决定
+        boolean persistent = mqtt5
+                ? intProperty(connectHeader.properties(), SESSION_EXPIRY_INTERVAL, 0) > 0
+                : !cleanStart;
+        int clientReceiveMaximum = mqtt5
+                ? intProperty(connectHeader.properties(), RECEIVE_MAXIMUM, 0)
+                : 0;
 
         // 获取客户端IP地址
         InetSocketAddress address = (InetSocketAddress) ctx.channel().remoteAddress();
         String ip = address.getAddress().getHostAddress();
         int port = address.getPort();
+        // TLS端口上设备证书的ID，明文端口或设备未提供证书时为null
+        String certificateId = MqttTlsContext.certificateId(ctx.channel());
+
+        log.info("设备连接请求: clientId={}, username={}, ip={}:{}, version={}, cleanStart={}, persistent={}, certificateId={}",
+                clientId, username, ip, port, version, cleanStart, persistent, certificateId);
+
+        // 校验设备凭证：缓存命中时在当前EventLoop上直接完成，未命中时读取Redis后回到EventLoop
+        CompletableFuture<CredentialVerifier.Result> verification =
+                credentialVerifier.verify(username, password, certificateId);
+        BiConsumer<CredentialVerifier.Result, Throwable> onVerified = (result, failure) -> {
+            if (failure instanceof RejectedExecutionException) {
+                // 会话IO队列已满，拒绝次数由执行器计数
+                rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                return;
+            }
+            if (failure != null) {
+                log.error("校验设备凭证失败: clientId={}, username={}, error={}", clientId, username, failure.getMessage());
+                rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                return;
+            }
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            if (result == CredentialVerifier.Result.BAD_CREDENTIALS) {
+                rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD);
+                log.warn("设备连接失败: 用户名或密码错误, clientId={}, username={}", clientId, username);
+                return;
+            }
+            if (result == CredentialVerifier.Result.NOT_AUTHORIZED) {
+                rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED);
+                log.warn("设备连接失败: 凭证已禁用或已过期, clientId={}, username={}", clientId, username);
+                return;
+            }
+            // 清理会话：丢弃该设备之前的订阅
+            subscriptionRouter.unsubscribeAll(username);
+
+            // 注册设备连接
+            ClientConnection connection = new ClientConnection(ctx.channel(), username, clientId, version, persistent,
+                    qosDeliveryManager.newWindow(clientReceiveMaximum),
+                    mqtt5 && topicAliasMaximum > 0 ? new TopicAliases(topicAliasMaximum) : null);
+            ClientConnection previous = clientRegistry.register(connection);
+            if (previous != null) {
+                // 同一设备在本节点已有连接：关闭旧连接，在途消息迁移到新连接
+                sessionTakeover.takeoverLocal(previous, connection);
+            }
 
-        log.info("设备连接请求: clientId={}, username={}, ip={}:{}", clientId, username, ip, port);
-
-        // 验证设备凭证（这里简化处理，实际应该调用auth-service进行验证）
-        boolean isValid = true;
-        if (isValid) {
-            // 创建设备会话
-            deviceSessionService.online(username, clientId, protocol, ip, port);
-
-            // 存储设备主题订阅关系
-            deviceTopicMap.put(clientId, username);
-
-            // 发送连接确认
-            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
-            MqttConnAckVariableHeader variableHeader = new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, false);
-            MqttConnAckMessage connAckMessage = new MqttConnAckMessage(fixedHeader, variableHeader);
-            ctx.writeAndFlush(connAckMessage);
-            log.info("设备连接成功: clientId={}, username={}", clientId, username);
+            // 创建设备会话（Redis阻塞IO在会话执行器上完成），完成后回到EventLoop发送连接确认
+            sessionExecutor.submit(username, () -> {
+                        if (cleanStart) {
+                            // 清理会话：丢弃之前持久会话遗留的离线消息
+                            offlineQueue.clear(username);
+                        }
+                        deviceSessionService.online(username, clientId, protocol, ip, port, !persistent);
+                        return null;
+                    })
+                    .whenCompleteAsync((ignored, error) -> {
+                        if (error instanceof RejectedExecutionException) {
+                            releaseConnection(ctx.channel());
+                            rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                            return;
+                        }
+                        if (error != null) {
+                            log.error("创建设备会话失败: clientId={}, username={}, error={}",
+                                    clientId, username, error.getMessage(), error);
+                            releaseConnection(ctx.channel());
+                            rejectConnect(ctx, version, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                            return;
+                        }
+                        // 订阅随连接释放，不属于持久会话，sessionPresent始终为0，设备需重新订阅
+                        if (mqtt5) {
+                            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
+                            MqttConnAckVariableHeader variableHeader = new MqttConnAckVariableHeader(
+                                    MqttConnectReturnCode.CONNECTION_ACCEPTED, false, connAckProperties());
+                            ctx.writeAndFlush(new MqttConnAckMessage(fixedHeader, variableHeader));
+                        } else {
+                            ctx.writeAndFlush(MqttPackets.connAckAccepted());
+                        }
+                        connection.establish();
+                        if (persistent && !cleanStart) {
+                            // 队列已满时离线消息留在队列中，下次连接时投递
+                            sessionExecutor.execute(username, () -> downlinkRouter.deliverOffline(connection));
+                        }
+                        log.info("设备连接成功: clientId={}, username={}", clientId, username);
+                    }, ctx.executor());
+        };
+        if (verification.isDone()) {
+            verification.whenComplete(onVerified);
         } else {
-            // 发送连接拒绝
-            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
-            MqttConnAckVariableHeader variableHeader = new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, false);
-            MqttConnAckMessage connAckMessage = new MqttConnAckMessage(fixedHeader, variableHeader);
-            ctx.writeAndFlush(connAckMessage);
-            ctx.close();
-            log.warn("设备连接失败: 用户名或密码错误, clientId={}, username={}", clientId, username);
+            verification.whenCompleteAsync(onVerified, ctx.executor());
         }
     }
 
+    /**
+     * MQTT 5 CONNACK属性：服务端接收最大值、最大报文长度和主题别名上限
+     */
+    private MqttProperties connAckProperties() {
+        MqttProperties properties = new MqttProperties();
+        properties.add(new MqttProperties.IntegerProperty(RECEIVE_MAXIMUM, receiveMaximum));
+        properties.add(new MqttProperties.IntegerProperty(MAXIMUM_PACKET_SIZE, maxPacketSize));
+        if (topicAliasMaximum > 0) {
+            properties.add(new MqttProperties.IntegerProperty(TOPIC_ALIAS_MAXIMUM, topicAliasMaximum));
+        }
+        return properties;
+    }
+
     /**
      * 处理连接确认
      */
@@ -114,66 +387,135 @@ public class MqttHandler extends ChannelInboundHandlerAdapter {
         MqttPublishVariableHeader variableHeader = msg.variableHeader();
         String topic = variableHeader.topicName();
         int packetId = variableHeader.packetId();
-        byte[] payload = new byte[msg.payload().readableBytes()];
-        msg.payload().readBytes(payload);
 
-        log.info("收到发布消息: topic={}, packetId={}, payload={}", topic, packetId, new String(payload));
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        if (connection == null) {
+            // 未完成CONNECT就发布消息，按协议要求断开连接
+            log.warn("未认证连接发布消息，断开连接: channel={}, topic={}", ctx.channel().id().asShortText(), topic);
+            ctx.close();
+            return;
+        }
 
-        // 处理QoS等级
-        if (fixedHeader.qosLevel() == MqttQoS.AT_LEAST_ONCE) {
-            // 发送PUBACK
-            MqttFixedHeader pubAckFixedHeader = new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
-            MqttMessageIdVariableHeader pubAckVariableHeader = MqttMessageIdVariableHeader.from(packetId);
-            MqttPubAckMessage pubAckMessage = new MqttPubAckMessage(pubAckFixedHeader, pubAckVariableHeader);
-            ctx.writeAndFlush(pubAckMessage);
+        // MQTT 5主题别名：携带主题时登记，主题为空时按别名还原
+        int topicAlias = intProperty(variableHeader.properties(), TOPIC_ALIAS, 0);
+        if (topicAlias != 0) {
+            TopicAliases topicAliases = connection.getTopicAliases();
+            topic = topicAliases != null ? topicAliases.resolve(topic, topicAlias) : null;
+            if (topic == null) {
+                log.warn("非法的主题别名，断开连接: deviceKey={}, topicAlias={}", connection.getDeviceKey(), topicAlias);
+                disconnect(ctx, connection, MqttReasonCodes.Disconnect.TOPIC_ALIAS_INVALID);
+                return;
+            }
+        } else if (topic.isEmpty()) {
+            log.warn("发布主题为空，断开连接: deviceKey={}", connection.getDeviceKey());
+            disconnect(ctx, connection, MqttReasonCodes.Disconnect.PROTOCOL_ERROR);
+            return;
+        }
+        // 发布主题不能包含通配符，否则会按字面值匹配到通配符订阅节点，并以通配符路径存为保留消息
+        if (!Topics.isValidTopic(topic)) {
+            log.warn("发布主题包含通配符，断开连接: deviceKey={}, topic={}", connection.getDeviceKey(), topic);
+            disconnect(ctx, connection, MqttReasonCodes.Disconnect.TOPIC_NAME_INVALID);
+            return;
+        }
+        // 只能发布到自己的命名空间，否则可以伪造其他设备的上行或向其指令主题注入消息、写入保留消息
+        if (!subscriptionRouter.isAuthorized(connection.getDeviceKey(), topic)) {
+            log.warn("发布主题超出设备命名空间，断开连接: deviceKey={}, topic={}", connection.getDeviceKey(), topic);
+            disconnect(ctx, connection, MqttReasonCodes.Disconnect.NOT_AUTHORIZED);
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("收到发布消息: deviceKey={}, topic={}, packetId={}, payload={}",
+                    connection.getDeviceKey(), topic, packetId, msg.payload().toString(StandardCharsets.UTF_8));
+        }
+
+        // QoS 2重复报文（PUBREC丢失后设备重发）不再向下游分发，只回复PUBREC
+        MqttQoS qos = fixedHeader.qosLevel();
+        if (qos == MqttQoS.EXACTLY_ONCE) {
+            InflightWindow window = connection.getInflightWindow();
+            if (window.isAwaitingRelease(packetId)) {
+                ctx.writeAndFlush(MqttPackets.ack(ctx.alloc(), MqttMessageType.PUBREC, packetId));
+                return;
+            }
+            if (!window.awaitRelease(packetId)) {
+                log.warn("未完成的QoS 2报文超过接收最大值，断开连接: deviceKey={}", connection.getDeviceKey());
+                disconnect(ctx, connection, MqttReasonCodes.Disconnect.RECEIVE_MAXIMUM_EXCEEDED);
+                return;
+            }
         }
-        // 暂时注释掉EXACTLY_ONCE QoS处理，因为Netty版本可能不支持MqttPubRecMessage类
-        /*else if (fixedHeader.qosLevel() == MqttQoS.EXACTLY_ONCE) {
-            // 发送PUBREC
-            MqttFixedHeader pubRecFixedHeader = new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0);
-            MqttMessageIdVariableHeader pubRecVariableHeader = MqttMessageIdVariableHeader.from(packetId);
-            MqttPubRecMessage pubRecMessage = new MqttPubRecMessage(pubRecFixedHeader, pubRecVariableHeader);
-            ctx.writeAndFlush(pubRecMessage);
-        }*/
 
-        // 这里应该将消息转发到RocketMQ或其他消息队列，用于后续处理
+        // 保留消息复制到堆外存储，空消息体表示删除该主题的保留消息
+        if (fixedHeader.isRetain()) {
+            retainedMessageStore.put(topic, qos, msg.payload());
+        }
+
+        // 零拷贝转交下游：retainedSlice与解码缓冲区共享内存，由下游负责释放
+        PublishMessage publishMessage = new PublishMessage(ctx.channel(), connection.getDeviceKey(),
+                connection.getClientId(), topic, qos.value(), fixedHeader.isRetain(),
+                msg.payload().retainedSlice());
+        publishDispatcher.dispatch(publishMessage);
+
+        // 处理QoS等级
+        if (qos == MqttQoS.AT_LEAST_ONCE) {
+            // 发送PUBACK，同一次读取中的多个应答由flushConsolidation合并为一次flush
+            ctx.writeAndFlush(MqttPackets.ack(ctx.alloc(), MqttMessageType.PUBACK, packetId));
+        } else if (qos == MqttQoS.EXACTLY_ONCE) {
+            // 发送PUBREC
+            ctx.writeAndFlush(MqttPackets.ack(ctx.alloc(), MqttMessageType.PUBREC, packetId));
+        }
     }
 
     /**
      * 处理发布确认
      */
     private void handlePubAck(ChannelHandlerContext ctx, MqttPubAckMessage msg) {
-        // 客户端收到发布确认，服务端不需要处理
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        if (connection != null) {
+            long offlineId = qosDeliveryManager.onPubAck(connection, msg.variableHeader().messageId());
+            downlinkRouter.onOutboundComplete(connection, offlineId);
+        }
     }
 
     /**
      * 处理发布接收
      */
-    // private void handlePubRec(ChannelHandlerContext ctx, MqttPubRecMessage msg) {
-    //     // 发送PUBREL
-    //     MqttFixedHeader pubRelFixedHeader = new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0);
-    //     MqttMessageIdVariableHeader pubRelVariableHeader = msg.variableHeader();
-    //     MqttPubRelMessage pubRelMessage = new MqttPubRelMessage(pubRelFixedHeader, pubRelVariableHeader);
-    //     ctx.writeAndFlush(pubRelMessage);
-    // }
+    private void handlePubRec(ChannelHandlerContext ctx, MqttMessage msg) {
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        if (connection != null) {
+            qosDeliveryManager.onPubRec(connection, packetIdOf(msg));
+        }
+    }
 
     /**
      * 处理发布释放
      */
-    // private void handlePubRel(ChannelHandlerContext ctx, MqttPubRelMessage msg) {
-    //     // 发送PUBCOMP
-    //     MqttFixedHeader pubCompFixedHeader = new MqttFixedHeader(MqttMessageType.PUBCOMP, false, MqttQoS.AT_MOST_ONCE, false, 0);
-    //     MqttMessageIdVariableHeader pubCompVariableHeader = msg.variableHeader();
-    //     MqttPubCompMessage pubCompMessage = new MqttPubCompMessage(pubCompFixedHeader, pubCompVariableHeader);
-    //     ctx.writeAndFlush(pubCompMessage);
-    // }
+    private void handlePubRel(ChannelHandlerContext ctx, MqttMessage msg) {
+        int packetId = packetIdOf(msg);
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        if (connection != null) {
+            connection.getInflightWindow().release(packetId);
+        }
+        // 无论报文标识符是否存在都要回复PUBCOMP，设备才能结束流程
+        ctx.writeAndFlush(MqttPackets.ack(ctx.alloc(), MqttMessageType.PUBCOMP, packetId));
+    }
 
     /**
      * 处理发布完成
      */
-    // private void handlePubComp(ChannelHandlerContext ctx, MqttPubCompMessage msg) {
-    //     // 客户端收到发布完成，服务端不需要处理
-    // }
+    private void handlePubComp(ChannelHandlerContext ctx, MqttMessage msg) {
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        if (connection != null) {
+            long offlineId = qosDeliveryManager.onPubComp(connection, packetIdOf(msg));
+            downlinkRouter.onOutboundComplete(connection, offlineId);
+        }
+    }
+
+    /**
+     * 读取应答报文中的报文标识符
+     */
+    private int packetIdOf(MqttMessage msg) {
+        return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+    }
 
     /**
      * 处理订阅请求
@@ -181,10 +523,25 @@ public class MqttHandler extends ChannelInboundHandlerAdapter {
     private void handleSubscribe(ChannelHandlerContext ctx, MqttSubscribeMessage msg) {
         MqttMessageIdVariableHeader variableHeader = msg.variableHeader();
         int packetId = variableHeader.messageId();
-        // 传递空数组给MqttSubAckPayload构造函数
-        MqttSubAckPayload payload = new MqttSubAckPayload(new int[0]);
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        if (connection == null) {
+            log.warn("未认证连接订阅主题，断开连接: channel={}", ctx.channel().id().asShortText());
+            ctx.close();
+            return;
+        }
 
-        log.info("设备订阅请求: packetId={}", packetId);
+        // 逐个过滤器登记订阅，非法或超出设备命名空间的过滤器返回0x80
+        List<MqttTopicSubscription> subscriptions = msg.payload().topicSubscriptions();
+        int[] grantedQosLevels = new int[subscriptions.size()];
+        for (int i = 0; i < subscriptions.size(); i++) {
+            MqttTopicSubscription subscription = subscriptions.get(i);
+            grantedQosLevels[i] = subscriptionRouter.subscribe(connection.getDeviceKey(),
+                    subscription.topicFilter(), subscription.qualityOfService());
+        }
+        MqttSubAckPayload payload = new MqttSubAckPayload(grantedQosLevels);
+
+        log.info("设备订阅请求: deviceKey={}, packetId={}, topics={}",
+                connection.getDeviceKey(), packetId, subscriptions.size());
 
         // 发送订阅确认
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
@@ -192,6 +549,17 @@ public class MqttHandler extends ChannelInboundHandlerAdapter {
         MqttMessageIdVariableHeader subAckVariableHeader = MqttMessageIdVariableHeader.from(packetId);
         MqttSubAckMessage subAckMessage = new MqttSubAckMessage(fixedHeader, subAckVariableHeader, payload);
         ctx.writeAndFlush(subAckMessage);
+
+        // SUBACK之后下发匹配的保留消息，QoS取发布QoS与授予QoS中的较小者
+        for (int i = 0; i < subscriptions.size(); i++) {
+            if (grantedQosLevels[i] == MqttQoS.FAILURE.value()) {
+                continue;
+            }
+            for (RetainedMessage retained : retainedMessageStore.match(subscriptions.get(i).topicFilter())) {
+                MqttQoS qos = MqttQoS.valueOf(Math.min(retained.qos().value(), grantedQosLevels[i]));
+                qosDeliveryManager.deliver(connection, retained.topic(), qos, true, retained.payload());
+            }
+        }
     }
 
     /**
@@ -208,12 +576,23 @@ public class MqttHandler extends ChannelInboundHandlerAdapter {
         MqttMessageIdVariableHeader variableHeader = msg.variableHeader();
         int packetId = variableHeader.messageId();
 
+        List<String> topics = msg.payload().topics();
+        short[] reasonCodes = new short[topics.size()];
+        ClientConnection connection = clientRegistry.get(ctx.channel());
+        for (int i = 0; i < topics.size(); i++) {
+            boolean existed = connection != null && subscriptionRouter.unsubscribe(connection.getDeviceKey(), topics.get(i));
+            reasonCodes[i] = (existed ? MqttReasonCodes.UnsubAck.SUCCESS
+                    : MqttReasonCodes.UnsubAck.NO_SUBSCRIPTION_EXISTED).byteValue();
+        }
+
         log.info("设备取消订阅请求: packetId={}", packetId);
 
-        // 发送取消订阅确认
+        // 发送取消订阅确认，MQTT 5需要逐个过滤器的原因码
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.UNSUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0);
         MqttMessageIdVariableHeader unsubAckVariableHeader = MqttMessageIdVariableHeader.from(packetId);
-        MqttUnsubAckMessage unsubAckMessage = new MqttUnsubAckMessage(fixedHeader, unsubAckVariableHeader);
+        boolean mqtt5 = connection != null && connection.getProtocolVersion() == MqttVersion.MQTT_5.protocolLevel();
+        MqttUnsubAckMessage unsubAckMessage = new MqttUnsubAckMessage(fixedHeader, unsubAckVariableHeader,
+                mqtt5 ? new MqttUnsubAckPayload(reasonCodes) : null);
         ctx.writeAndFlush(unsubAckMessage);
     }
 
@@ -225,21 +604,23 @@ public class MqttHandler extends ChannelInboundHandlerAdapter {
     }
 
     /**
-     * 处理心跳请求
+     * 处理心跳请求，心跳时间已在收到报文时记录
      */
     private void handlePingReq(ChannelHandlerContext ctx, MqttMessage msg) {
-        // 发送心跳响应
-        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0);
-        MqttMessage pingRespMessage = new MqttMessage(fixedHeader);
-        ctx.writeAndFlush(pingRespMessage);
-
-        // 更新设备会话心跳时间
-        String clientId = ctx.channel().id().asShortText();
-        String deviceKey = deviceTopicMap.get(clientId);
-        if (deviceKey != null) {
-            deviceSessionService.heartbeat(deviceKey);
-            log.debug("设备心跳: deviceKey={}", deviceKey);
+        // 发送心跳响应（预编码的共享报文）
+        ctx.writeAndFlush(MqttPackets.pingResp());
+    }
+
+    /**
+     * 更新设备会话心跳时间：持续发布的设备在Keep Alive内不会发送PINGREQ，收到任何报文都说明设备在线。
+     * 每个连接每秒最多记录一次，心跳只写本地，不阻塞EventLoop
+     */
+    private void recordHeartbeat(Channel channel) {
+        ClientConnection connection = clientRegistry.get(channel);
+        if (connection == null) {
+            return;
         }
+        heartbeatAggregator.record(connection);
     }
 
     /**
@@ -253,49 +634,94 @@ public class MqttHandler extends ChannelInboundHandlerAdapter {
      * 处理断开连接请求
      */
     private void handleDisconnect(ChannelHandlerContext ctx, MqttMessage msg) {
-        String clientId = ctx.channel().id().asShortText();
-        String deviceKey = deviceTopicMap.get(clientId);
-        if (deviceKey != null) {
-            deviceSessionService.offline(deviceKey);
-            deviceTopicMap.remove(clientId);
-            log.info("设备主动断开连接: deviceKey={}", deviceKey);
+        ClientConnection connection = releaseConnection(ctx.channel());
+        if (connection != null) {
+            offline(connection);
+            log.info("设备主动断开连接: deviceKey={}", connection.getDeviceKey());
         }
         ctx.close();
     }
 
     /**
-     * 处理空闲状态事件
+     * 处理心跳超时事件（见 {@link KeepAliveHandler}）
      */
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
         if (evt instanceof IdleStateEvent) {
-            IdleStateEvent event = (IdleStateEvent) evt;
             log.warn("设备心跳超时: clientId={}", ctx.channel().id().asShortText());
-            
             // 设备超时，断开连接
-            String clientId = ctx.channel().id().asShortText();
-            String deviceKey = deviceTopicMap.get(clientId);
-            if (deviceKey != null) {
-                deviceSessionService.offline(deviceKey);
-                deviceTopicMap.remove(clientId);
-                log.info("设备心跳超时，断开连接: deviceKey={}", deviceKey);
+            ClientConnection connection = releaseConnection(ctx.channel());
+            if (connection != null) {
+                offline(connection);
+                log.info("设备心跳超时，断开连接: deviceKey={}", connection.getDeviceKey());
             }
             ctx.close();
         }
     }
 
+    /**
+     * 出站缓冲回落到低水位以下，发出因不可写而暂缓的下行消息
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            ClientConnection connection = clientRegistry.get(ctx.channel());
+            if (connection != null && connection.isEstablished()) {
+                qosDeliveryManager.onWritable(connection);
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     /**
      * 处理连接关闭
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        String clientId = ctx.channel().id().asShortText();
-        String deviceKey = deviceTopicMap.get(clientId);
-        if (deviceKey != null) {
-            deviceSessionService.offline(deviceKey);
-            deviceTopicMap.remove(clientId);
-            log.info("设备连接关闭: deviceKey={}", deviceKey);
+        // 连接已被同一设备的新连接替换时返回null，不能把新会话置为离线
+        ClientConnection connection = releaseConnection(ctx.channel());
+        if (connection != null) {
+            offline(connection);
+            log.info("设备连接关闭: deviceKey={}", connection.getDeviceKey());
+        }
+    }
+
+    /**
+     * 异步将设备会话置为离线。会话IO队列已满时不重试（延后执行可能排在同一客户端重新上线之后，把新会话置为离线），
+     * 会话仍留在心跳索引中，超时清理会在会话超时后删除它
+     */
+    private void offline(ClientConnection connection) {
+        String deviceKey = connection.getDeviceKey();
+        String clientId = connection.getClientId();
+        if (!sessionExecutor.execute(deviceKey, () -> deviceSessionService.offline(deviceKey, clientId))) {
+            log.debug("会话IO队列已满，下线交给超时清理: deviceKey={}, clientId={}", deviceKey, clientId);
+        }
+    }
+
+    /**
+     * 注销连接并释放连接上的QoS在途状态，持久会话未完成的下行消息放回离线队列
+     *
+     * @param channel 连接通道
+     * @return 该连接仍是设备当前连接时返回连接，否则返回null
+     */
+    private ClientConnection releaseConnection(Channel channel) {
+        ClientConnection connection = clientRegistry.get(channel);
+        if (connection == null) {
+            return null;
+        }
+        boolean current = clientRegistry.unregister(channel) != null;
+        // 执行推迟到CONNACK之后的下行任务，通道已关闭，任务只释放各自的消息
+        connection.establish();
+        if (connection.isPersistent()) {
+            downlinkRouter.requeueInflight(connection);
+        } else {
+            connection.getInflightWindow().clear();
+        }
+        if (!current) {
+            return null;
         }
+        subscriptionRouter.unsubscribeAll(connection.getDeviceKey());
+        return connection;
     }
 
     /**
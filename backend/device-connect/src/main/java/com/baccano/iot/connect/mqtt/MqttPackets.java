@@ -0,0 +1,117 @@
+package com.baccano.iot.connect.mqtt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+
+/**
+ * 预编码的MQTT应答报文
+ * <p>
+ * 内容固定或只差一个报文标识符的高频报文不经过 {@link io.netty.handler.codec.mqtt.MqttEncoder}，
+ * 直接以字节写出（编码器对ByteBuf原样放行）：PINGRESP和3.1.1的CONNACK是全局共享的只读单例，
+ * 每次写出一个duplicate；PUBACK/PUBREC/PUBREL/PUBCOMP直接写入4字节缓冲区，不创建报文对象。
+ * 这些编码在3.1.1和5.0中相同（5.0省略原因码即表示成功）。
+ * <p>
+ * 广播扇出的QoS 0 PUBLISH对所有订阅者完全相同（没有报文标识符），按协议版本各编码一次，
+ * 见 {@link #publish}。
+ *
+ * @author baccano-iot
+ */
+public final class MqttPackets {
+    private static final ByteBuf PINGRESP = constant(MqttMessageType.PINGRESP.value() << 4, 0);
+
+    /**
+     * 3.1.1 CONNACK：sessionPresent=0，返回码0（接受连接）
+     */
+    private static final ByteBuf CONNACK_ACCEPTED = constant(MqttMessageType.CONNACK.value() << 4, 2, 0, 0);
+
+    private MqttPackets() {
+    }
+
+    /**
+     * PINGRESP
+     *
+     * @return 共享报文的duplicate，不需要释放
+     */
+    public static ByteBuf pingResp() {
+        return PINGRESP.duplicate();
+    }
+
+    /**
+     * MQTT 3.1.1接受连接的CONNACK
+     *
+     * @return 共享报文的duplicate，不需要释放
+     */
+    public static ByteBuf connAckAccepted() {
+        return CONNACK_ACCEPTED.duplicate();
+    }
+
+    /**
+     * PUBACK/PUBREC/PUBREL/PUBCOMP
+     *
+     * @param alloc    分配器
+     * @param type     报文类型
+     * @param packetId 报文标识符
+     * @return 编码后的报文
+     */
+    public static ByteBuf ack(ByteBufAllocator alloc, MqttMessageType type, int packetId) {
+        // PUBREL的固定头标志位必须为0010
+        int flags = type == MqttMessageType.PUBREL ? 0x02 : 0;
+        return alloc.buffer(4, 4)
+                .writeByte(type.value() << 4 | flags)
+                .writeByte(2)
+                .writeShort(packetId);
+    }
+
+    /**
+     * 编码QoS 0 PUBLISH，不带报文标识符和属性，消息体被复制，调用方仍持有原引用
+     *
+     * @param alloc   分配器
+     * @param topic   发布主题
+     * @param retain  是否置RETAIN标志
+     * @param payload 消息体
+     * @param mqtt5   是否按MQTT 5编码（多一个为0的属性长度）
+     * @return 只读的编码结果，引用由调用方持有
+     */
+    public static ByteBuf publish(ByteBufAllocator alloc, String topic, boolean retain, ByteBuf payload, boolean mqtt5) {
+        int topicLength = ByteBufUtil.utf8Bytes(topic);
+        int payloadLength = payload.readableBytes();
+        int remainingLength = 2 + topicLength + (mqtt5 ? 1 : 0) + payloadLength;
+        ByteBuf buf = alloc.directBuffer(1 + varIntSize(remainingLength) + remainingLength);
+        buf.writeByte(MqttMessageType.PUBLISH.value() << 4 | (retain ? 0x01 : 0));
+        writeVarInt(buf, remainingLength);
+        buf.writeShort(topicLength);
+        ByteBufUtil.reserveAndWriteUtf8(buf, topic, topicLength);
+        if (mqtt5) {
+            buf.writeByte(0);
+        }
+        buf.writeBytes(payload, payload.readerIndex(), payloadLength);
+        return buf.asReadOnly();
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) > 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        do {
+            int digit = value & 0x7F;
+            value >>>= 7;
+            buf.writeByte(value > 0 ? digit | 0x80 : digit);
+        } while (value > 0);
+    }
+
+    private static ByteBuf constant(int... bytes) {
+        ByteBuf buf = Unpooled.directBuffer(bytes.length, bytes.length);
+        for (int b : bytes) {
+            buf.writeByte(b);
+        }
+        return Unpooled.unreleasableBuffer(buf.asReadOnly());
+    }
+}
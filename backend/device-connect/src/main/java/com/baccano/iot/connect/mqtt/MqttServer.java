@@ -1,35 +1,70 @@
 package com.baccano.iot.connect.mqtt;
 
+import com.baccano.iot.connect.mqtt.tls.MqttTlsContext;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import com.baccano.iot.connect.transport.NettyTransport;
+import com.baccano.iot.connect.transport.TransportType;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.AdaptiveByteBufAllocator;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.Future;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Component;
 
-import jakarta.annotation.PostConstruct;
-import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * MQTT服务器实现
+ * <p>
+ * 作为 {@link SmartLifecycle} 参与Spring容器的启停：启动时异步绑定端口，不阻塞容器线程，
+ * 绑定结果通过 {@link #getState()} 对外暴露（见 {@link MqttServerHealthIndicator}）；
+ * 停止时先关闭监听端口，再在排空期限内分批断开已有连接，避免滚动发布时所有设备同时重连。
+ * <p>
+ * 每个连接的内存上限：单个报文不超过 {@code maxPacketSize}（解码器拒绝更大的报文），出站缓冲超过高水位后
+ * Channel不可写，下行扇出随之暂停（见 {@link com.baccano.iot.connect.mqtt.qos.QosDeliveryManager}），
+ * 出站缓冲的采样和超限断开见 {@link ConnectionBufferMonitor}。心跳超时由全部连接共用的时间轮检测，见 {@link KeepAliveHandler}。
+ * <p>
+ * 启用TLS时在 {@code sslPort} 上额外监听，pipeline最前面加上TLS处理器（见 {@link MqttTlsContext}），其余与明文端口相同。
  *
  * @author baccano-iot
  */
 @Slf4j
 @Component
-public class MqttServer {
+public class MqttServer implements SmartLifecycle {
+    /**
+     * 启动晚于Web服务器（便于健康检查观察到启动过程），停止早于Web服务器的优雅停机
+     */
+    private static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 512;
+
+    /**
+     * 排空时每批断开连接的间隔，单位：毫秒
+     */
+    private static final long DRAIN_TICK_MILLIS = 100;
+
     @Value("${mqtt.broker.host}")
     private String host;
 
@@ -39,62 +74,344 @@ public class MqttServer {
     @Value("${mqtt.broker.sslPort}")
     private Integer sslPort;
 
-    @Value("${mqtt.client.keepAliveInterval}")
-    private Integer keepAliveInterval;
+    /**
+     * 传输实现 auto/io_uring/epoll/nio
+     */
+    @Value("${mqtt.broker.transport}")
+    private String transportType;
+
+    /**
+     * 监听同一端口的acceptor数量，仅原生传输（SO_REUSEPORT）下大于1才生效
+     */
+    @Value("${mqtt.broker.acceptors}")
+    private Integer acceptors;
+
+    /**
+     * IO线程数，0表示CPU核数 * 2
+     */
+    @Value("${mqtt.broker.workerThreads}")
+    private Integer workerThreads;
+
+    /**
+     * 停机排空期限，单位：秒，须小于 spring.lifecycle.timeout-per-shutdown-phase
+     */
+    @Value("${mqtt.broker.drainTimeout}")
+    private Integer drainTimeout;
+
+    /**
+     * 单个报文最大字节数
+     */
+    @Value("${mqtt.connection.maxPacketSize}")
+    private Integer maxPacketSize;
+
+    /**
+     * 出站缓冲低水位，单位：字节
+     */
+    @Value("${mqtt.connection.writeBufferLowWaterMark}")
+    private Integer writeBufferLowWaterMark;
+
+    /**
+     * 出站缓冲高水位，单位：字节
+     */
+    @Value("${mqtt.connection.writeBufferHighWaterMark}")
+    private Integer writeBufferHighWaterMark;
+
+    /**
+     * 合并flush：读取过程中和读取之外的flush合并，最多累积多少次flush后强制写出，0表示不合并
+     */
+    @Value("${mqtt.connection.flushConsolidation}")
+    private Integer flushConsolidation;
+
+    /**
+     * ByteBuf分配器 pooled/adaptive/unpooled
+     */
+    @Value("${mqtt.connection.allocator}")
+    private String allocatorType;
 
     @Autowired
     private MqttHandler mqttHandler;
 
+    @Autowired
+    private KeepAliveHandler keepAliveHandler;
+
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Autowired
+    private MqttTlsContext mqttTlsContext;
+
+    /**
+     * 实际使用的传输实现
+     */
+    @Getter
+    private NettyTransport transport;
+
+    /**
+     * 实际生效的acceptor数量
+     */
+    @Getter
+    private int acceptorCount;
+
+    /**
+     * 实际使用的ByteBuf分配器
+     */
+    @Getter
+    private ByteBufAllocator allocator;
+
+    /**
+     * 服务器状态
+     */
+    @Getter
+    private volatile State state = State.STOPPED;
+
+    /**
+     * 绑定失败原因
+     */
+    @Getter
+    private volatile Throwable failureCause;
+
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private final List<Channel> serverChannels = new CopyOnWriteArrayList<>();
 
     /**
-     * 启动MQTT服务器
+     * 启动MQTT服务器，异步绑定端口
      */
-    @PostConstruct
+    @Override
     public void start() {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
-
-        try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
-                    .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) {
-                            ch.pipeline()
-                                    .addLast("idleStateHandler", new IdleStateHandler(0, 0, keepAliveInterval + 10, TimeUnit.SECONDS))
-                                    .addLast("mqttDecoder", new MqttDecoder())
-                                    .addLast("mqttEncoder", MqttEncoder.INSTANCE)
-                                    .addLast("mqttHandler", mqttHandler);
-                        }
-                    });
-
-            ChannelFuture f = b.bind(host, port).sync();
-            log.info("MQTT服务器启动成功，监听地址: {}:{}", host, port);
-            f.channel().closeFuture().sync();
-        } catch (InterruptedException e) {
-            log.error("MQTT服务器启动失败: {}", e.getMessage(), e);
-        } finally {
-            shutdown();
+        state = State.STARTING;
+        failureCause = null;
+        transport = NettyTransport.select(TransportType.valueOf(transportType.toUpperCase(Locale.ROOT)));
+        acceptorCount = transport.isReusePortSupported() ? Math.max(1, acceptors) : 1;
+        bossGroup = transport.newEventLoopGroup(acceptorCount, "mqtt-boss");
+        workerGroup = transport.newEventLoopGroup(workerThreads, "mqtt-worker");
+        allocator = selectAllocator();
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(transport.getServerChannelClass())
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark))
+                .handler(new LoggingHandler(LogLevel.INFO))
+                .childHandler(newChannelInitializer(false));
+        if (acceptorCount > 1) {
+            transport.enableReusePort(b);
+        }
+
+        // SO_REUSEPORT下每次绑定得到一个独立的监听Socket，由内核在它们之间分摊新连接
+        boolean tls = mqttTlsContext.isEnabled();
+        AtomicInteger pending = new AtomicInteger(tls ? acceptorCount * 2 : acceptorCount);
+        bind(b, port, pending);
+        if (tls) {
+            bind(b.clone().childHandler(newChannelInitializer(true)), sslPort, pending);
+        }
+    }
+
+    /**
+     * 绑定监听端口，全部绑定成功后进入RUNNING状态
+     *
+     * @param b       启动器
+     * @param port    端口
+     * @param pending 尚未完成的绑定数
+     */
+    private void bind(ServerBootstrap b, int port, AtomicInteger pending) {
+        for (int i = 0; i < acceptorCount; i++) {
+            b.bind(host, port).addListener((ChannelFuture f) -> {
+                if (f.isSuccess()) {
+                    serverChannels.add(f.channel());
+                    if (pending.decrementAndGet() == 0 && state == State.STARTING) {
+                        state = State.RUNNING;
+                        log.info("MQTT服务器启动成功，监听地址: {}:{}, sslPort={}, transport={}, acceptors={}",
+                                host, this.port, mqttTlsContext.isEnabled() ? sslPort : "-", transport.getType(), acceptorCount);
+                    }
+                } else {
+                    onBindFailure(port, f.cause());
+                }
+            });
+        }
+    }
+
+    /**
+     * 连接初始化器
+     *
+     * @param tls 是否为TLS端口
+     */
+    private ChannelInitializer<SocketChannel> newChannelInitializer(boolean tls) {
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                if (flushConsolidation > 0) {
+                    // 放在最前面：一次读取中产生的多个应答（如批量PUBACK）在读取完成时一次写出，
+                    // 扇出等读取之外的写入也合并到EventLoop的下一次任务中写出
+                    ch.pipeline().addLast("flushConsolidation", new FlushConsolidationHandler(flushConsolidation, true));
+                }
+                if (tls) {
+                    ch.pipeline().addLast("ssl", mqttTlsContext.newHandler(ch));
+                }
+                ch.pipeline()
+                        .addLast("keepAlive", keepAliveHandler)
+                        .addLast("mqttDecoder", new MqttDecoder(maxPacketSize))
+                        .addLast("mqttEncoder", MqttEncoder.INSTANCE)
+                        .addLast("mqttHandler", mqttHandler);
+            }
+        };
+    }
+
+    /**
+     * 池化分配器的线程缓存、arena数等通过Netty系统属性（io.netty.allocator.*）调整
+     */
+    private ByteBufAllocator selectAllocator() {
+        return switch (allocatorType.toLowerCase(Locale.ROOT)) {
+            case "adaptive" -> new AdaptiveByteBufAllocator();
+            case "unpooled" -> UnpooledByteBufAllocator.DEFAULT;
+            default -> PooledByteBufAllocator.DEFAULT;
+        };
+    }
+
+    /**
+     * 同步停止，仅在未走异步停止路径时由容器调用
+     */
+    @Override
+    public void stop() {
+        stop(() -> { });
+    }
+
+    /**
+     * 异步停止：关闭监听端口，分批断开连接，然后关闭EventLoop
+     *
+     * @param callback 停止完成回调
+     */
+    @Override
+    public void stop(Runnable callback) {
+        if (state == State.STOPPED || state == State.DRAINING) {
+            callback.run();
+            return;
         }
+        state = State.DRAINING;
+        closeServerChannels();
+        Thread drainThread = new Thread(() -> {
+            try {
+                drainConnections();
+            } finally {
+                shutdown();
+                callback.run();
+            }
+        }, "mqtt-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return state == State.STARTING || state == State.RUNNING;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * 在排空期限内均匀地分批断开连接，让设备的重连分散到整个期限内
+     */
+    private void drainConnections() {
+        List<ClientConnection> connections = new ArrayList<>(clientRegistry.connections());
+        if (connections.isEmpty()) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeout);
+        long ticks = Math.max(1, TimeUnit.SECONDS.toMillis(drainTimeout) / DRAIN_TICK_MILLIS);
+        int batchSize = (int) Math.max(1, (connections.size() + ticks - 1) / ticks);
+        log.info("MQTT服务器开始排空连接: connections={}, drainTimeout={}s, batchSize={}",
+                connections.size(), drainTimeout, batchSize);
+
+        int index = 0;
+        while (index < connections.size()) {
+            int end = Math.min(index + batchSize, connections.size());
+            for (; index < end; index++) {
+                connections.get(index).getChannel().close();
+            }
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+            try {
+                Thread.sleep(DRAIN_TICK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // 期限已到仍未断开的连接直接关闭
+        for (; index < connections.size(); index++) {
+            connections.get(index).getChannel().close();
+        }
+    }
+
+    private void onBindFailure(int port, Throwable cause) {
+        if (state != State.STARTING) {
+            return;
+        }
+        state = State.FAILED;
+        failureCause = cause;
+        log.error("MQTT服务器启动失败: {}:{}, error={}", host, port, cause.getMessage(), cause);
+        closeServerChannels();
+        // 回调运行在EventLoop线程上，不能同步等待EventLoop关闭
+        bossGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+        workerGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+    }
+
+    private void closeServerChannels() {
+        for (Channel channel : serverChannels) {
+            channel.close();
+        }
+        serverChannels.clear();
     }
 
     /**
      * 关闭MQTT服务器
      */
-    @PreDestroy
-    public void shutdown() {
-        if (bossGroup != null) {
-            bossGroup.shutdownGracefully();
+    private void shutdown() {
+        Future<?> bossFuture = bossGroup != null ? bossGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS) : null;
+        Future<?> workerFuture = workerGroup != null ? workerGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS) : null;
+        if (bossFuture != null) {
+            bossFuture.awaitUninterruptibly(5, TimeUnit.SECONDS);
+        }
+        if (workerFuture != null) {
+            workerFuture.awaitUninterruptibly(5, TimeUnit.SECONDS);
         }
-        if (workerGroup != null) {
-            workerGroup.shutdownGracefully();
+        if (state != State.FAILED) {
+            state = State.STOPPED;
         }
         log.info("MQTT服务器已关闭");
     }
-}
\ No newline at end of file
+
+    /**
+     * 服务器状态
+     */
+    public enum State {
+        /**
+         * 未启动或已停止
+         */
+        STOPPED,
+        /**
+         * 正在绑定端口
+         */
+        STARTING,
+        /**
+         * 正常服务
+         */
+        RUNNING,
+        /**
+         * 停机中，已停止接收新连接，正在排空已有连接
+         */
+        DRAINING,
+        /**
+         * 端口绑定失败
+         */
+        FAILED
+    }
+}
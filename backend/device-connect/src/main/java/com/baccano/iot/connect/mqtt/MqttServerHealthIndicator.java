@@ -0,0 +1,34 @@
+package com.baccano.iot.connect.mqtt;
+
+import com.baccano.iot.connect.registry.ClientRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.health.contributor.Health;
+import org.springframework.boot.health.contributor.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * MQTT服务器健康检查，纳入readiness分组后，端口绑定完成前和停机排空期间实例不接收流量
+ *
+ * @author baccano-iot
+ */
+@Component("mqtt")
+public class MqttServerHealthIndicator implements HealthIndicator {
+    @Autowired
+    private MqttServer mqttServer;
+
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Override
+    public Health health() {
+        MqttServer.State state = mqttServer.getState();
+        Health.Builder builder = switch (state) {
+            case RUNNING -> Health.up();
+            case FAILED -> Health.down(mqttServer.getFailureCause());
+            default -> Health.outOfService();
+        };
+        return builder.withDetail("state", state)
+                .withDetail("connections", clientRegistry.size())
+                .build();
+    }
+}
@@ -0,0 +1,38 @@
+package com.baccano.iot.connect.mqtt;
+
+import com.baccano.iot.connect.mqtt.tls.MqttTlsContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.info.Info;
+import org.springframework.boot.actuate.info.InfoContributor;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 在actuator info端点中展示MQTT服务器运行信息
+ *
+ * @author baccano-iot
+ */
+@Component
+public class MqttServerInfoContributor implements InfoContributor {
+    @Autowired
+    private MqttServer mqttServer;
+
+    @Autowired
+    private MqttTlsContext mqttTlsContext;
+
+    @Override
+    public void contribute(Info.Builder builder) {
+        Map<String, Object> details = new LinkedHashMap<>();
+        if (mqttServer.getTransport() != null) {
+            details.put("transport", mqttServer.getTransport().getType());
+            details.put("reusePort", mqttServer.getTransport().isReusePortSupported());
+            details.put("acceptors", mqttServer.getAcceptorCount());
+        }
+        if (mqttTlsContext.isEnabled()) {
+            details.put("tlsProvider", mqttTlsContext.getSslProvider());
+        }
+        builder.withDetail("mqtt", details);
+    }
+}
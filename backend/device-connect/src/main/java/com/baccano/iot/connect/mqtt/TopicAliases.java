@@ -0,0 +1,36 @@
+package com.baccano.iot.connect.mqtt;
+
+/**
+ * MQTT 5 上行主题别名表
+ * <p>
+ * 设备在PUBLISH中携带主题和别名时登记映射，之后只携带别名（主题为空）即可复用，
+ * 别名范围为 1 ~ CONNACK中声明的Topic Alias Maximum。每个连接一张表，连接断开即失效。
+ * 非线程安全，只能在所属Channel的EventLoop中访问。
+ *
+ * @author baccano-iot
+ */
+public class TopicAliases {
+    private final String[] topics;
+
+    public TopicAliases(int maximum) {
+        this.topics = new String[maximum + 1];
+    }
+
+    /**
+     * 解析PUBLISH的主题：主题非空时登记别名并返回主题，主题为空时返回别名对应的主题
+     *
+     * @param topic 报文中的主题
+     * @param alias 报文中的主题别名
+     * @return 实际主题；别名超出范围或尚未登记时返回null
+     */
+    public String resolve(String topic, int alias) {
+        if (alias <= 0 || alias >= topics.length) {
+            return null;
+        }
+        if (!topic.isEmpty()) {
+            topics[alias] = topic;
+            return topic;
+        }
+        return topics[alias];
+    }
+}
@@ -0,0 +1,45 @@
+package com.baccano.iot.connect.mqtt.publish;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 发布消息分发器，将上行消息交给所有 {@link PublishSink}
+ * <p>
+ * 每个下游各持有一个引用，分发器自身持有的引用在分发结束后释放，
+ * 因此没有下游或下游全部完成后消息体会被确定性地归还到内存池。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class PublishDispatcher {
+    @Autowired(required = false)
+    private List<PublishSink> sinks = Collections.emptyList();
+
+    /**
+     * 分发消息，调用方的引用由分发器接管
+     *
+     * @param message 发布消息
+     */
+    public void dispatch(PublishMessage message) {
+        try {
+            for (PublishSink sink : sinks) {
+                message.retain();
+                try {
+                    sink.onPublish(message);
+                } catch (Exception e) {
+                    message.release();
+                    log.error("发布消息分发失败: sink={}, topic={}, error={}",
+                            sink.getClass().getSimpleName(), message.getTopic(), e.getMessage(), e);
+                }
+            }
+        } finally {
+            message.release();
+        }
+    }
+}
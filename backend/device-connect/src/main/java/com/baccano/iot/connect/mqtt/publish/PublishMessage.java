@@ -0,0 +1,118 @@
+package com.baccano.iot.connect.mqtt.publish;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 设备上行发布消息
+ * <p>
+ * 消息体直接引用解码器产生的池化 {@link ByteBuf}（retainedSlice），不做任何拷贝。
+ * 持有者负责在处理结束后调用 {@link #release()} 归还内存。
+ *
+ * @author baccano-iot
+ */
+@Getter
+public class PublishMessage {
+    /**
+     * 消息来源通道，用于下游施加背压
+     */
+    private final Channel channel;
+
+    /**
+     * 设备Key
+     */
+    private final String deviceKey;
+
+    /**
+     * 客户端ID
+     */
+    private final String clientId;
+
+    /**
+     * 发布主题
+     */
+    private final String topic;
+
+    /**
+     * QoS等级
+     */
+    private final int qos;
+
+    /**
+     * 是否保留消息
+     */
+    private final boolean retain;
+
+    /**
+     * 消息体
+     */
+    private final ByteBuf payload;
+
+    /**
+     * 接收时间戳，单位：毫秒
+     */
+    private final long receiveTimeMillis;
+
+    public PublishMessage(Channel channel, String deviceKey, String clientId, String topic, int qos, boolean retain,
+                          ByteBuf payload) {
+        this.channel = channel;
+        this.deviceKey = deviceKey;
+        this.clientId = clientId;
+        this.topic = topic;
+        this.qos = qos;
+        this.retain = retain;
+        this.payload = payload;
+        this.receiveTimeMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 消息体长度，单位：字节
+     *
+     * @return 字节数
+     */
+    public int payloadSize() {
+        return payload.readableBytes();
+    }
+
+    /**
+     * 复制消息体为字节数组，仅在确实需要堆内数据的出口（如第三方客户端）调用
+     *
+     * @return 字节数组
+     */
+    public byte[] payloadBytes() {
+        byte[] bytes = new byte[payload.readableBytes()];
+        payload.getBytes(payload.readerIndex(), bytes);
+        return bytes;
+    }
+
+    /**
+     * 以UTF-8解码消息体，仅用于调试日志
+     *
+     * @return 消息体字符串
+     */
+    public String payloadAsString() {
+        return payload.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 增加消息体引用计数
+     *
+     * @return 当前消息
+     */
+    public PublishMessage retain() {
+        payload.retain();
+        return this;
+    }
+
+    /**
+     * 释放消息体引用
+     *
+     * @return 引用计数是否归零
+     */
+    public boolean release() {
+        return payload.release();
+    }
+}
@@ -0,0 +1,19 @@
+package com.baccano.iot.connect.mqtt.publish;
+
+/**
+ * 上行发布消息的下游处理器（消息队列、规则引擎、存储等）
+ * <p>
+ * 调用 {@link #onPublish(PublishMessage)} 正常返回即表示接管了消息的一个引用，
+ * 实现方必须在处理完成（包括异步处理完成）后调用 {@link PublishMessage#release()}；
+ * 抛出异常时引用仍归调用方所有。
+ *
+ * @author baccano-iot
+ */
+public interface PublishSink {
+    /**
+     * 处理发布消息
+     *
+     * @param message 发布消息
+     */
+    void onPublish(PublishMessage message);
+}
@@ -0,0 +1,139 @@
+package com.baccano.iot.connect.mqtt.qos;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.Timeout;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 下行QoS 1/2消息的在途状态
+ *
+ * @author baccano-iot
+ */
+@Getter
+public class InflightMessage {
+    /**
+     * 报文标识符
+     */
+    private final int packetId;
+
+    /**
+     * 发布主题
+     */
+    private final String topic;
+
+    /**
+     * QoS等级
+     */
+    private final MqttQoS qos;
+
+    /**
+     * 是否置RETAIN标志（订阅时下发的保留消息）
+     */
+    private final boolean retain;
+
+    /**
+     * 消息体，在途期间持有一个引用，用于重发
+     */
+    private final ByteBuf payload;
+
+    /**
+     * 在途状态
+     */
+    @Setter
+    private State state = State.PUBLISH_SENT;
+
+    /**
+     * 来源离线消息在本节点离线日志中的ID，0表示不是从本节点离线日志取出的消息。
+     * 流程结束（PUBACK/PUBCOMP）时才确认日志中的记录
+     */
+    @Setter
+    private long offlineId;
+
+    /**
+     * 已重发次数
+     */
+    private int retries;
+
+    /**
+     * 重发定时器
+     */
+    @Setter
+    private Timeout retryTimeout;
+
+    /**
+     * 持有的消息体引用是否已释放。消息体是与其他订阅者、保留消息共享引用计数的duplicate，
+     * 不能通过refCnt判断本对象的引用是否还在
+     */
+    @Getter(AccessLevel.NONE)
+    private boolean released;
+
+    public InflightMessage(int packetId, String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        this.packetId = packetId;
+        this.topic = topic;
+        this.qos = qos;
+        this.retain = retain;
+        this.payload = payload;
+    }
+
+    /**
+     * 记录一次重发
+     *
+     * @return 累计重发次数
+     */
+    public int incrementRetries() {
+        return ++retries;
+    }
+
+    /**
+     * 换一个报文标识符：返回持有同一消息体引用的新在途消息（状态为未发送），本对象交出引用后不再释放消息体
+     *
+     * @param packetId 新的报文标识符
+     * @return 新的在途消息
+     */
+    public InflightMessage reassign(int packetId) {
+        if (retryTimeout != null) {
+            retryTimeout.cancel();
+            retryTimeout = null;
+        }
+        released = true;
+        InflightMessage message = new InflightMessage(packetId, topic, qos, retain, payload);
+        message.setState(State.PENDING);
+        message.setOfflineId(offlineId);
+        return message;
+    }
+
+    /**
+     * 释放消息占用的资源，消息体引用只释放一次，必须在Channel所属EventLoop中调用
+     */
+    public void release() {
+        if (retryTimeout != null) {
+            retryTimeout.cancel();
+            retryTimeout = null;
+        }
+        if (!released) {
+            released = true;
+            payload.release();
+        }
+    }
+
+    /**
+     * 在途状态
+     */
+    public enum State {
+        /**
+         * 已占用在途窗口，连接不可写，PUBLISH尚未发送
+         */
+        PENDING,
+        /**
+         * 已发送PUBLISH，等待PUBACK(QoS 1)或PUBREC(QoS 2)
+         */
+        PUBLISH_SENT,
+        /**
+         * 已发送PUBREL，等待PUBCOMP(QoS 2)
+         */
+        PUBREL_SENT
+    }
+}
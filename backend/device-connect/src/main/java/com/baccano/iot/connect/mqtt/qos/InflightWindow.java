@@ -0,0 +1,249 @@
+package com.baccano.iot.connect.mqtt.qos;
+
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单个会话的QoS在途窗口
+ * <p>
+ * 以报文标识符为键的原始int哈希表保存下行在途消息和等待PUBREL的上行QoS 2报文，
+ * 容量受接收最大值（Receive Maximum）约束，表按需创建，空闲会话不占用额外内存。
+ * 非线程安全，只能在所属Channel的EventLoop中访问。
+ *
+ * @author baccano-iot
+ */
+public class InflightWindow {
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int MAX_PACKET_ID = 0xFFFF;
+
+    /**
+     * 下行在途消息数上限
+     */
+    private final int sendMaximum;
+
+    /**
+     * 上行未完成QoS 2报文数上限
+     */
+    private final int receiveMaximum;
+
+    /**
+     * 下行在途消息
+     */
+    private IntObjectHashMap<InflightMessage> outbound;
+
+    /**
+     * 已收到PUBLISH、等待PUBREL的上行QoS 2报文标识符
+     */
+    private IntObjectHashMap<Boolean> inbound;
+
+    private int lastPacketId;
+
+    public InflightWindow(int sendMaximum, int receiveMaximum) {
+        this.sendMaximum = sendMaximum;
+        this.receiveMaximum = receiveMaximum;
+    }
+
+    /**
+     * 下行在途消息数上限
+     *
+     * @return 上限
+     */
+    public int getSendMaximum() {
+        return sendMaximum;
+    }
+
+    /**
+     * 下行窗口是否已满
+     *
+     * @return 是否已满
+     */
+    public boolean isFull() {
+        return outbound != null && outbound.size() >= sendMaximum;
+    }
+
+    /**
+     * 分配下一个未被占用的报文标识符
+     *
+     * @return 报文标识符，窗口已满时返回0
+     */
+    public int nextPacketId() {
+        if (isFull()) {
+            return 0;
+        }
+        return nextUnusedPacketId();
+    }
+
+    /**
+     * 分配下一个未被占用的报文标识符，不受窗口上限约束，用于迁移过来的在途消息
+     *
+     * @return 报文标识符
+     */
+    public int nextUnusedPacketId() {
+        int packetId = lastPacketId;
+        do {
+            packetId = packetId >= MAX_PACKET_ID ? 1 : packetId + 1;
+        } while (outbound != null && outbound.containsKey(packetId));
+        lastPacketId = packetId;
+        return packetId;
+    }
+
+    /**
+     * 加入下行在途消息
+     *
+     * @param message 在途消息
+     */
+    public void add(InflightMessage message) {
+        if (outbound == null) {
+            outbound = new IntObjectHashMap<>(INITIAL_CAPACITY);
+        }
+        outbound.put(message.getPacketId(), message);
+    }
+
+    /**
+     * 获取下行在途消息
+     *
+     * @param packetId 报文标识符
+     * @return 在途消息，不存在时返回null
+     */
+    public InflightMessage get(int packetId) {
+        return outbound != null ? outbound.get(packetId) : null;
+    }
+
+    /**
+     * 移除下行在途消息
+     *
+     * @param packetId 报文标识符
+     * @return 被移除的在途消息，不存在时返回null
+     */
+    public InflightMessage remove(int packetId) {
+        return outbound != null ? outbound.remove(packetId) : null;
+    }
+
+    /**
+     * 下行在途消息数
+     *
+     * @return 消息数
+     */
+    public int outboundSize() {
+        return outbound != null ? outbound.size() : 0;
+    }
+
+    /**
+     * 上行QoS 2报文是否已收到且在等待PUBREL
+     *
+     * @param packetId 报文标识符
+     * @return 是否已收到
+     */
+    public boolean isAwaitingRelease(int packetId) {
+        return inbound != null && inbound.containsKey(packetId);
+    }
+
+    /**
+     * 记录收到的上行QoS 2报文
+     *
+     * @param packetId 报文标识符
+     * @return 超过接收最大值时返回false
+     */
+    public boolean awaitRelease(int packetId) {
+        if (inbound == null) {
+            inbound = new IntObjectHashMap<>(INITIAL_CAPACITY);
+        } else if (inbound.size() >= receiveMaximum) {
+            return false;
+        }
+        inbound.put(packetId, Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * 收到PUBREL，结束上行QoS 2流程
+     *
+     * @param packetId 报文标识符
+     * @return 报文标识符是否存在
+     */
+    public boolean release(int packetId) {
+        return inbound != null && inbound.remove(packetId) != null;
+    }
+
+    /**
+     * 取出全部下行在途消息（按报文标识符分配顺序），窗口随之清空但消息不释放，用于会话迁移
+     *
+     * @return 在途消息
+     */
+    public List<InflightMessage> drain() {
+        if (outbound == null || outbound.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<InflightMessage> messages = new ArrayList<>(outbound.values());
+        messages.sort((a, b) -> Integer.compare(distance(a.getPacketId()), distance(b.getPacketId())));
+        for (InflightMessage message : messages) {
+            if (message.getRetryTimeout() != null) {
+                message.getRetryTimeout().cancel();
+                message.setRetryTimeout(null);
+            }
+        }
+        outbound.clear();
+        return messages;
+    }
+
+    /**
+     * 因连接不可写而尚未发送的下行在途消息（按报文标识符分配顺序）
+     *
+     * @return 待发送的在途消息
+     */
+    public List<InflightMessage> pending() {
+        List<InflightMessage> messages = new ArrayList<>(0);
+        if (outbound == null) {
+            return messages;
+        }
+        for (InflightMessage message : outbound.values()) {
+            if (message.getState() == InflightMessage.State.PENDING) {
+                messages.add(message);
+            }
+        }
+        messages.sort((a, b) -> Integer.compare(distance(a.getPacketId()), distance(b.getPacketId())));
+        return messages;
+    }
+
+    /**
+     * 取出全部等待PUBREL的上行QoS 2报文标识符，用于会话迁移
+     *
+     * @return 报文标识符
+     */
+    public int[] drainAwaitingRelease() {
+        if (inbound == null || inbound.isEmpty()) {
+            return new int[0];
+        }
+        int[] packetIds = new int[inbound.size()];
+        int i = 0;
+        for (int packetId : inbound.keySet()) {
+            packetIds[i++] = packetId;
+        }
+        inbound.clear();
+        return packetIds;
+    }
+
+    /**
+     * 清空窗口并释放全部在途消息
+     */
+    public void clear() {
+        if (outbound != null) {
+            for (InflightMessage message : outbound.values()) {
+                message.release();
+            }
+            outbound.clear();
+        }
+        if (inbound != null) {
+            inbound.clear();
+        }
+    }
+
+    /**
+     * 报文标识符的分配先后顺序，越早分配的值越小
+     */
+    private int distance(int packetId) {
+        int diff = lastPacketId - packetId;
+        return diff >= 0 ? -diff : -(diff + MAX_PACKET_ID);
+    }
+}
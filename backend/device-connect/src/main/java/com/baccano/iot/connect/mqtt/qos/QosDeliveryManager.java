@@ -0,0 +1,420 @@
+package com.baccano.iot.connect.mqtt.qos;
+
+import com.baccano.iot.connect.mqtt.MqttPackets;
+import com.baccano.iot.connect.registry.ClientConnection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下行QoS 1/2消息投递管理
+ * <p>
+ * 所有会话共享一个 {@link HashedWheelTimer} 驱动重发，定时器回调只负责把重发任务
+ * 提交回Channel所属的EventLoop，在途窗口始终在EventLoop线程内单线程访问。
+ * MQTT 5规定只有在设备重连并恢复会话时才能重发（规范4.4节），定时重发只用于MQTT 3.1.1连接；
+ * MQTT 5连接上未确认的消息一直留在在途窗口中，会话恢复时由 {@link #resume} 重发。
+ * <p>
+ * 连接的出站缓冲超过高水位（Channel不可写）时暂停向该连接扇出：QoS 0消息直接丢弃，
+ * QoS 1/2消息只占用在途窗口不发送，恢复可写后按顺序发出（见 {@link #onWritable}）。
+ * 单个慢订阅者占用的出站内存因此不超过高水位加上在途窗口内的消息。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class QosDeliveryManager {
+    /**
+     * 单个会话下行在途消息数上限
+     */
+    @Value("${mqtt.qos.sendMaximum}")
+    private Integer sendMaximum;
+
+    /**
+     * 单个会话上行未完成QoS 2报文数上限
+     */
+    @Value("${mqtt.qos.receiveMaximum}")
+    private Integer receiveMaximum;
+
+    /**
+     * 重发间隔，单位：毫秒
+     */
+    @Value("${mqtt.qos.retryInterval}")
+    private Long retryInterval;
+
+    /**
+     * 最大重发次数
+     */
+    @Value("${mqtt.qos.maxRetries}")
+    private Integer maxRetries;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private HashedWheelTimer retryTimer;
+    private Counter windowFullCounter;
+    private Counter unwritableCounter;
+
+    @PostConstruct
+    public void start() {
+        retryTimer = new HashedWheelTimer(new DefaultThreadFactory("mqtt-qos-retry", true),
+                100, TimeUnit.MILLISECONDS, 512);
+        retryTimer.start();
+        windowFullCounter = droppedCounter("window_full");
+        unwritableCounter = droppedCounter("unwritable");
+    }
+
+    /**
+     * 为新会话创建在途窗口
+     *
+     * @return 在途窗口
+     */
+    public InflightWindow newWindow() {
+        return new InflightWindow(sendMaximum, receiveMaximum);
+    }
+
+    /**
+     * 为新会话创建在途窗口，下行上限取客户端声明的接收最大值与服务端配置中的较小者
+     *
+     * @param clientReceiveMaximum 客户端声明的接收最大值，未声明时传0
+     * @return 在途窗口
+     */
+    public InflightWindow newWindow(int clientReceiveMaximum) {
+        int limit = clientReceiveMaximum > 0 ? Math.min(clientReceiveMaximum, sendMaximum) : sendMaximum;
+        return new InflightWindow(limit, receiveMaximum);
+    }
+
+    /**
+     * 向设备投递消息，可在任意线程调用，消息体的一个引用由本方法接管
+     *
+     * @param connection 设备连接
+     * @param topic      发布主题
+     * @param qos        QoS等级
+     * @param payload    消息体
+     * @return 已提交投递返回true；窗口已满时返回false，消息体已释放
+     */
+    public boolean deliver(ClientConnection connection, String topic, MqttQoS qos, ByteBuf payload) {
+        return deliver(connection, topic, qos, false, payload);
+    }
+
+    /**
+     * 向设备投递消息，可在任意线程调用，消息体的一个引用由本方法接管
+     *
+     * @param connection 设备连接
+     * @param topic      发布主题
+     * @param qos        QoS等级
+     * @param retain     是否置RETAIN标志（订阅时下发的保留消息）
+     * @param payload    消息体
+     * @return 已提交投递返回true；窗口已满或QoS 0消息遇到连接不可写时返回false，消息体已释放
+     */
+    public boolean deliver(ClientConnection connection, String topic, MqttQoS qos, boolean retain, ByteBuf payload) {
+        Channel channel = connection.getChannel();
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> deliver(connection, topic, qos, retain, payload));
+            return true;
+        }
+        if (!channel.isActive()) {
+            payload.release();
+            return false;
+        }
+        if (!connection.isEstablished()) {
+            connection.runWhenEstablished(() -> deliver(connection, topic, qos, retain, payload));
+            return true;
+        }
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            if (!channel.isWritable()) {
+                unwritableCounter.increment();
+                payload.release();
+                return false;
+            }
+            channel.writeAndFlush(publishMessage(topic, qos, retain, false, 0, payload));
+            return true;
+        }
+
+        InflightWindow window = connection.getInflightWindow();
+        int packetId = window.nextPacketId();
+        if (packetId == 0) {
+            windowFullCounter.increment();
+            log.warn("下行在途窗口已满，丢弃消息: deviceKey={}, topic={}, inflight={}",
+                    connection.getDeviceKey(), topic, window.outboundSize());
+            payload.release();
+            return false;
+        }
+        InflightMessage message = new InflightMessage(packetId, topic, qos, retain, payload);
+        window.add(message);
+        if (channel.isWritable()) {
+            send(connection, message);
+        } else {
+            message.setState(InflightMessage.State.PENDING);
+        }
+        return true;
+    }
+
+    /**
+     * 投递从本节点离线日志取出的QoS 1/2消息，必须在Channel所属EventLoop中调用（已回复CONNACK）。
+     * 每批条数已与在途上限一致，离线消息不受窗口上限约束，不会因窗口已满被丢弃
+     *
+     * @param connection 设备连接
+     * @param topic      发布主题
+     * @param qos        QoS等级
+     * @param payload    消息体，由本方法接管
+     * @param offlineId  离线消息ID，流程结束时由 {@link #onPubAck}/{@link #onPubComp} 返回
+     * @return 已进入在途窗口返回true；连接已关闭时返回false，消息体已释放，日志中的记录未确认
+     */
+    public boolean deliverOffline(ClientConnection connection, String topic, MqttQoS qos, ByteBuf payload,
+                                  long offlineId) {
+        Channel channel = connection.getChannel();
+        if (!channel.isActive()) {
+            payload.release();
+            return false;
+        }
+        InflightWindow window = connection.getInflightWindow();
+        InflightMessage message = new InflightMessage(window.nextUnusedPacketId(), topic, qos, false, payload);
+        message.setOfflineId(offlineId);
+        window.add(message);
+        if (channel.isWritable()) {
+            send(connection, message);
+        } else {
+            message.setState(InflightMessage.State.PENDING);
+        }
+        return true;
+    }
+
+    /**
+     * 写出预编码的QoS 0 PUBLISH（广播扇出），必须在Channel所属EventLoop中调用。
+     * 只write不flush，由调用方写完同一EventLoop上的一批连接后逐个flush
+     *
+     * @param connection 设备连接
+     * @param packet     预编码报文的一个引用，由本方法接管
+     * @return 已写出返回true，需要调用方flush；连接不可写或已关闭时返回false，报文已释放
+     */
+    public boolean writeEncoded(ClientConnection connection, ByteBuf packet) {
+        Channel channel = connection.getChannel();
+        if (!channel.isActive()) {
+            packet.release();
+            return false;
+        }
+        if (!connection.isEstablished()) {
+            connection.runWhenEstablished(() -> {
+                if (writeEncoded(connection, packet)) {
+                    channel.flush();
+                }
+            });
+            return false;
+        }
+        if (!channel.isWritable()) {
+            unwritableCounter.increment();
+            packet.release();
+            return false;
+        }
+        channel.write(packet, channel.voidPromise());
+        return true;
+    }
+
+    /**
+     * 连接恢复可写，按分配顺序发出暂缓的在途消息，必须在Channel所属EventLoop中调用
+     *
+     * @param connection 设备连接
+     */
+    public void onWritable(ClientConnection connection) {
+        Channel channel = connection.getChannel();
+        for (InflightMessage message : connection.getInflightWindow().pending()) {
+            if (!channel.isWritable()) {
+                return;
+            }
+            send(connection, message);
+        }
+    }
+
+    /**
+     * 重新发送迁移过来的在途消息（DUP置位），必须在新连接的EventLoop中调用。
+     * <p>
+     * 消息立即加入新连接的窗口占住原报文标识符，回复CONNACK之后才发送，此后新投递的消息不会再分配到这些标识符。
+     * 新连接已经回复过CONNACK时，原标识符可能已被新投递的消息占用：未收到PUBREC的消息换一个标识符按首次发送处理；
+     * 已发送PUBREL的消息设备已经收到，只补发一次原标识符的PUBREL，不再跟踪
+     *
+     * @param connection 设备连接
+     * @param message    在途消息
+     */
+    public void resume(ClientConnection connection, InflightMessage message) {
+        Channel channel = connection.getChannel();
+        if (!channel.isActive()) {
+            message.release();
+            return;
+        }
+        InflightWindow window = connection.getInflightWindow();
+        InflightMessage occupant = window.get(message.getPacketId());
+        if (occupant != null && occupant != message) {
+            if (message.getState() == InflightMessage.State.PUBREL_SENT) {
+                channel.writeAndFlush(MqttPackets.ack(channel.alloc(), MqttMessageType.PUBREL, message.getPacketId()));
+                message.release();
+                log.debug("迁移的在途消息报文标识符已被占用，只补发PUBREL: deviceKey={}, packetId={}",
+                        connection.getDeviceKey(), message.getPacketId());
+                return;
+            }
+            int previousId = message.getPacketId();
+            message = message.reassign(window.nextUnusedPacketId());
+            log.debug("迁移的在途消息报文标识符已被占用，重新分配: deviceKey={}, packetId={}->{}",
+                    connection.getDeviceKey(), previousId, message.getPacketId());
+        }
+        window.add(message);
+        InflightMessage resumed = message;
+        connection.runWhenEstablished(() -> {
+            // 等待CONNACK期间连接已关闭（窗口清空时已释放）或消息已被确认
+            if (channel.isActive() && window.get(resumed.getPacketId()) == resumed) {
+                sendResumed(connection, resumed);
+            }
+        });
+    }
+
+    /**
+     * 发送恢复的在途消息：旧连接上尚未发出过的按首次发送处理，否则DUP置位重发
+     */
+    private void sendResumed(ClientConnection connection, InflightMessage message) {
+        if (message.getState() == InflightMessage.State.PENDING) {
+            // 新连接不可写时继续暂缓，恢复可写后由onWritable发出
+            if (connection.getChannel().isWritable()) {
+                send(connection, message);
+            }
+            return;
+        }
+        republish(connection, message);
+        scheduleRetry(connection, message);
+    }
+
+    /**
+     * 收到PUBACK，结束QoS 1流程
+     *
+     * @param connection 设备连接
+     * @param packetId   报文标识符
+     * @return 结束的消息在本节点离线日志中的ID，不是离线消息或报文标识符不存在时返回0
+     */
+    public long onPubAck(ClientConnection connection, int packetId) {
+        InflightMessage message = connection.getInflightWindow().remove(packetId);
+        if (message == null) {
+            return 0;
+        }
+        message.release();
+        return message.getOfflineId();
+    }
+
+    /**
+     * 收到PUBREC，进入QoS 2第二阶段并发送PUBREL
+     *
+     * @param connection 设备连接
+     * @param packetId   报文标识符
+     */
+    public void onPubRec(ClientConnection connection, int packetId) {
+        InflightMessage message = connection.getInflightWindow().get(packetId);
+        if (message != null && message.getQos() == MqttQoS.EXACTLY_ONCE) {
+            message.setState(InflightMessage.State.PUBREL_SENT);
+            // 消息已被设备接收，之后只需要重发PUBREL
+            if (message.getRetryTimeout() != null) {
+                message.getRetryTimeout().cancel();
+            }
+            scheduleRetry(connection, message);
+        }
+        connection.getChannel().writeAndFlush(
+                MqttPackets.ack(connection.getChannel().alloc(), MqttMessageType.PUBREL, packetId));
+    }
+
+    /**
+     * 收到PUBCOMP，结束QoS 2流程
+     *
+     * @param connection 设备连接
+     * @param packetId   报文标识符
+     * @return 结束的消息在本节点离线日志中的ID，不是离线消息或报文标识符不存在时返回0
+     */
+    public long onPubComp(ClientConnection connection, int packetId) {
+        InflightWindow window = connection.getInflightWindow();
+        InflightMessage message = window.get(packetId);
+        // 只结束已发送PUBREL的消息：迁移时只补发了PUBREL的标识符可能正被另一条消息占用
+        if (message == null || message.getState() != InflightMessage.State.PUBREL_SENT) {
+            return 0;
+        }
+        window.remove(packetId);
+        message.release();
+        return message.getOfflineId();
+    }
+
+    private void send(ClientConnection connection, InflightMessage message) {
+        message.setState(InflightMessage.State.PUBLISH_SENT);
+        connection.getChannel().writeAndFlush(publishMessage(message.getTopic(), message.getQos(), message.isRetain(),
+                false, message.getPacketId(), message.getPayload().retainedDuplicate()));
+        scheduleRetry(connection, message);
+    }
+
+    private void scheduleRetry(ClientConnection connection, InflightMessage message) {
+        if (connection.getProtocolVersion() == MqttVersion.MQTT_5.protocolLevel()) {
+            return;
+        }
+        Channel channel = connection.getChannel();
+        message.setRetryTimeout(retryTimer.newTimeout(
+                timeout -> channel.eventLoop().execute(() -> retry(connection, message)),
+                retryInterval, TimeUnit.MILLISECONDS));
+    }
+
+    private void retry(ClientConnection connection, InflightMessage message) {
+        InflightWindow window = connection.getInflightWindow();
+        // 报文标识符可能已被确认并复用，只处理仍在窗口中的同一条消息
+        if (window.get(message.getPacketId()) != message || !connection.getChannel().isActive()) {
+            return;
+        }
+        if (message.incrementRetries() > maxRetries) {
+            window.remove(message.getPacketId());
+            message.release();
+            log.warn("下行消息重发次数超限，放弃投递: deviceKey={}, topic={}, packetId={}",
+                    connection.getDeviceKey(), message.getTopic(), message.getPacketId());
+            return;
+        }
+        republish(connection, message);
+        scheduleRetry(connection, message);
+    }
+
+    private void republish(ClientConnection connection, InflightMessage message) {
+        Channel channel = connection.getChannel();
+        if (message.getState() == InflightMessage.State.PUBREL_SENT) {
+            channel.writeAndFlush(MqttPackets.ack(channel.alloc(), MqttMessageType.PUBREL, message.getPacketId()));
+        } else {
+            channel.writeAndFlush(publishMessage(message.getTopic(), message.getQos(), message.isRetain(), true,
+                    message.getPacketId(), message.getPayload().retainedDuplicate()));
+        }
+    }
+
+    private MqttPublishMessage publishMessage(String topic, MqttQoS qos, boolean retain, boolean dup, int packetId,
+                                              ByteBuf payload) {
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, dup, qos, retain, 0);
+        MqttPublishVariableHeader variableHeader = new MqttPublishVariableHeader(topic, packetId);
+        return new MqttPublishMessage(fixedHeader, variableHeader, payload);
+    }
+
+    private Counter droppedCounter(String reason) {
+        return Counter.builder("mqtt.delivery.dropped")
+                .description("未能投递而丢弃的下行消息数")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (retryTimer != null) {
+            retryTimer.stop();
+        }
+    }
+}
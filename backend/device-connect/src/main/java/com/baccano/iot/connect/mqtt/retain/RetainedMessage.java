@@ -0,0 +1,15 @@
+package com.baccano.iot.connect.mqtt.retain;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * 保留消息
+ *
+ * @param topic   发布主题
+ * @param qos     发布时的QoS
+ * @param payload 消息体（堆外内存）
+ * @author baccano-iot
+ */
+public record RetainedMessage(String topic, MqttQoS qos, ByteBuf payload) {
+}
@@ -0,0 +1,286 @@
+package com.baccano.iot.connect.mqtt.retain;
+
+import com.baccano.iot.connect.mqtt.topic.TopicTrie;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 保留消息存储
+ * <p>
+ * 以发布主题为路径存放在 {@link TopicTrie} 中（与订阅树同一结构），订阅时用过滤器反向查找匹配的保留消息。
+ * 消息体复制到池化的堆外内存中，堆上只保留树节点和主题，大量设备状态类保留消息不会撑大堆。
+ * <p>
+ * 替换或删除时释放旧消息体，读取时复制一份引用交给调用方，两者由读写锁互斥，
+ * 保证不会对已释放的消息体增加引用。定期（有变更时）把全部保留消息写入快照文件，启动时加载。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class RetainedMessageStore {
+    /**
+     * 每个主题节点只有一条保留消息，使用固定的键
+     */
+    private static final String KEY = "";
+
+    /**
+     * 快照文件格式标识
+     */
+    private static final int SNAPSHOT_MAGIC = 0x52544E31;
+
+    /**
+     * 保留消息条数上限，达到上限后不再接受新主题
+     */
+    @Value("${mqtt.retained.maxMessages}")
+    private Integer maxMessages;
+
+    /**
+     * 快照文件路径
+     */
+    @Value("${mqtt.retained.snapshotPath}")
+    private String snapshotPath;
+
+    /**
+     * 快照周期，单位：秒
+     */
+    @Value("${mqtt.retained.snapshotInterval}")
+    private Integer snapshotInterval;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final TopicTrie<RetainedMessage> trie = new TopicTrie<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean dirty;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        load();
+        Gauge.builder("mqtt.retained.messages", count, AtomicInteger::get)
+                .description("保留消息数")
+                .register(meterRegistry);
+        Gauge.builder("mqtt.retained.bytes", bytes, AtomicLong::get)
+                .description("保留消息体占用的堆外内存字节数")
+                .register(meterRegistry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("mqtt-retained", true));
+        scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 保存保留消息，消息体为空时删除该主题的保留消息。消息体被复制，调用方仍持有原引用
+     *
+     * @param topic   发布主题
+     * @param qos     发布QoS
+     * @param payload 消息体
+     */
+    public void put(String topic, MqttQoS qos, ByteBuf payload) {
+        int length = payload.readableBytes();
+        if (length == 0) {
+            remove(topic);
+            return;
+        }
+        if (count.get() >= maxMessages && trie.get(topic).isEmpty()) {
+            log.warn("保留消息数达到上限，忽略新主题: topic={}, max={}", topic, maxMessages);
+            return;
+        }
+        ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+        copy.writeBytes(payload, payload.readerIndex(), length);
+        RetainedMessage previous;
+        lock.writeLock().lock();
+        try {
+            previous = trie.put(topic, KEY, new RetainedMessage(topic, qos, copy));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        bytes.addAndGet(length);
+        if (previous != null) {
+            bytes.addAndGet(-previous.payload().readableBytes());
+            previous.payload().release();
+        } else {
+            count.incrementAndGet();
+        }
+        dirty = true;
+    }
+
+    /**
+     * 删除主题的保留消息
+     *
+     * @param topic 发布主题
+     */
+    public void remove(String topic) {
+        RetainedMessage previous;
+        lock.writeLock().lock();
+        try {
+            previous = trie.remove(topic, KEY);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (previous != null) {
+            count.decrementAndGet();
+            bytes.addAndGet(-previous.payload().readableBytes());
+            previous.payload().release();
+            dirty = true;
+        }
+    }
+
+    /**
+     * 查找与主题过滤器匹配的保留消息
+     *
+     * @param filter 主题过滤器
+     * @return 保留消息，每条消息体是一份新引用，由调用方负责释放
+     */
+    public List<RetainedMessage> match(String filter) {
+        List<RetainedMessage> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            trie.collect(filter, (key, message) -> result.add(
+                    new RetainedMessage(message.topic(), message.qos(), message.payload().retainedDuplicate())));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * 保留消息数
+     *
+     * @return 消息数
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * 把全部保留消息写入快照文件：先写临时文件，完成后原子替换
+     *
+     * @throws IOException 写文件失败
+     */
+    public synchronized void snapshot() throws IOException {
+        dirty = false;
+        List<RetainedMessage> messages = new ArrayList<>(count.get());
+        lock.readLock().lock();
+        try {
+            // 包括以$开头的系统主题
+            trie.forEach((key, message) -> messages.add(
+                    new RetainedMessage(message.topic(), message.qos(), message.payload().retainedDuplicate())));
+        } finally {
+            lock.readLock().unlock();
+        }
+        Path path = Paths.get(snapshotPath);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(messages.size());
+                for (RetainedMessage message : messages) {
+                    ByteBuf payload = message.payload();
+                    out.writeUTF(message.topic());
+                    out.writeByte(message.qos().value());
+                    out.writeInt(payload.readableBytes());
+                    payload.getBytes(payload.readerIndex(), out, payload.readableBytes());
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        } finally {
+            for (RetainedMessage message : messages) {
+                message.payload().release();
+            }
+        }
+        log.debug("保留消息快照已写入: path={}, count={}", path, messages.size());
+    }
+
+    /**
+     * 从快照文件加载保留消息，文件损坏时保留已读出的部分
+     */
+    private void load() {
+        Path path = Paths.get(snapshotPath);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                log.warn("保留消息快照格式不正确，忽略: path={}", path);
+                return;
+            }
+            int total = in.readInt();
+            for (int i = 0; i < total; i++) {
+                String topic = in.readUTF();
+                MqttQoS qos = MqttQoS.valueOf(in.readUnsignedByte());
+                int length = in.readInt();
+                ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+                try {
+                    payload.writeBytes(in, length);
+                    put(topic, qos, payload);
+                } finally {
+                    payload.release();
+                }
+            }
+            log.info("保留消息快照已加载: path={}, count={}", path, count.get());
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("保留消息快照加载失败: path={}, loaded={}, error={}", path, count.get(), e.getMessage());
+        }
+        dirty = false;
+    }
+
+    private void snapshotQuietly() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (Exception e) {
+            log.error("保留消息快照写入失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        snapshotQuietly();
+        lock.writeLock().lock();
+        try {
+            trie.forEach((key, message) -> message.payload().release());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
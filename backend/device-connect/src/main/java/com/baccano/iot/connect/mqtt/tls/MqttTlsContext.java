@@ -0,0 +1,298 @@
+package com.baccano.iot.connect.mqtt.tls;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionStats;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * MQTT TLS上下文
+ * <p>
+ * 启动时构建一个全局共享的 {@link SslContext}，优先使用OpenSSL(BoringSSL)实现，不可用时降级为JDK实现。
+ * 设备重连时通过会话缓存或会话票据恢复会话，省去完整握手的非对称运算；集群各节点配置同一个票据密钥文件时，
+ * 设备换节点重连也能恢复。ALPN声明 {@code mqtt} 协议，不支持ALPN的设备不受影响。
+ * <p>
+ * 开启设备证书校验时，握手完成后把设备证书的SHA-256指纹（小写十六进制）作为证书ID挂在Channel属性上，
+ * 与设备凭证中登记的证书ID（Device.certificateId）对应，CONNECT时据此认证设备。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class MqttTlsContext {
+    /**
+     * 设备证书ID，未启用或设备未提供证书时为空
+     */
+    public static final AttributeKey<String> CERTIFICATE_ID = AttributeKey.valueOf("mqtt.certificateId");
+
+    private static final String ALPN_PROTOCOL = "mqtt";
+
+    /**
+     * 是否启用TLS监听
+     */
+    @Getter
+    @Value("${mqtt.broker.ssl.enabled}")
+    private boolean enabled;
+
+    /**
+     * 服务端证书链（PEM）
+     */
+    @Value("${mqtt.broker.ssl.certFile}")
+    private String certFile;
+
+    /**
+     * 服务端私钥（PKCS#8 PEM）
+     */
+    @Value("${mqtt.broker.ssl.keyFile}")
+    private String keyFile;
+
+    /**
+     * 签发设备证书的CA证书（PEM），为空时不校验设备证书
+     */
+    @Value("${mqtt.broker.ssl.trustCertFile}")
+    private String trustCertFile;
+
+    /**
+     * 设备证书校验 none/optional/require
+     */
+    @Value("${mqtt.broker.ssl.clientAuth}")
+    private String clientAuth;
+
+    /**
+     * TLS实现 auto/openssl/jdk
+     */
+    @Value("${mqtt.broker.ssl.provider}")
+    private String provider;
+
+    /**
+     * 服务端会话缓存条数
+     */
+    @Value("${mqtt.broker.ssl.sessionCacheSize}")
+    private Integer sessionCacheSize;
+
+    /**
+     * 会话恢复有效期，单位：秒
+     */
+    @Value("${mqtt.broker.ssl.sessionTimeout}")
+    private Integer sessionTimeout;
+
+    /**
+     * 会话票据密钥文件，为空时每个进程随机生成
+     */
+    @Value("${mqtt.broker.ssl.ticketKeyFile}")
+    private String ticketKeyFile;
+
+    /**
+     * 握手超时，单位：秒
+     */
+    @Value("${mqtt.broker.ssl.handshakeTimeout}")
+    private Integer handshakeTimeout;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 实际使用的TLS实现
+     */
+    @Getter
+    private SslProvider sslProvider;
+
+    private SslContext sslContext;
+    private Timer handshakeSuccess;
+    private Counter handshakeFailure;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        sslProvider = selectProvider();
+        ClientAuth auth = ClientAuth.valueOf(clientAuth.toUpperCase(Locale.ROOT));
+        SslContextBuilder builder = SslContextBuilder.forServer(new File(certFile), new File(keyFile))
+                .sslProvider(sslProvider)
+                .protocols("TLSv1.3", "TLSv1.2")
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeout)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ALPN_PROTOCOL));
+        if (trustCertFile != null && !trustCertFile.isEmpty()) {
+            builder.trustManager(new File(trustCertFile)).clientAuth(auth);
+        } else if (auth != ClientAuth.NONE) {
+            throw new IllegalStateException("启用设备证书校验时必须配置 mqtt.broker.ssl.trustCertFile");
+        }
+        sslContext = builder.build();
+
+        if (sslContext.sessionContext() instanceof OpenSslSessionContext sessionContext) {
+            if (ticketKeyFile != null && !ticketKeyFile.isEmpty()) {
+                sessionContext.setTicketKeys(readTicketKeys(ticketKeyFile));
+            }
+            registerSessionStats(sessionContext);
+        }
+        handshakeSuccess = Timer.builder("mqtt.tls.handshake")
+                .description("TLS握手耗时")
+                .tag("result", "success")
+                .register(meterRegistry);
+        handshakeFailure = Counter.builder("mqtt.tls.handshake.failures")
+                .description("TLS握手失败次数")
+                .register(meterRegistry);
+        log.info("MQTT TLS已启用: provider={}, clientAuth={}, sessionCacheSize={}, sessionTimeout={}s, sharedTicketKeys={}",
+                sslProvider, auth, sessionCacheSize, sessionTimeout, ticketKeyFile != null && !ticketKeyFile.isEmpty());
+    }
+
+    /**
+     * 为新连接创建TLS处理器，握手完成后记录耗时并提取设备证书ID
+     *
+     * @param channel 设备连接通道
+     * @return TLS处理器，放在pipeline最前面
+     */
+    public SslHandler newHandler(Channel channel) {
+        SslHandler handler = sslContext.newHandler(channel.alloc());
+        handler.setHandshakeTimeout(handshakeTimeout, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        handler.handshakeFuture().addListener((Future<Channel> f) -> {
+            if (!f.isSuccess()) {
+                handshakeFailure.increment();
+                log.debug("TLS握手失败: channel={}, error={}", channel.id().asShortText(), f.cause().getMessage());
+                return;
+            }
+            handshakeSuccess.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            String certificateId = certificateId(handler);
+            if (certificateId != null) {
+                channel.attr(CERTIFICATE_ID).set(certificateId);
+            }
+        });
+        return handler;
+    }
+
+    /**
+     * 读取设备证书ID
+     *
+     * @param channel 设备连接通道
+     * @return 证书ID，非TLS连接或设备未提供证书时返回null
+     */
+    public static String certificateId(Channel channel) {
+        return channel.attr(CERTIFICATE_ID).get();
+    }
+
+    private SslProvider selectProvider() {
+        return switch (provider.toLowerCase(Locale.ROOT)) {
+            case "jdk" -> SslProvider.JDK;
+            case "openssl" -> {
+                if (!OpenSsl.isAvailable()) {
+                    throw new IllegalStateException("OpenSSL不可用", OpenSsl.unavailabilityCause());
+                }
+                yield SslProvider.OPENSSL;
+            }
+            default -> {
+                if (OpenSsl.isAvailable()) {
+                    yield SslProvider.OPENSSL;
+                }
+                log.warn("OpenSSL不可用，TLS降级为JDK实现: {}", OpenSsl.unavailabilityCause().getMessage());
+                yield SslProvider.JDK;
+            }
+        };
+    }
+
+    /**
+     * 读取会话票据密钥文件：每48字节一组密钥，依次为名称16字节、HMAC密钥16字节、AES密钥16字节，第一组用于签发新票据
+     *
+     * @param file 密钥文件
+     * @return 票据密钥
+     * @throws IOException 读取文件失败
+     */
+    private static OpenSslSessionTicketKey[] readTicketKeys(String file) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(file));
+        if (bytes.length == 0 || bytes.length % OpenSslSessionTicketKey.TICKET_KEY_SIZE != 0) {
+            throw new IllegalStateException("会话票据密钥文件长度必须是" + OpenSslSessionTicketKey.TICKET_KEY_SIZE
+                    + "字节的整数倍: " + file);
+        }
+        OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[bytes.length / OpenSslSessionTicketKey.TICKET_KEY_SIZE];
+        for (int i = 0; i < keys.length; i++) {
+            int offset = i * OpenSslSessionTicketKey.TICKET_KEY_SIZE;
+            int hmacOffset = offset + OpenSslSessionTicketKey.NAME_SIZE;
+            int aesOffset = hmacOffset + OpenSslSessionTicketKey.HMAC_KEY_SIZE;
+            keys[i] = new OpenSslSessionTicketKey(
+                    Arrays.copyOfRange(bytes, offset, hmacOffset),
+                    Arrays.copyOfRange(bytes, hmacOffset, aesOffset),
+                    Arrays.copyOfRange(bytes, aesOffset, aesOffset + OpenSslSessionTicketKey.AES_KEY_SIZE));
+        }
+        return keys;
+    }
+
+    /**
+     * 设备证书的SHA-256指纹
+     */
+    private static String certificateId(SslHandler handler) {
+        try {
+            Certificate[] certificates = handler.engine().getSession().getPeerCertificates();
+            if (certificates.length == 0) {
+                return null;
+            }
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificates[0].getEncoded());
+            return ByteBufUtil.hexDump(digest);
+        } catch (SSLPeerUnverifiedException e) {
+            // 设备未提供证书（clientAuth=optional）
+            return null;
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            log.warn("设备证书ID计算失败: error={}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 会话恢复统计：hits为会话缓存命中，ticketKeyResume为票据恢复，两者之和占accept的比例即恢复率
+     */
+    private void registerSessionStats(OpenSslSessionContext sessionContext) {
+        OpenSslSessionStats stats = sessionContext.stats();
+        registerStat("accept", "接受的握手次数", stats, OpenSslSessionStats::accept);
+        registerStat("cache.hits", "会话缓存命中次数", stats, OpenSslSessionStats::hits);
+        registerStat("cache.misses", "会话缓存未命中次数", stats, OpenSslSessionStats::misses);
+        registerStat("cache.timeouts", "会话已过期的恢复请求次数", stats, OpenSslSessionStats::timeouts);
+        registerStat("ticket.resumes", "会话票据恢复次数", stats, OpenSslSessionStats::ticketKeyResume);
+        registerStat("ticket.failures", "会话票据解密失败次数", stats, OpenSslSessionStats::ticketKeyFail);
+    }
+
+    private void registerStat(String name, String description, OpenSslSessionStats stats,
+                              ToDoubleFunction<OpenSslSessionStats> value) {
+        FunctionCounter.builder("mqtt.tls.session." + name, stats, value)
+                .description(description)
+                .register(meterRegistry);
+    }
+}
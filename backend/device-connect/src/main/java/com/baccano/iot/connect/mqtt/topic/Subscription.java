@@ -0,0 +1,14 @@
+package com.baccano.iot.connect.mqtt.topic;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * 主题订阅
+ *
+ * @param deviceKey   订阅方设备Key
+ * @param topicFilter 主题过滤器，可包含 + 和 # 通配符
+ * @param qos         订阅授予的最大QoS
+ * @author baccano-iot
+ */
+public record Subscription(String deviceKey, String topicFilter, MqttQoS qos) {
+}
@@ -0,0 +1,353 @@
+package com.baccano.iot.connect.mqtt.topic;
+
+import com.baccano.iot.connect.mqtt.MqttPackets;
+import com.baccano.iot.connect.mqtt.publish.PublishMessage;
+import com.baccano.iot.connect.mqtt.publish.PublishSink;
+import com.baccano.iot.connect.mqtt.qos.QosDeliveryManager;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订阅管理与消息扇出路由
+ * <p>
+ * 订阅关系保存在 {@link TopicTrie} 中，非空的匹配结果按具体主题缓存在有界的Caffeine缓存中（按访问频率淘汰），
+ * 热点主题的扇出只需遍历订阅者；没有订阅者的主题（如每个设备各自的上行主题）不缓存，避免挤掉热点主题。
+ * 精确过滤器（如 v1/{deviceKey}/command）的变更只失效同名主题的缓存，通配符过滤器的变更只失效与之匹配的主题。
+ * 每次变更都会推进版本号，匹配线程写入缓存后再校验版本，避免把变更前计算出的旧结果留在缓存中。
+ * <p>
+ * 设备只能订阅和发布自己命名空间（{devicePrefix}/{deviceKey}/...）下的主题，
+ * 不能订阅 # 之类的跨设备过滤器，也不能向其他设备的指令主题发布，设备间扇出只发生在同一设备的主题之间。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class SubscriptionRouter implements PublishSink {
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Autowired
+    private QosDeliveryManager qosDeliveryManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 匹配结果缓存的最大主题数
+     */
+    @Value("${mqtt.subscription.matchCacheSize}")
+    private Integer matchCacheSize;
+
+    /**
+     * 订阅者数达到该值时QoS 0扇出改为广播路径
+     */
+    @Value("${mqtt.subscription.broadcastThreshold}")
+    private Integer broadcastThreshold;
+
+    /**
+     * 设备主题前缀
+     */
+    @Value("${mqtt.topic.devicePrefix}")
+    private String devicePrefix;
+
+    private final TopicTrie<Subscription> trie = new TopicTrie<>();
+
+    /**
+     * 具体主题 -> 去重后的订阅列表
+     */
+    private Cache<String, List<Subscription>> matchCache;
+
+    /**
+     * 订阅关系版本号
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * 设备Key -> 该设备的主题过滤器
+     */
+    private final ConcurrentHashMap<String, Set<String>> filtersByDevice = new ConcurrentHashMap<>();
+
+    private Counter broadcastWritten;
+
+    @PostConstruct
+    public void init() {
+        matchCache = Caffeine.newBuilder()
+                .maximumSize(matchCacheSize)
+                .build();
+        broadcastWritten = Counter.builder("mqtt.broadcast.written")
+                .description("广播路径实际写出的连接数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 订阅主题
+     *
+     * @param deviceKey 设备Key
+     * @param filter    主题过滤器
+     * @param qos       请求的QoS
+     * @return 授予的QoS，过滤器非法或超出设备命名空间时返回0x80
+     */
+    public int subscribe(String deviceKey, String filter, MqttQoS qos) {
+        if (!Topics.isValidFilter(filter)) {
+            log.warn("非法的订阅主题: deviceKey={}, filter={}", deviceKey, filter);
+            return MqttQoS.FAILURE.value();
+        }
+        if (!isAuthorized(deviceKey, filter)) {
+            log.warn("订阅主题超出设备命名空间: deviceKey={}, filter={}", deviceKey, filter);
+            return MqttQoS.FAILURE.value();
+        }
+        trie.put(filter, deviceKey, new Subscription(deviceKey, filter, qos));
+        filtersByDevice.computeIfAbsent(deviceKey, k -> ConcurrentHashMap.newKeySet()).add(filter);
+        invalidate(filter);
+        return qos.value();
+    }
+
+    /**
+     * 主题或主题过滤器是否在设备自己的命名空间内。命名空间的各级都是字面值，
+     * 以它开头的过滤器（如 v1/{deviceKey}/#）只能匹配到该设备的主题
+     *
+     * @param deviceKey 设备Key
+     * @param topic     发布主题或主题过滤器
+     * @return 是否允许
+     */
+    public boolean isAuthorized(String deviceKey, String topic) {
+        int namespaceLength = devicePrefix.length() + deviceKey.length() + 2;
+        return topic.length() > namespaceLength
+                && topic.startsWith(devicePrefix)
+                && topic.charAt(devicePrefix.length()) == '/'
+                && topic.startsWith(deviceKey, devicePrefix.length() + 1)
+                && topic.charAt(namespaceLength - 1) == '/';
+    }
+
+    /**
+     * 取消订阅
+     *
+     * @param deviceKey 设备Key
+     * @param filter    主题过滤器
+     * @return 订阅是否存在
+     */
+    public boolean unsubscribe(String deviceKey, String filter) {
+        Set<String> filters = filtersByDevice.get(deviceKey);
+        if (filters != null) {
+            filters.remove(filter);
+        }
+        if (trie.remove(filter, deviceKey) == null) {
+            return false;
+        }
+        invalidate(filter);
+        return true;
+    }
+
+    /**
+     * 取消设备的全部订阅
+     *
+     * @param deviceKey 设备Key
+     */
+    public void unsubscribeAll(String deviceKey) {
+        Set<String> filters = filtersByDevice.remove(deviceKey);
+        if (filters == null) {
+            return;
+        }
+        for (String filter : filters) {
+            if (trie.remove(filter, deviceKey) != null) {
+                invalidate(filter);
+            }
+        }
+    }
+
+    /**
+     * 设备当前的主题过滤器
+     *
+     * @param deviceKey 设备Key
+     * @return 主题过滤器
+     */
+    public Set<String> filtersOf(String deviceKey) {
+        Set<String> filters = filtersByDevice.get(deviceKey);
+        return filters != null ? Collections.unmodifiableSet(filters) : Collections.emptySet();
+    }
+
+    /**
+     * 匹配订阅了该主题的设备，同一设备命中多个过滤器时只保留最大QoS
+     *
+     * @param topic 发布主题
+     * @return 订阅列表（不可变）
+     */
+    public List<Subscription> match(String topic) {
+        List<Subscription> cached = matchCache.getIfPresent(topic);
+        if (cached != null) {
+            return cached;
+        }
+        long stamp = version.get();
+        Map<String, Subscription> merged = new HashMap<>();
+        trie.match(topic, (deviceKey, subscription) -> merged.merge(deviceKey, subscription,
+                (a, b) -> a.qos().value() >= b.qos().value() ? a : b));
+        List<Subscription> result = merged.isEmpty()
+                ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(merged.values()));
+        if (!result.isEmpty() && version.get() == stamp) {
+            matchCache.put(topic, result);
+            // 写入后复查版本，写入与变更交错时撤回可能过期的结果
+            if (version.get() != stamp) {
+                matchCache.asMap().remove(topic, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 向订阅者扇出消息，可在任意线程调用，消息体的一个引用由本方法接管。
+     * 订阅者较多时QoS 0订阅者走广播路径（见 {@link #broadcast}），其余逐个投递
+     *
+     * @param topic   发布主题
+     * @param qos     发布QoS
+     * @param payload 消息体
+     * @return 已完成投递的订阅者数量；广播路径中提交到其他EventLoop的连接在返回时尚未写出，不计入，
+     * 实际写出数见指标 {@code mqtt.broadcast.written}
+     */
+    public int route(String topic, MqttQoS qos, ByteBuf payload) {
+        try {
+            List<Subscription> subscriptions = match(topic);
+            boolean broadcast = subscriptions.size() >= broadcastThreshold;
+            List<ClientConnection> atMostOnce = null;
+            int delivered = 0;
+            for (Subscription subscription : subscriptions) {
+                ClientConnection connection = clientRegistry.get(subscription.deviceKey());
+                if (connection == null) {
+                    continue;
+                }
+                MqttQoS grantedQos = qos.value() <= subscription.qos().value() ? qos : subscription.qos();
+                if (broadcast && grantedQos == MqttQoS.AT_MOST_ONCE) {
+                    if (atMostOnce == null) {
+                        atMostOnce = new ArrayList<>(subscriptions.size());
+                    }
+                    atMostOnce.add(connection);
+                    continue;
+                }
+                if (qosDeliveryManager.deliver(connection, topic, grantedQos, payload.retainedDuplicate())) {
+                    delivered++;
+                }
+            }
+            if (atMostOnce != null) {
+                delivered += broadcast(topic, payload, atMostOnce);
+            }
+            return delivered;
+        } finally {
+            payload.release();
+        }
+    }
+
+    /**
+     * 广播扇出：QoS 0 PUBLISH对所有订阅者字节完全相同，按协议版本各编码一次得到只读缓冲区，
+     * 每个连接写出一份duplicate（共享内存，只增加引用计数）。报文使用连接Channel配置的分配器（即服务端配置的分配器）。
+     * 连接按所属EventLoop分组，每组作为一个任务提交到对应的EventLoop上写出并flush，扇出不跨线程访问Channel
+     *
+     * @param topic       发布主题
+     * @param payload     消息体，调用方仍持有原引用
+     * @param connections QoS 0订阅者的连接
+     * @return 当前线程所在EventLoop上实际写出的连接数，其他EventLoop上的写出异步完成，不计入
+     */
+    private int broadcast(String topic, ByteBuf payload, List<ClientConnection> connections) {
+        Map<EventLoop, List<ClientConnection>> byLoop = new IdentityHashMap<>();
+        boolean hasMqtt5 = false;
+        boolean hasMqtt3 = false;
+        for (ClientConnection connection : connections) {
+            byLoop.computeIfAbsent(connection.getChannel().eventLoop(), k -> new ArrayList<>()).add(connection);
+            if (connection.getProtocolVersion() == MqttVersion.MQTT_5.protocolLevel()) {
+                hasMqtt5 = true;
+            } else {
+                hasMqtt3 = true;
+            }
+        }
+        ByteBufAllocator alloc = connections.get(0).getChannel().alloc();
+        ByteBuf mqtt3Packet = hasMqtt3 ? MqttPackets.publish(alloc, topic, false, payload, false) : null;
+        ByteBuf mqtt5Packet = hasMqtt5 ? MqttPackets.publish(alloc, topic, false, payload, true) : null;
+        int written = 0;
+        try {
+            for (Map.Entry<EventLoop, List<ClientConnection>> entry : byLoop.entrySet()) {
+                // 每个任务持有一份引用，写完后释放
+                ByteBuf mqtt3 = mqtt3Packet != null ? mqtt3Packet.retain() : null;
+                ByteBuf mqtt5 = mqtt5Packet != null ? mqtt5Packet.retain() : null;
+                if (entry.getKey().inEventLoop()) {
+                    written += writeGroup(entry.getValue(), mqtt3, mqtt5);
+                } else {
+                    entry.getKey().execute(() -> writeGroup(entry.getValue(), mqtt3, mqtt5));
+                }
+            }
+        } finally {
+            ReferenceCountUtil.release(mqtt3Packet);
+            ReferenceCountUtil.release(mqtt5Packet);
+        }
+        return written;
+    }
+
+    /**
+     * 在EventLoop上向同组连接写出预编码报文，全部写完后再逐个flush
+     *
+     * @return 实际写出的连接数，不可写、已关闭或尚未完成CONNACK的连接不计入
+     */
+    private int writeGroup(List<ClientConnection> group, ByteBuf mqtt3Packet, ByteBuf mqtt5Packet) {
+        try {
+            List<ClientConnection> written = new ArrayList<>(group.size());
+            for (ClientConnection connection : group) {
+                ByteBuf packet = connection.getProtocolVersion() == MqttVersion.MQTT_5.protocolLevel()
+                        ? mqtt5Packet : mqtt3Packet;
+                if (qosDeliveryManager.writeEncoded(connection, packet.retainedDuplicate())) {
+                    written.add(connection);
+                }
+            }
+            for (ClientConnection connection : written) {
+                connection.getChannel().flush();
+            }
+            broadcastWritten.increment(written.size());
+            return written.size();
+        } finally {
+            ReferenceCountUtil.release(mqtt3Packet);
+            ReferenceCountUtil.release(mqtt5Packet);
+        }
+    }
+
+    /**
+     * 设备间消息：上行发布同样扇出给订阅了该主题的设备。发布主题已由 {@link #isAuthorized} 限定在发布者的命名空间内
+     */
+    @Override
+    public void onPublish(PublishMessage message) {
+        try {
+            route(message.getTopic(), MqttQoS.valueOf(message.getQos()), message.getPayload().retainedDuplicate());
+        } finally {
+            message.release();
+        }
+    }
+
+    private void invalidate(String filter) {
+        version.incrementAndGet();
+        if (Topics.hasWildcard(filter)) {
+            matchCache.asMap().keySet().removeIf(topic -> Topics.matches(filter, topic));
+        } else {
+            matchCache.invalidate(filter);
+        }
+    }
+}
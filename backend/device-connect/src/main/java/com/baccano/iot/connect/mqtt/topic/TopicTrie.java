@@ -0,0 +1,217 @@
+package com.baccano.iot.connect.mqtt.topic;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * 支持 + 和 # 通配符的并发主题树
+ * <p>
+ * 读路径（匹配）完全无锁：子节点存放在 {@link ConcurrentHashMap} 中，
+ * 每个节点的订阅者集合是写时复制的不可变Map，通过volatile引用发布。
+ * 写路径（订阅、取消订阅、剪枝）由一把写锁串行化，保证剪枝不会与新增子节点竞争。
+ * <p>
+ * 同一结构也可以反过来用：以具体主题为路径保存值（如保留消息），再用带通配符的过滤器查找，见 {@link #collect}。
+ *
+ * @param <V> 节点上保存的值类型
+ * @author baccano-iot
+ */
+public class TopicTrie<V> {
+    private final Node<V> root = new Node<>(null, null);
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * 在主题过滤器对应的节点上保存值
+     *
+     * @param filter 主题过滤器
+     * @param key    值的键（同一节点下按键去重）
+     * @param value  值
+     * @return 被替换的旧值，不存在时返回null
+     */
+    public V put(String filter, String key, V value) {
+        writeLock.lock();
+        try {
+            Node<V> node = root;
+            for (String level : Topics.split(filter)) {
+                Node<V> parent = node;
+                node = parent.children.computeIfAbsent(level, l -> new Node<>(l, parent));
+            }
+            Map<String, V> values = new HashMap<>(node.values);
+            V previous = values.put(key, value);
+            node.values = Collections.unmodifiableMap(values);
+            return previous;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 删除主题过滤器节点上的值，并剪除变空的节点
+     *
+     * @param filter 主题过滤器
+     * @param key    值的键
+     * @return 被删除的值，不存在时返回null
+     */
+    public V remove(String filter, String key) {
+        writeLock.lock();
+        try {
+            Node<V> node = find(filter);
+            if (node == null || !node.values.containsKey(key)) {
+                return null;
+            }
+            Map<String, V> values = new HashMap<>(node.values);
+            V previous = values.remove(key);
+            node.values = values.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(values);
+            prune(node);
+            return previous;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 获取主题过滤器节点上的全部值（精确匹配过滤器本身，不做通配）
+     *
+     * @param filter 主题过滤器
+     * @return 值，不存在时返回空Map
+     */
+    public Map<String, V> get(String filter) {
+        Node<V> node = find(filter);
+        return node != null ? node.values : Collections.emptyMap();
+    }
+
+    /**
+     * 遍历所有与发布主题匹配的节点上的值
+     *
+     * @param topic    发布主题（不含通配符）
+     * @param consumer 值的消费者，参数为（键，值）
+     */
+    public void match(String topic, BiConsumer<String, V> consumer) {
+        String[] levels = Topics.split(topic);
+        // 以$开头的系统主题不与首级通配符匹配
+        match(root, levels, 0, !levels[0].startsWith("$"), consumer);
+    }
+
+    /**
+     * 匹配结果收集为列表的便捷方法
+     *
+     * @param topic  发布主题
+     * @param result 结果容器
+     */
+    public void match(String topic, List<V> result) {
+        match(topic, (key, value) -> result.add(value));
+    }
+
+    /**
+     * 遍历所有与主题过滤器匹配的节点上的值，树中的路径应为具体主题
+     *
+     * @param filter   主题过滤器（可含通配符）
+     * @param consumer 值的消费者，参数为（键，值）
+     */
+    public void collect(String filter, BiConsumer<String, V> consumer) {
+        collect(root, Topics.split(filter), 0, consumer);
+    }
+
+    /**
+     * 遍历树中的全部值
+     *
+     * @param consumer 值的消费者，参数为（键，值）
+     */
+    public void forEach(BiConsumer<String, V> consumer) {
+        descendants(root, consumer);
+    }
+
+    private void collect(Node<V> node, String[] levels, int index, BiConsumer<String, V> consumer) {
+        if (index == levels.length) {
+            node.values.forEach(consumer);
+            return;
+        }
+        String level = levels[index];
+        // 以$开头的系统主题不与首级通配符匹配
+        boolean systemAllowed = index > 0;
+        if (Topics.MULTI_LEVEL_WILDCARD.equals(level)) {
+            // "a/#" 同时匹配 "a" 及其所有子级
+            node.values.forEach(consumer);
+            for (Node<V> child : node.children.values()) {
+                if (systemAllowed || !child.level.startsWith("$")) {
+                    descendants(child, consumer);
+                }
+            }
+        } else if (Topics.SINGLE_LEVEL_WILDCARD.equals(level)) {
+            for (Node<V> child : node.children.values()) {
+                if (systemAllowed || !child.level.startsWith("$")) {
+                    collect(child, levels, index + 1, consumer);
+                }
+            }
+        } else {
+            Node<V> exact = node.children.get(level);
+            if (exact != null) {
+                collect(exact, levels, index + 1, consumer);
+            }
+        }
+    }
+
+    private void descendants(Node<V> node, BiConsumer<String, V> consumer) {
+        node.values.forEach(consumer);
+        for (Node<V> child : node.children.values()) {
+            descendants(child, consumer);
+        }
+    }
+
+    private void match(Node<V> node, String[] levels, int index, boolean wildcardAllowed,
+                       BiConsumer<String, V> consumer) {
+        Node<V> multi = wildcardAllowed ? node.children.get(Topics.MULTI_LEVEL_WILDCARD) : null;
+        if (multi != null) {
+            // "a/#" 同时匹配 "a" 及其所有子级
+            multi.values.forEach(consumer);
+        }
+        if (index == levels.length) {
+            node.values.forEach(consumer);
+            return;
+        }
+        if (wildcardAllowed) {
+            Node<V> single = node.children.get(Topics.SINGLE_LEVEL_WILDCARD);
+            if (single != null) {
+                match(single, levels, index + 1, true, consumer);
+            }
+        }
+        Node<V> exact = node.children.get(levels[index]);
+        if (exact != null) {
+            match(exact, levels, index + 1, true, consumer);
+        }
+    }
+
+    private Node<V> find(String filter) {
+        Node<V> node = root;
+        for (String level : Topics.split(filter)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private void prune(Node<V> node) {
+        while (node.parent != null && node.values.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.level, node);
+            node = node.parent;
+        }
+    }
+
+    private static final class Node<V> {
+        private final String level;
+        private final Node<V> parent;
+        private final ConcurrentHashMap<String, Node<V>> children = new ConcurrentHashMap<>(2);
+        private volatile Map<String, V> values = Collections.emptyMap();
+
+        private Node(String level, Node<V> parent) {
+            this.level = level;
+            this.parent = parent;
+        }
+    }
+}
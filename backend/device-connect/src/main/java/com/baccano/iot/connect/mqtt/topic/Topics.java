@@ -0,0 +1,110 @@
+package com.baccano.iot.connect.mqtt.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MQTT主题与主题过滤器工具方法
+ *
+ * @author baccano-iot
+ */
+public final class Topics {
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private Topics() {
+    }
+
+    /**
+     * 按层级拆分主题，保留空层级（"a//b"、"/a"、"a/" 都是合法主题）
+     *
+     * @param topic 主题或主题过滤器
+     * @return 层级数组
+     */
+    public static String[] split(String topic) {
+        List<String> levels = new ArrayList<>(8);
+        int start = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                levels.add(topic.substring(start, i));
+                start = i + 1;
+            }
+        }
+        levels.add(topic.substring(start));
+        return levels.toArray(new String[0]);
+    }
+
+    /**
+     * 主题过滤器是否合法：+ 必须独占一级，# 必须独占最后一级
+     *
+     * @param filter 主题过滤器
+     * @return 是否合法
+     */
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        String[] levels = split(filter);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.contains(MULTI_LEVEL_WILDCARD)
+                    && (!level.equals(MULTI_LEVEL_WILDCARD) || i != levels.length - 1)) {
+                return false;
+            }
+            if (level.contains(SINGLE_LEVEL_WILDCARD) && !level.equals(SINGLE_LEVEL_WILDCARD)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 主题过滤器是否包含通配符
+     *
+     * @param filter 主题过滤器
+     * @return 是否包含通配符
+     */
+    public static boolean hasWildcard(String filter) {
+        return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+    }
+
+    /**
+     * 主题过滤器是否匹配具体主题，规则与 {@link TopicTrie} 一致：以$开头的系统主题不与首级通配符匹配
+     *
+     * @param filter 主题过滤器
+     * @param topic  具体主题
+     * @return 是否匹配
+     */
+    public static boolean matches(String filter, String topic) {
+        String[] filterLevels = split(filter);
+        String[] topicLevels = split(topic);
+        for (int i = 0; i < filterLevels.length; i++) {
+            String level = filterLevels[i];
+            boolean wildcard = MULTI_LEVEL_WILDCARD.equals(level) || SINGLE_LEVEL_WILDCARD.equals(level);
+            if (wildcard && i == 0 && topicLevels[0].startsWith("$")) {
+                return false;
+            }
+            if (MULTI_LEVEL_WILDCARD.equals(level)) {
+                // "a/#" 同时匹配 "a" 及其所有子级
+                return true;
+            }
+            if (i >= topicLevels.length) {
+                return false;
+            }
+            if (!wildcard && !level.equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * 发布主题是否合法：非空且不包含通配符
+     *
+     * @param topic 发布主题
+     * @return 是否合法
+     */
+    public static boolean isValidTopic(String topic) {
+        return topic != null && !topic.isEmpty() && !hasWildcard(topic);
+    }
+}
@@ -0,0 +1,238 @@
+package com.baccano.iot.connect.offline;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 离线日志段：固定大小、内存映射的只追加文件
+ * <p>
+ * 记录格式：记录体长度(int) CRC32(int) 记录体。文件创建时即按段大小预分配（内容为0），
+ * 长度为0或校验失败的位置即为已写入数据的末尾。非线程安全，由 {@link OfflineMessageLog} 加锁访问。
+ *
+ * @author baccano-iot
+ */
+final class OfflineLogSegment {
+    static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * {@code sun.misc.Unsafe#invokeCleaner}（jdk.unsupported模块），用于关闭时立即解除映射；
+     * 不可用时为null，映射在缓冲区被回收后由JVM解除
+     */
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    /**
+     * 段序号，越大越新
+     */
+    private final long sequence;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /**
+     * 下一条记录的写入位置
+     */
+    private int writePosition;
+
+    /**
+     * 段内未确认的消息数
+     */
+    private int liveCount;
+
+    /**
+     * 段内未确认消息的字节数
+     */
+    private long liveBytes;
+
+    /**
+     * 段内消息的最晚过期时间（epoch毫秒）
+     */
+    private long maxExpireAtMillis;
+
+    private OfflineLogSegment(long sequence, Path path, FileChannel channel, int capacity) throws IOException {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * 打开或创建日志段
+     *
+     * @param dir      日志目录
+     * @param sequence 段序号
+     * @param capacity 段大小
+     * @return 日志段
+     * @throws IOException 文件操作失败
+     */
+    static OfflineLogSegment open(Path dir, long sequence, int capacity) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", sequence, SUFFIX));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new OfflineLogSegment(sequence, path, channel, capacity);
+    }
+
+    /**
+     * 从文件名解析段序号
+     *
+     * @param path 文件路径
+     * @return 段序号，不是日志段文件时返回-1
+     */
+    static long parseSequence(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param body 记录体
+     * @return 记录位置，剩余空间不足时返回-1
+     */
+    int append(ByteBuffer body) {
+        int length = body.remaining();
+        if (writePosition + HEADER_SIZE + length > buffer.capacity()) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        int position = writePosition;
+        buffer.putInt(position + Integer.BYTES, (int) crc.getValue());
+        buffer.put(position + HEADER_SIZE, body, body.position(), length);
+        // 长度最后写入，崩溃时不会留下长度有效而内容不完整的记录
+        buffer.putInt(position, length);
+        writePosition = position + HEADER_SIZE + length;
+        return position;
+    }
+
+    /**
+     * 读取记录体
+     *
+     * @param position 记录位置
+     * @return 记录体，位置无效或校验失败时返回null
+     */
+    ByteBuffer read(int position) {
+        if (position < 0 || position + HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+            return null;
+        }
+        ByteBuffer body = buffer.slice(position + HEADER_SIZE, length);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * 下一条记录的位置
+     *
+     * @param position 当前记录位置
+     * @return 下一条记录位置
+     */
+    int next(int position) {
+        return position + HEADER_SIZE + buffer.getInt(position);
+    }
+
+    void recordLive(int bytes, long expireAtMillis) {
+        liveCount++;
+        liveBytes += bytes;
+        maxExpireAtMillis = Math.max(maxExpireAtMillis, expireAtMillis);
+    }
+
+    void recordDead(int bytes) {
+        liveCount--;
+        liveBytes -= bytes;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    int writePosition() {
+        return writePosition;
+    }
+
+    void writePosition(int writePosition) {
+        this.writePosition = writePosition;
+    }
+
+    int liveCount() {
+        return liveCount;
+    }
+
+    long liveBytes() {
+        return liveBytes;
+    }
+
+    long maxExpireAtMillis() {
+        return maxExpireAtMillis;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 将映射内存中的修改写回磁盘
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * 关闭并解除映射
+     */
+    void close() throws IOException {
+        channel.close();
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            } catch (Throwable e) {
+                throw new IOException("解除内存映射失败: " + path, e);
+            }
+        }
+    }
+
+    /**
+     * 关闭并删除文件
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
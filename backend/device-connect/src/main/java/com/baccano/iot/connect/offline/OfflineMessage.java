@@ -0,0 +1,15 @@
+package com.baccano.iot.connect.offline;
+
+/**
+ * 离线消息
+ *
+ * @param id             消息ID
+ * @param deviceKey      目标设备Key
+ * @param topic          主题
+ * @param qos            QoS等级
+ * @param expireAtMillis 过期时间（epoch毫秒）
+ * @param payload        消息体
+ * @author baccano-iot
+ */
+public record OfflineMessage(long id, String deviceKey, String topic, int qos, long expireAtMillis, byte[] payload) {
+}
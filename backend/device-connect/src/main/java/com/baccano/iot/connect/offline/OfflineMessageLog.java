@@ -0,0 +1,364 @@
+package com.baccano.iot.connect.offline;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 本地离线消息日志
+ * <p>
+ * 离线消息按到达顺序追加到固定大小的内存映射日志段中，写满后滚动到新段；消息被取走时追加一条确认记录。
+ * 内存中只保存 消息ID -> 位置 的索引，启动时顺序扫描全部日志段重建（确认记录和过期消息被跳过）。
+ * <p>
+ * 压缩只处理最老的日志段：段内消息全部确认/过期，或存活字节占比低于阈值时，把仍存活的消息复制到当前段
+ * （消息ID不变）后删除整个段。确认记录只会引用同段或更老段中的消息，按从老到新的顺序压缩，
+ * 丢弃老段中的确认记录不会让已确认的消息在重启后重新出现。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class OfflineMessageLog {
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_ACK = 2;
+
+    /**
+     * 日志目录
+     */
+    @Value("${device.offline.dir}")
+    private String dir;
+
+    /**
+     * 日志段大小，单位：字节
+     */
+    @Value("${device.offline.segmentSize}")
+    private Integer segmentSize;
+
+    /**
+     * 压缩检查周期，单位：秒
+     */
+    @Value("${device.offline.compactInterval}")
+    private Integer compactInterval;
+
+    /**
+     * 存活字节占比低于该值时压缩
+     */
+    @Value("${device.offline.compactThreshold}")
+    private Double compactThreshold;
+
+    /**
+     * 刷盘周期，单位：毫秒
+     */
+    @Value("${device.offline.flushInterval}")
+    private Integer flushInterval;
+
+    private Path directory;
+
+    /**
+     * 日志段：段序号 -> 日志段，以下状态均由本对象锁保护
+     */
+    private final NavigableMap<Long, OfflineLogSegment> segments = new TreeMap<>();
+
+    /**
+     * 存活消息索引：消息ID -> 位置
+     */
+    private final Map<Long, Location> index = new HashMap<>();
+
+    private OfflineLogSegment active;
+    private long nextId;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public synchronized void start() throws IOException {
+        directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(OfflineLogSegment::parseSequence).filter(sequence -> sequence >= 0).sorted().forEach(sequences::add);
+        }
+        long maxId = 0;
+        for (long sequence : sequences) {
+            OfflineLogSegment segment = OfflineLogSegment.open(directory, sequence, segmentSize);
+            segments.put(sequence, segment);
+            maxId = Math.max(maxId, recover(segment));
+        }
+        if (segments.isEmpty()) {
+            segments.put(1L, OfflineLogSegment.open(directory, 1L, segmentSize));
+        }
+        active = segments.lastEntry().getValue();
+        // 所有日志段都被删除后重新开始编号，以时间为起点避免与Redis中残留的旧ID重复
+        nextId = Math.max(maxId + 1, System.currentTimeMillis() * 1000);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("offline-log", true));
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compactQuietly, compactInterval, compactInterval, TimeUnit.SECONDS);
+        log.info("离线消息日志启动: dir={}, segments={}, messages={}", directory.toAbsolutePath(), segments.size(), index.size());
+    }
+
+    /**
+     * 追加一条离线消息
+     *
+     * @param deviceKey      目标设备Key
+     * @param topic          主题
+     * @param qos            QoS等级
+     * @param payload        消息体
+     * @param expireAtMillis 过期时间（epoch毫秒）
+     * @return 消息ID
+     * @throws IOException 滚动日志段失败
+     */
+    public synchronized long append(String deviceKey, String topic, int qos, byte[] payload, long expireAtMillis)
+            throws IOException {
+        long id = nextId++;
+        byte[] deviceKeyBytes = deviceKey.getBytes(StandardCharsets.UTF_8);
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + Long.BYTES * 2 + Short.BYTES * 2 + deviceKeyBytes.length
+                + topicBytes.length + 1 + Integer.BYTES + payload.length);
+        body.put(TYPE_MESSAGE).putLong(id).putLong(expireAtMillis)
+                .putShort((short) deviceKeyBytes.length).put(deviceKeyBytes)
+                .putShort((short) topicBytes.length).put(topicBytes)
+                .put((byte) qos).putInt(payload.length).put(payload);
+        body.flip();
+        Location location = write(body);
+        index.put(id, location);
+        location.segment.recordLive(location.size, expireAtMillis);
+        return id;
+    }
+
+    /**
+     * 读取离线消息
+     *
+     * @param id 消息ID
+     * @return 离线消息，不存在、已确认或已过期时返回null
+     */
+    public synchronized OfflineMessage read(long id) {
+        Location location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer body = location.segment.read(location.position);
+        if (body == null || body.get() != TYPE_MESSAGE) {
+            return null;
+        }
+        OfflineMessage message = decodeMessage(body);
+        return message.expireAtMillis() > System.currentTimeMillis() ? message : null;
+    }
+
+    /**
+     * 确认离线消息已取走
+     *
+     * @param id 消息ID
+     */
+    public synchronized void ack(long id) {
+        Location location = index.remove(id);
+        if (location == null) {
+            return;
+        }
+        location.segment.recordDead(location.size);
+        try {
+            write(ByteBuffer.allocate(1 + Long.BYTES).put(TYPE_ACK).putLong(id).flip());
+        } catch (IOException e) {
+            // 确认记录丢失只会让消息在重启后重新进入索引，Redis中已没有引用，最终随过期或压缩清除
+            log.warn("离线消息确认记录写入失败: id={}, error={}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * 存活消息数
+     *
+     * @return 消息数
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * 日志段数
+     *
+     * @return 段数
+     */
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 压缩最老的日志段，直到最老的段不再满足压缩条件
+     *
+     * @throws IOException 文件操作失败
+     */
+    public synchronized void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            OfflineLogSegment oldest = segments.firstEntry().getValue();
+            boolean dead = oldest.liveCount() <= 0 || oldest.maxExpireAtMillis() <= now;
+            boolean sparse = oldest.liveBytes() < compactThreshold * oldest.writePosition();
+            if (!dead && !sparse) {
+                return;
+            }
+            int moved = dead ? 0 : copyLive(oldest, now);
+            if (dead) {
+                index.values().removeIf(location -> location.segment == oldest);
+            }
+            segments.remove(oldest.sequence());
+            oldest.delete();
+            log.info("离线消息日志段已压缩: sequence={}, moved={}", oldest.sequence(), moved);
+        }
+    }
+
+    /**
+     * 把日志段中仍存活且未过期的消息复制到当前段
+     */
+    private int copyLive(OfflineLogSegment segment, long now) throws IOException {
+        int moved = 0;
+        int position = 0;
+        ByteBuffer body;
+        while ((body = segment.read(position)) != null) {
+            int next = segment.next(position);
+            if (body.get(0) == TYPE_MESSAGE) {
+                long id = body.getLong(1);
+                long expireAtMillis = body.getLong(1 + Long.BYTES);
+                Location location = index.get(id);
+                if (location != null && location.segment == segment && location.position == position) {
+                    if (expireAtMillis <= now) {
+                        index.remove(id);
+                    } else {
+                        Location copy = write(body);
+                        index.put(id, copy);
+                        copy.segment.recordLive(copy.size, expireAtMillis);
+                        moved++;
+                    }
+                }
+            }
+            position = next;
+        }
+        return moved;
+    }
+
+    /**
+     * 扫描日志段重建索引
+     *
+     * @return 段内最大消息ID
+     */
+    private long recover(OfflineLogSegment segment) {
+        long now = System.currentTimeMillis();
+        long maxId = 0;
+        int position = 0;
+        ByteBuffer body;
+        while ((body = segment.read(position)) != null) {
+            int size = OfflineLogSegment.HEADER_SIZE + body.remaining();
+            byte type = body.get(0);
+            long id = body.getLong(1);
+            maxId = Math.max(maxId, id);
+            if (type == TYPE_MESSAGE) {
+                long expireAtMillis = body.getLong(1 + Long.BYTES);
+                if (expireAtMillis > now) {
+                    Location previous = index.put(id, new Location(segment, position, size));
+                    if (previous != null) {
+                        previous.segment.recordDead(previous.size);
+                    }
+                    segment.recordLive(size, expireAtMillis);
+                }
+            } else if (type == TYPE_ACK) {
+                Location location = index.remove(id);
+                if (location != null) {
+                    location.segment.recordDead(location.size);
+                }
+            }
+            position = segment.next(position);
+        }
+        segment.writePosition(position);
+        return maxId;
+    }
+
+    private Location write(ByteBuffer body) throws IOException {
+        int size = OfflineLogSegment.HEADER_SIZE + body.remaining();
+        int position = active.append(body);
+        if (position < 0) {
+            if (size > active.capacity()) {
+                throw new IllegalArgumentException("离线消息超过日志段大小: size=" + size);
+            }
+            active.force();
+            active = OfflineLogSegment.open(directory, active.sequence() + 1, segmentSize);
+            segments.put(active.sequence(), active);
+            position = active.append(body);
+        }
+        return new Location(active, position, size);
+    }
+
+    private static OfflineMessage decodeMessage(ByteBuffer body) {
+        long id = body.getLong();
+        long expireAtMillis = body.getLong();
+        String deviceKey = getString(body);
+        String topic = getString(body);
+        int qos = body.get();
+        byte[] payload = new byte[body.getInt()];
+        body.get(payload);
+        return new OfflineMessage(id, deviceKey, topic, qos, expireAtMillis, payload);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void flushQuietly() {
+        try {
+            active.force();
+        } catch (Exception e) {
+            log.error("离线消息日志刷盘失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            log.error("离线消息日志压缩失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        synchronized (this) {
+            for (OfflineLogSegment segment : segments.values()) {
+                try {
+                    segment.force();
+                    segment.close();
+                } catch (IOException e) {
+                    log.warn("离线消息日志段关闭失败: sequence={}, error={}", segment.sequence(), e.getMessage());
+                }
+            }
+            segments.clear();
+        }
+        log.info("离线消息日志已关闭");
+    }
+
+    /**
+     * 消息在日志中的位置
+     */
+    private record Location(OfflineLogSegment segment, int position, int size) {
+    }
+}
@@ -0,0 +1,269 @@
+package com.baccano.iot.connect.offline;
+
+import com.baccano.iot.connect.cluster.LocalNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 设备离线消息队列
+ * <p>
+ * 消息体写入接收消息节点的本地离线日志（{@link OfflineMessageLog}），Redis中每个设备只保存一个索引列表，
+ * 元素为 {@code 消息ID@节点ID}。队列按条数截断（丢弃最老的消息）并随最后一次写入续期，
+ * 设备重连后按在途窗口大小分批取走，本节点的消息直接读取，其他节点的消息由所在节点读取后转发。
+ * <p>
+ * 取走索引时不确认日志中的记录：本节点的消息在设备确认（PUBACK/PUBCOMP）后才确认，
+ * 其他节点的消息在转发给设备所在节点后确认，之后由该节点负责。持久会话的连接断开时，
+ * 未完成的下行消息通过 {@link #requeue} 放回队首，下次连接时重新投递。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class OfflineQueue {
+    private static final String QUEUE_KEY_PREFIX = "device:offline:";
+    private static final char NODE_SEPARATOR = '@';
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private OfflineMessageLog offlineMessageLog;
+
+    @Autowired
+    private LocalNode localNode;
+
+    /**
+     * 单个设备离线消息条数上限
+     */
+    @Value("${device.offline.maxLength}")
+    private Integer maxLength;
+
+    /**
+     * 离线消息保留时间，单位：秒
+     */
+    @Value("${device.offline.ttl}")
+    private Integer ttl;
+
+    /**
+     * 入队：追加索引，超过上限时截掉最老的条目并返回被截掉的条目，续期整个队列
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ENQUEUE_SCRIPT = new DefaultRedisScript<>(
+            "local length = redis.call('RPUSH', KEYS[1], ARGV[1]) "
+                    + "local overflow = length - tonumber(ARGV[2]) "
+                    + "local dropped = {} "
+                    + "if overflow > 0 then "
+                    + "  dropped = redis.call('LRANGE', KEYS[1], 0, overflow - 1) "
+                    + "  redis.call('LTRIM', KEYS[1], overflow, -1) "
+                    + "end "
+                    + "redis.call('EXPIRE', KEYS[1], ARGV[3]) "
+                    + "return dropped",
+            List.class);
+
+    /**
+     * 从队首取走最多ARGV[1]条索引，队列取空后Redis自动删除该Key
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TAKE_SCRIPT = new DefaultRedisScript<>(
+            "local limit = tonumber(ARGV[1]) "
+                    + "local entries = redis.call('LRANGE', KEYS[1], 0, limit - 1) "
+                    + "redis.call('LTRIM', KEYS[1], limit, -1) "
+                    + "return entries",
+            List.class);
+
+    /**
+     * 放回队首：按原顺序插入到队列头部，续期整个队列
+     */
+    private static final RedisScript<Long> REQUEUE_SCRIPT = new DefaultRedisScript<>(
+            "for i = #ARGV, 2, -1 do "
+                    + "  redis.call('LPUSH', KEYS[1], ARGV[i]) "
+                    + "end "
+                    + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+                    + "return #ARGV - 1",
+            Long.class);
+
+    /**
+     * 保存一条离线消息，可在任意线程调用（会写本地日志并访问Redis），不应在EventLoop上调用
+     *
+     * @param deviceKey 设备Key
+     * @param topic     主题
+     * @param qos       QoS等级
+     * @param payload   消息体
+     * @return 是否保存成功
+     */
+    @SuppressWarnings("unchecked")
+    public boolean enqueue(String deviceKey, String topic, int qos, byte[] payload) {
+        long id;
+        try {
+            id = offlineMessageLog.append(deviceKey, topic, qos, payload, System.currentTimeMillis() + ttl * 1000L);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("离线消息写入本地日志失败: deviceKey={}, topic={}, error={}", deviceKey, topic, e.getMessage());
+            return false;
+        }
+        List<String> dropped = stringRedisTemplate.execute(ENQUEUE_SCRIPT, List.of(getQueueKey(deviceKey)),
+                id + String.valueOf(NODE_SEPARATOR) + localNode.getId(), String.valueOf(maxLength), String.valueOf(ttl));
+        if (dropped != null && !dropped.isEmpty()) {
+            for (String entry : dropped) {
+                ack(entry);
+            }
+            log.debug("离线消息队列已满，丢弃最老的消息: deviceKey={}, dropped={}", deviceKey, dropped.size());
+        }
+        return true;
+    }
+
+    /**
+     * 按入队顺序取走设备的离线消息索引
+     *
+     * @param deviceKey 设备Key
+     * @param limit     最多取走的条数
+     * @return 本节点日志中的消息ID和其他节点日志中的消息
+     */
+    @SuppressWarnings("unchecked")
+    public Entries take(String deviceKey, int limit) {
+        List<String> entries = stringRedisTemplate.execute(TAKE_SCRIPT, List.of(getQueueKey(deviceKey)),
+                String.valueOf(limit));
+        Entries result = new Entries(new ArrayList<>(), new ArrayList<>(), entries != null ? entries.size() : 0);
+        if (entries == null) {
+            return result;
+        }
+        for (String entry : entries) {
+            int separator = entry.indexOf(NODE_SEPARATOR);
+            if (separator <= 0) {
+                continue;
+            }
+            long id = Long.parseLong(entry.substring(0, separator));
+            String nodeId = entry.substring(separator + 1);
+            if (localNode.getId().equals(nodeId)) {
+                result.local().add(id);
+            } else {
+                result.remote().add(new RemoteEntry(nodeId, id));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取本节点日志中的离线消息，读出的消息不确认；已过期、不存在或不属于该设备的消息被跳过并确认
+     *
+     * @param deviceKey 设备Key，用于校验消息归属
+     * @param ids       消息ID
+     * @return 离线消息
+     */
+    public List<OfflineMessage> readLocal(String deviceKey, long[] ids) {
+        List<OfflineMessage> messages = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            OfflineMessage message = offlineMessageLog.read(id);
+            if (message != null && deviceKey.equals(message.deviceKey())) {
+                messages.add(message);
+            } else {
+                offlineMessageLog.ack(id);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * 确认本节点日志中的离线消息已送达（或已交给其他节点），之后日志记录随压缩清除
+     *
+     * @param id 消息ID
+     */
+    public void ack(long id) {
+        offlineMessageLog.ack(id);
+    }
+
+    /**
+     * 把未完成投递的消息放回设备队列的头部，保持原顺序，可在任意线程调用（会写本地日志并访问Redis），不应在EventLoop上调用
+     *
+     * @param deviceKey 设备Key
+     * @param messages  未完成投递的消息，按原投递顺序
+     * @return 放回的条数，写入本地日志失败的消息被跳过
+     */
+    public int requeue(String deviceKey, List<Undelivered> messages) {
+        List<String> args = new ArrayList<>(messages.size() + 1);
+        args.add(String.valueOf(ttl));
+        long expireAtMillis = System.currentTimeMillis() + ttl * 1000L;
+        for (Undelivered message : messages) {
+            long id = message.id();
+            if (id == 0) {
+                try {
+                    id = offlineMessageLog.append(deviceKey, message.topic(), message.qos(), message.payload(),
+                            expireAtMillis);
+                } catch (IOException | IllegalArgumentException e) {
+                    log.warn("离线消息写入本地日志失败: deviceKey={}, topic={}, error={}",
+                            deviceKey, message.topic(), e.getMessage());
+                    continue;
+                }
+            }
+            args.add(id + String.valueOf(NODE_SEPARATOR) + localNode.getId());
+        }
+        if (args.size() == 1) {
+            return 0;
+        }
+        Long requeued = stringRedisTemplate.execute(REQUEUE_SCRIPT, List.of(getQueueKey(deviceKey)),
+                args.toArray());
+        return requeued != null ? requeued.intValue() : 0;
+    }
+
+    /**
+     * 清空设备的离线消息（cleanSession=true 连接时丢弃旧会话）
+     *
+     * @param deviceKey 设备Key
+     */
+    public void clear(String deviceKey) {
+        Entries entries = take(deviceKey, maxLength);
+        for (long id : entries.local()) {
+            offlineMessageLog.ack(id);
+        }
+        // 其他节点日志中的消息不再被引用，随过期和压缩清除
+    }
+
+    private void ack(String entry) {
+        int separator = entry.indexOf(NODE_SEPARATOR);
+        if (separator > 0 && localNode.getId().equals(entry.substring(separator + 1))) {
+            offlineMessageLog.ack(Long.parseLong(entry.substring(0, separator)));
+        }
+    }
+
+    private String getQueueKey(String deviceKey) {
+        return QUEUE_KEY_PREFIX + deviceKey;
+    }
+
+    /**
+     * 离线消息索引
+     *
+     * @param local  本节点日志中的消息ID，按入队顺序
+     * @param remote 其他节点日志中的消息，按入队顺序
+     * @param taken  取走的索引条数（含无法解析的条目）
+     */
+    public record Entries(List<Long> local, List<RemoteEntry> remote, int taken) {
+    }
+
+    /**
+     * 未完成投递、需要放回队列的消息
+     *
+     * @param id      本节点日志中的消息ID，不为0时消息仍在日志中，只放回索引
+     * @param topic   主题
+     * @param qos     QoS等级
+     * @param payload 消息体，id为0时写入本节点日志，否则为null
+     */
+    public record Undelivered(long id, String topic, int qos, byte[] payload) {
+    }
+
+    /**
+     * 其他节点日志中的离线消息
+     *
+     * @param nodeId 节点ID
+     * @param id     消息ID
+     */
+    public record RemoteEntry(String nodeId, long id) {
+    }
+}
@@ -0,0 +1,135 @@
+package com.baccano.iot.connect.registry;
+
+import com.baccano.iot.connect.mqtt.TopicAliases;
+import com.baccano.iot.connect.mqtt.qos.InflightWindow;
+import io.netty.channel.Channel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单个设备连接的运行时状态，挂载在Channel属性上，随Channel生命周期释放
+ *
+ * @author baccano-iot
+ */
+@Getter
+public class ClientConnection {
+    /**
+     * 设备连接通道
+     */
+    private final Channel channel;
+
+    /**
+     * 设备Key
+     */
+    private final String deviceKey;
+
+    /**
+     * 客户端ID
+     */
+    private final String clientId;
+
+    /**
+     * 建立连接的时间戳，单位：毫秒
+     */
+    private final long connectTimeMillis;
+
+    /**
+     * 协议类型 mqtt/coap/http
+     */
+    @Setter
+    private volatile String protocol;
+
+    /**
+     * MQTT协议级别，4为3.1.1，5为5.0
+     */
+    private final int protocolVersion;
+
+    /**
+     * 会话在断开后是否保留（3.1.1 cleanSession=false，5.0会话过期间隔大于0）
+     */
+    private final boolean persistent;
+
+    /**
+     * QoS在途窗口，仅在Channel所属EventLoop中访问
+     */
+    private final InflightWindow inflightWindow;
+
+    /**
+     * 上行主题别名表，仅MQTT 5连接有，仅在Channel所属EventLoop中访问
+     */
+    private final TopicAliases topicAliases;
+
+    /**
+     * 是否已回复CONNACK，仅在Channel所属EventLoop中访问
+     */
+    private boolean established;
+
+    /**
+     * 回复CONNACK之前提交的下行任务（例如会话接管迁移过来的在途消息），仅在Channel所属EventLoop中访问
+     */
+    private List<Runnable> pendingTasks;
+
+    /**
+     * 离线队列中是否还有未取走的批次，在途窗口清空后继续取下一批，仅在Channel所属EventLoop中访问
+     */
+    @Setter
+    private boolean offlinePending;
+
+    /**
+     * 最后一次记录心跳的epoch秒，由Channel所属EventLoop写入（同一秒内只写一次），心跳刷新线程读取
+     */
+    @Setter
+    private volatile long lastHeartbeatSecond;
+
+    /**
+     * 已写入Redis的最后心跳epoch秒，仅由心跳刷新线程访问
+     */
+    @Setter
+    private long flushedHeartbeatSecond;
+
+    public ClientConnection(Channel channel, String deviceKey, String clientId, int protocolVersion,
+                            boolean persistent, InflightWindow inflightWindow, TopicAliases topicAliases) {
+        this.channel = channel;
+        this.deviceKey = deviceKey;
+        this.clientId = clientId;
+        this.protocolVersion = protocolVersion;
+        this.persistent = persistent;
+        this.inflightWindow = inflightWindow;
+        this.topicAliases = topicAliases;
+        this.connectTimeMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 已回复CONNACK时立即执行，否则推迟到回复之后，必须在Channel所属EventLoop中调用
+     *
+     * @param task 下行任务
+     */
+    public void runWhenEstablished(Runnable task) {
+        if (established) {
+            task.run();
+            return;
+        }
+        if (pendingTasks == null) {
+            pendingTasks = new ArrayList<>(4);
+        }
+        pendingTasks.add(task);
+    }
+
+    /**
+     * 标记已回复CONNACK并执行推迟的任务；连接建立失败时同样调用，任务发现通道已关闭会释放各自的消息，
+     * 必须在Channel所属EventLoop中调用
+     */
+    public void establish() {
+        established = true;
+        List<Runnable> tasks = pendingTasks;
+        pendingTasks = null;
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.baccano.iot.connect.registry;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 设备连接注册表
+ * <p>
+ * 正向索引 deviceKey -> 连接 使用 {@link ConcurrentHashMap}（读无锁、写按桶分段），
+ * 反向索引 Channel -> 连接 直接存放在Channel属性上，因此两个方向的查找都是 O(1)，
+ * 且不需要任何全局锁，可被所有Netty工作线程并发访问。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class ClientRegistry {
+    /**
+     * Channel上保存连接状态的属性
+     */
+    public static final AttributeKey<ClientConnection> CONNECTION = AttributeKey.valueOf("baccano.clientConnection");
+
+    /**
+     * 初始容量，按单节点十万级连接预分配，避免连接风暴时频繁扩容
+     */
+    private static final int INITIAL_CAPACITY = 1 << 17;
+
+    /**
+     * deviceKey -> 连接
+     */
+    private final ConcurrentHashMap<String, ClientConnection> connections =
+            new ConcurrentHashMap<>(INITIAL_CAPACITY, 0.75f, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * 注册设备连接
+     *
+     * @param connection 设备连接
+     * @return 被替换掉的旧连接，不存在时返回null
+     */
+    public ClientConnection register(ClientConnection connection) {
+        Channel channel = connection.getChannel();
+        channel.attr(CONNECTION).set(connection);
+        ClientConnection previous = connections.put(connection.getDeviceKey(), connection);
+        if (previous != null && previous.getChannel() != channel) {
+            log.debug("设备连接被替换: deviceKey={}, oldChannel={}, newChannel={}", connection.getDeviceKey(),
+                    previous.getChannel().id().asShortText(), channel.id().asShortText());
+            return previous;
+        }
+        return null;
+    }
+
+    /**
+     * 注销设备连接
+     * <p>
+     * 只有当注册表中的连接仍然属于该Channel时才会删除，
+     * 避免旧连接关闭时误删同一设备已经建立的新连接。
+     *
+     * @param channel 连接通道
+     * @return 被注销的连接；该Channel未注册或已被新连接替换时返回null
+     */
+    public ClientConnection unregister(Channel channel) {
+        ClientConnection connection = channel.attr(CONNECTION).getAndSet(null);
+        if (connection == null) {
+            return null;
+        }
+        return connections.remove(connection.getDeviceKey(), connection) ? connection : null;
+    }
+
+    /**
+     * 根据Channel获取连接
+     *
+     * @param channel 连接通道
+     * @return 连接，未注册时返回null
+     */
+    public ClientConnection get(Channel channel) {
+        return channel.attr(CONNECTION).get();
+    }
+
+    /**
+     * 根据设备Key获取连接
+     *
+     * @param deviceKey 设备Key
+     * @return 连接，不存在时返回null
+     */
+    public ClientConnection get(String deviceKey) {
+        return connections.get(deviceKey);
+    }
+
+    /**
+     * 根据Channel获取设备Key
+     *
+     * @param channel 连接通道
+     * @return 设备Key，未注册时返回null
+     */
+    public String getDeviceKey(Channel channel) {
+        ClientConnection connection = channel.attr(CONNECTION).get();
+        return connection != null ? connection.getDeviceKey() : null;
+    }
+
+    /**
+     * 当前所有连接的只读视图
+     *
+     * @return 连接集合
+     */
+    public Collection<ClientConnection> connections() {
+        return Collections.unmodifiableCollection(connections.values());
+    }
+
+    /**
+     * 当前连接数
+     *
+     * @return 连接数
+     */
+    public int size() {
+        return connections.size();
+    }
+}
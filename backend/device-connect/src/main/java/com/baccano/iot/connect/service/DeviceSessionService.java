@@ -49,26 +49,42 @@ public interface DeviceSessionService {
     DeviceSession getSessionByClientId(String clientId);
 
     /**
-     * 设备上线
+     * 获取设备会话当前所属节点，绕过会话缓存直接读取Redis
      *
      * @param deviceKey 设备Key
-     * @param clientId  客户端ID
-     * @param protocol  协议类型
-     * @param ip        设备IP
-     * @param port      设备端口
-     * @return 设备会话
+     * @return 节点ID，会话不存在时返回null
      */
-    DeviceSession online(String deviceKey, String clientId, String protocol, String ip, Integer port);
+    String getOwnerNode(String deviceKey);
 
     /**
-     * 设备下线
+     * 设备上线，由本节点接管设备会话
+     * <p>
+     * 需要两次Redis往返：第一次由脚本原子地替换会话哈希，会话归属以此为准；第二次以单Key命令管道写入客户端ID映射、
+     * 会话集合、心跳索引并发布变更通知。为兼容Redis Cluster，两步不在同一个原子操作中：
+     * 两次往返之间按客户端ID查询可能仍得到旧设备或查不到，第二步失败时会话哈希仍靠自身的过期时间清理。
+     * 其他节点上的旧连接由变更通知触发接管（见 {@code SessionTakeover}），不依赖本方法的返回值
+     *
+     * @param deviceKey    设备Key
+     * @param clientId     客户端ID
+     * @param protocol     协议类型
+     * @param ip           设备IP
+     * @param port         设备端口
+     * @param cleanSession 是否清理会话，为false时离线后保留会话和离线消息
+     */
+    void online(String deviceKey, String clientId, String protocol, String ip, Integer port,
+                boolean cleanSession);
+
+    /**
+     * 设备下线，仅当会话仍归本节点的该客户端所有时生效
      *
      * @param deviceKey 设备Key
+     * @param clientId  客户端ID
+     * @return 是否置为离线；会话已被其他连接接管时返回false
      */
-    void offline(String deviceKey);
+    boolean offline(String deviceKey, String clientId);
 
     /**
-     * 设备心跳
+     * 设备心跳，只在本地记录，不访问Redis，可在EventLoop上调用
      *
      * @param deviceKey 设备Key
      */
@@ -86,4 +102,4 @@ public interface DeviceSessionService {
      * 清理超时会话
      */
     void cleanTimeoutSessions();
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,15 +1,32 @@
 package com.baccano.iot.connect.service.impl;
 
+import com.baccano.iot.connect.cluster.LocalNode;
 import com.baccano.iot.connect.entity.DeviceSession;
 import com.baccano.iot.connect.service.DeviceSessionService;
+import com.baccano.iot.connect.session.DeviceSessionCodec;
+import com.baccano.iot.connect.session.HeartbeatAggregator;
+import com.baccano.iot.connect.session.SessionCache;
+import com.baccano.iot.connect.session.SessionEvent;
+import com.baccano.iot.connect.session.SessionOwner;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.Set;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,7 +41,25 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
      * Redis模板
      */
     @Autowired
-    private RedisTemplate<String, Object> redisTemplate;
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本节点标识
+     */
+    @Autowired
+    private LocalNode localNode;
+
+    /**
+     * 会话近端缓存
+     */
+    @Autowired
+    private SessionCache sessionCache;
+
+    /**
+     * 心跳聚合器
+     */
+    @Autowired
+    private HeartbeatAggregator heartbeatAggregator;
 
     /**
      * 会话超时时间，单位：秒
@@ -38,13 +73,82 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
     @Value("${device.session.heartbeatInterval}")
     private Integer heartbeatInterval;
 
+    /**
+     * 离线消息保留时间，持久会话离线后保留同样长的时间，单位：秒
+     */
+    @Value("${device.offline.ttl}")
+    private Integer offlineTtl;
+
+    /**
+     * 超时清理每页处理的会话数
+     */
+    @Value("${device.session.sweep.pageSize}")
+    private Integer sweepPageSize;
+
     /**
      * Redis key前缀
      */
-    private static final String SESSION_KEY_PREFIX = "device:session:";
     private static final String CLIENT_ID_KEY_PREFIX = "device:client:id:";
     private static final String SESSION_SET_KEY = "device:sessions";
 
+    /**
+     * 会话状态
+     */
+    private static final int STATUS_ONLINE = 1;
+    private static final int STATUS_OFFLINE = 2;
+
+    /**
+     * 写入会话：读取原归属后整体替换会话哈希并续期。返回原归属 {nodeId, clientId, status}，之前没有会话时返回空表。
+     * <p>
+     * 所有脚本都只访问KEYS[1]这一个Key，兼容Redis Cluster和代理；涉及多个Key的步骤（客户端ID映射、会话集合、
+     * 心跳索引、变更通知）在脚本之后以单Key命令管道执行
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ONLINE_SCRIPT = new DefaultRedisScript<>(
+            "local prev = redis.call('HMGET', KEYS[1], '" + DeviceSessionCodec.NODE_ID + "', '" + DeviceSessionCodec.CLIENT_ID + "', '" + DeviceSessionCodec.STATUS + "') "
+                    + "redis.call('DEL', KEYS[1]) "
+                    + "redis.call('HSET', KEYS[1], unpack(ARGV, 2)) "
+                    + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+                    + "if not prev[2] then return {} end "
+                    + "return {prev[1] or '', prev[2], prev[3] or ''}",
+            List.class);
+
+    /**
+     * 下线：仅当会话仍归属本节点的该客户端时置为离线，返回1表示已下线。
+     * 持久会话（cleanSession=false）的过期时间延长到离线消息保留时间
+     */
+    private static final RedisScript<Long> OFFLINE_SCRIPT = new DefaultRedisScript<>(
+            "local owner = redis.call('HMGET', KEYS[1], '" + DeviceSessionCodec.NODE_ID + "', '" + DeviceSessionCodec.CLIENT_ID + "') "
+                    + "if owner[1] ~= ARGV[1] or owner[2] ~= ARGV[2] then return 0 end "
+                    + "redis.call('HSET', KEYS[1], '" + DeviceSessionCodec.STATUS + "', ARGV[4], '" + DeviceSessionCodec.DISCONNECT_TIME + "', ARGV[3]) "
+                    + "if redis.call('HGET', KEYS[1], '" + DeviceSessionCodec.CLEAN_SESSION + "') == '0' then "
+                    + "  redis.call('EXPIRE', KEYS[1], ARGV[5]) "
+                    + "end "
+                    + "return 1",
+            Long.class);
+
+    /**
+     * 删除会话，返回 {'d', 客户端ID（没有时为空串）}，会话不存在时返回空表。ARGV[1]非空时为超时清理的截止时间（epoch毫秒）：
+     * 已离线的会话不处理（随过期时间清除），返回空表；心跳字段晚于截止时间（认领后又重新上线或有新心跳）的会话跳过，
+     * 返回 {'r', 心跳时间}，由调用方放回心跳索引。在管道中以EVAL执行
+     */
+    private static final String DELETE_SCRIPT =
+            "if ARGV[1] ~= '' then "
+                    + "  local state = redis.call('HMGET', KEYS[1], '" + DeviceSessionCodec.STATUS + "', '" + DeviceSessionCodec.HEARTBEAT_TIME + "') "
+                    + "  if state[1] ~= ARGV[2] then return {} end "
+                    + "  if state[2] and tonumber(state[2]) > tonumber(ARGV[1]) then return {'r', state[2]} end "
+                    + "end "
+                    + "local clientId = redis.call('HGET', KEYS[1], '" + DeviceSessionCodec.CLIENT_ID + "') "
+                    + "if redis.call('DEL', KEYS[1]) == 0 then return {} end "
+                    + "return {'d', clientId or ''}";
+
+    /**
+     * 客户端ID映射仍指向该设备时删除。在管道中以EVAL执行
+     */
+    private static final String RELEASE_CLIENT_ID_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end "
+                    + "return 0";
+
     /**
      * 获取会话Redis Key
      *
@@ -52,7 +156,7 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
      * @return Redis Key
      */
     private String getSessionKey(String deviceKey) {
-        return SESSION_KEY_PREFIX + deviceKey;
+        return DeviceSessionCodec.KEY_PREFIX + deviceKey;
     }
 
     /**
@@ -67,25 +171,8 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
 
     @Override
     public DeviceSession createSession(DeviceSession session) {
-        // 设置默认值
-        session.setStatus(1); // 在线状态
-        session.setConnectTime(LocalDateTime.now());
-        session.setLastOnlineTime(LocalDateTime.now());
-        session.setHeartbeatTime(LocalDateTime.now());
-        session.setTimeout(sessionTimeout);
-
-        // 保存到Redis
-        String sessionKey = getSessionKey(session.getDeviceKey());
-        redisTemplate.opsForValue().set(sessionKey, session, sessionTimeout, TimeUnit.SECONDS);
-
-        // 保存客户端ID映射
-        String clientIdKey = getClientIdKey(session.getClientId());
-        redisTemplate.opsForValue().set(clientIdKey, session.getDeviceKey(), sessionTimeout, TimeUnit.SECONDS);
-
-        // 添加到会话集合
-        redisTemplate.opsForSet().add(SESSION_SET_KEY, session.getDeviceKey());
-
-        log.info("创建设备会话成功: deviceKey={}, clientId={}, protocol={}", 
+        writeSession(session);
+        log.info("创建设备会话成功: deviceKey={}, clientId={}, protocol={}",
                 session.getDeviceKey(), session.getClientId(), session.getProtocol());
         return session;
     }
@@ -93,40 +180,58 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
     @Override
     public DeviceSession updateSession(DeviceSession session) {
         String sessionKey = getSessionKey(session.getDeviceKey());
-        redisTemplate.opsForValue().set(sessionKey, session, sessionTimeout, TimeUnit.SECONDS);
+        Map<String, String> hash = DeviceSessionCodec.encode(session);
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                operations.opsForHash().putAll(sessionKey, hash);
+                operations.expire(sessionKey, sessionTimeout, TimeUnit.SECONDS);
+                operations.convertAndSend(SessionCache.EVENT_CHANNEL,
+                        new SessionEvent(SessionEvent.UPDATE, session.getDeviceKey(), localNode.getId()).format());
+                return null;
+            }
+        });
+        if (localNode.getId().equals(session.getNodeId())) {
+            sessionCache.putOwned(session);
+        } else {
+            sessionCache.invalidate(session.getDeviceKey());
+        }
         return session;
     }
 
     @Override
     public boolean deleteSession(String deviceKey) {
-        String sessionKey = getSessionKey(deviceKey);
-        DeviceSession session = (DeviceSession) redisTemplate.opsForValue().get(sessionKey);
-        if (session != null) {
-            // 删除客户端ID映射
-            String clientIdKey = getClientIdKey(session.getClientId());
-            redisTemplate.delete(clientIdKey);
-        }
-
-        // 从会话集合中删除
-        redisTemplate.opsForSet().remove(SESSION_SET_KEY, deviceKey);
-
-        // 删除会话
-        Boolean deleteResult = redisTemplate.delete(sessionKey);
-        boolean result = deleteResult != null && deleteResult;
+        sessionCache.invalidate(deviceKey);
+        stringRedisTemplate.opsForZSet().remove(HeartbeatAggregator.HEARTBEAT_KEY, deviceKey);
+        boolean result = removeSessions(List.of(deviceKey), "") > 0;
         log.info("删除设备会话: deviceKey={}, result={}", deviceKey, result);
         return result;
     }
 
     @Override
     public DeviceSession getSession(String deviceKey) {
-        String sessionKey = getSessionKey(deviceKey);
-        return (DeviceSession) redisTemplate.opsForValue().get(sessionKey);
+        DeviceSession session = sessionCache.get(deviceKey);
+        if (session != null) {
+            return session;
+        }
+        Map<Object, Object> hash = stringRedisTemplate.opsForHash().entries(getSessionKey(deviceKey));
+        if (hash.isEmpty()) {
+            return null;
+        }
+        session = DeviceSessionCodec.decode(hash);
+        sessionCache.putRemote(session);
+        return session;
     }
 
     @Override
     public DeviceSession getSessionByClientId(String clientId) {
+        DeviceSession session = sessionCache.getByClientId(clientId);
+        if (session != null) {
+            return session;
+        }
         String clientIdKey = getClientIdKey(clientId);
-        String deviceKey = (String) redisTemplate.opsForValue().get(clientIdKey);
+        String deviceKey = stringRedisTemplate.opsForValue().get(clientIdKey);
         if (deviceKey != null) {
             return getSession(deviceKey);
         }
@@ -134,45 +239,62 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
     }
 
     @Override
-    public DeviceSession online(String deviceKey, String clientId, String protocol, String ip, Integer port) {
-        // 检查是否已存在会话
-        DeviceSession session = getSession(deviceKey);
-        if (session != null) {
-            // 先删除旧会话
-            deleteSession(deviceKey);
-        }
+    public String getOwnerNode(String deviceKey) {
+        Object nodeId = stringRedisTemplate.opsForHash().get(getSessionKey(deviceKey), DeviceSessionCodec.NODE_ID);
+        return nodeId != null ? nodeId.toString() : null;
+    }
 
-        // 创建新会话
-        session = new DeviceSession();
+    @Override
+    public void online(String deviceKey, String clientId, String protocol, String ip, Integer port,
+                       boolean cleanSession) {
+        DeviceSession session = new DeviceSession();
         session.setDeviceKey(deviceKey);
         session.setClientId(clientId);
         session.setProtocol(protocol);
         session.setIp(ip);
         session.setPort(port);
-        return createSession(session);
+        session.setCleanSession(cleanSession);
+        SessionOwner previous = writeSession(session);
+        if (previous != null && previous.online()) {
+            log.info("设备会话被接管: deviceKey={}, clientId={}, previousNode={}, previousClientId={}",
+                    deviceKey, clientId, previous.nodeId(), previous.clientId());
+        } else {
+            log.info("设备上线: deviceKey={}, clientId={}, protocol={}", deviceKey, clientId, protocol);
+        }
     }
 
     @Override
-    public void offline(String deviceKey) {
-        DeviceSession session = getSession(deviceKey);
-        if (session != null) {
-            session.setStatus(2); // 离线状态
-            session.setDisconnectTime(LocalDateTime.now());
-            updateSession(session);
-            log.info("设备下线: deviceKey={}, clientId={}, protocol={}", 
-                    session.getDeviceKey(), session.getClientId(), session.getProtocol());
+    public boolean offline(String deviceKey, String clientId) {
+        Long result = stringRedisTemplate.execute(OFFLINE_SCRIPT, List.of(getSessionKey(deviceKey)),
+                localNode.getId(), clientId, DeviceSessionCodec.encodeTime(LocalDateTime.now()),
+                String.valueOf(STATUS_OFFLINE), String.valueOf(offlineTtl));
+        boolean offline = result != null && result == 1L;
+        if (offline) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection redis = (StringRedisConnection) connection;
+                redis.zRem(HeartbeatAggregator.HEARTBEAT_KEY, deviceKey);
+                redis.publish(SessionCache.EVENT_CHANNEL,
+                        new SessionEvent(SessionEvent.OFFLINE, deviceKey, localNode.getId()).format());
+                return null;
+            });
+        }
+        DeviceSession cached = sessionCache.get(deviceKey);
+        if (cached != null && clientId.equals(cached.getClientId())) {
+            sessionCache.invalidate(deviceKey);
+        }
+        if (offline) {
+            log.info("设备下线: deviceKey={}, clientId={}", deviceKey, clientId);
+        } else {
+            log.debug("设备会话已被接管，忽略下线: deviceKey={}, clientId={}", deviceKey, clientId);
         }
+        return offline;
     }
 
     @Override
     public void heartbeat(String deviceKey) {
-        DeviceSession session = getSession(deviceKey);
-        if (session != null) {
-            session.setHeartbeatTime(LocalDateTime.now());
-            session.setLastOnlineTime(LocalDateTime.now());
-            updateSession(session);
-            log.debug("设备心跳: deviceKey={}", deviceKey);
-        }
+        // 只记录在本节点的连接上，由心跳聚合器定期批量写入Redis
+        heartbeatAggregator.record(deviceKey);
+        log.debug("设备心跳: deviceKey={}", deviceKey);
     }
 
     @Override
@@ -180,23 +302,145 @@ public class DeviceSessionServiceImpl implements DeviceSessionService {
         if (session == null) {
             return true;
         }
+        // 会话中的心跳时间最多落后一个刷新周期，本节点尚未刷新的心跳更新
+        LocalDateTime heartbeatTime = session.getHeartbeatTime();
+        Long lastSeen = heartbeatAggregator.lastSeen(session.getDeviceKey());
+        if (lastSeen != null) {
+            LocalDateTime lastSeenTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(lastSeen), ZoneId.systemDefault());
+            if (heartbeatTime == null || lastSeenTime.isAfter(heartbeatTime)) {
+                heartbeatTime = lastSeenTime;
+            }
+        }
+        if (heartbeatTime == null) {
+            return true;
+        }
         LocalDateTime now = LocalDateTime.now();
-        return session.getHeartbeatTime().plusSeconds(session.getTimeout()).isBefore(now);
+        return heartbeatTime.plusSeconds(session.getTimeout()).isBefore(now);
     }
 
     @Override
     public void cleanTimeoutSessions() {
-        Set<Object> deviceKeys = redisTemplate.opsForSet().members(SESSION_SET_KEY);
-        if (deviceKeys != null && !deviceKeys.isEmpty()) {
-            for (Object deviceKeyObj : deviceKeys) {
-                String deviceKey = (String) deviceKeyObj;
-                DeviceSession session = getSession(deviceKey);
-                if (session != null && isSessionTimeout(session)) {
-                    offline(deviceKey);
-                    deleteSession(deviceKey);
-                    log.info("清理超时会话: deviceKey={}", deviceKey);
+        // 先写出本节点尚未刷新的心跳，避免把仍然在线的设备当作超时
+        heartbeatAggregator.flush();
+        long cutoff = System.currentTimeMillis() / 1000 - sessionTimeout;
+        int total = 0;
+        List<String> deviceKeys;
+        do {
+            deviceKeys = heartbeatAggregator.claimExpired(cutoff, sweepPageSize);
+            if (!deviceKeys.isEmpty()) {
+                total += removeSessions(deviceKeys, String.valueOf(cutoff * 1000));
+            }
+        } while (deviceKeys.size() >= sweepPageSize);
+        if (total > 0) {
+            log.info("清理超时会话: count={}", total);
+        }
+    }
+
+    /**
+     * 批量删除会话：第一轮管道逐个删除会话哈希并取回客户端ID，第二轮管道释放客户端ID映射、移出会话集合并发布通知。
+     * 超时清理时认领后又有心跳的会话不删除，按其心跳时间放回心跳索引（心跳刷新只更新索引中已有的成员，不会把它加回）
+     *
+     * @param deviceKeys   设备Key列表
+     * @param cutoffMillis 超时清理的截止时间（epoch毫秒），之后有过心跳的会话跳过；主动删除时为空串
+     * @return 删除的会话数
+     */
+    private int removeSessions(List<String> deviceKeys, String cutoffMillis) {
+        for (String deviceKey : deviceKeys) {
+            sessionCache.invalidate(deviceKey);
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection redis = (StringRedisConnection) connection;
+            for (String deviceKey : deviceKeys) {
+                redis.eval(DELETE_SCRIPT, ReturnType.MULTI, 1, getSessionKey(deviceKey), cutoffMillis,
+                        String.valueOf(STATUS_ONLINE));
+            }
+            return null;
+        });
+        List<String> removed = new ArrayList<>(deviceKeys.size());
+        List<String> removedClientIds = new ArrayList<>(deviceKeys.size());
+        List<String> refreshed = new ArrayList<>(0);
+        List<Long> refreshedHeartbeats = new ArrayList<>(0);
+        for (int i = 0; i < deviceKeys.size(); i++) {
+            if (!(results.get(i) instanceof List<?> result) || result.size() < 2) {
+                continue;
+            }
+            if ("r".equals(String.valueOf(result.get(0)))) {
+                refreshed.add(deviceKeys.get(i));
+                refreshedHeartbeats.add(Long.parseLong(String.valueOf(result.get(1))) / 1000);
+            } else {
+                removed.add(deviceKeys.get(i));
+                removedClientIds.add(String.valueOf(result.get(1)));
+            }
+        }
+        if (removed.isEmpty() && refreshed.isEmpty()) {
+            return 0;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection redis = (StringRedisConnection) connection;
+            for (int i = 0; i < refreshed.size(); i++) {
+                redis.zAdd(HeartbeatAggregator.HEARTBEAT_KEY, refreshedHeartbeats.get(i), refreshed.get(i));
+            }
+            for (int i = 0; i < removed.size(); i++) {
+                String deviceKey = removed.get(i);
+                String clientId = removedClientIds.get(i);
+                if (!clientId.isEmpty()) {
+                    redis.eval(RELEASE_CLIENT_ID_SCRIPT, ReturnType.INTEGER, 1, getClientIdKey(clientId), deviceKey);
                 }
+                redis.sRem(SESSION_SET_KEY, deviceKey);
+                redis.publish(SessionCache.EVENT_CHANNEL,
+                        new SessionEvent(SessionEvent.DELETE, deviceKey, localNode.getId()).format());
+            }
+            return null;
+        });
+        log.debug("删除会话: deviceKeys={}, refreshed={}", removed, refreshed.size());
+        return removed.size();
+    }
+
+    /**
+     * 以本节点身份写入会话
+     *
+     * @param session 设备会话
+     * @return 写入前的会话归属，之前没有会话时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private SessionOwner writeSession(DeviceSession session) {
+        LocalDateTime now = LocalDateTime.now();
+        session.setStatus(STATUS_ONLINE);
+        session.setNodeId(localNode.getId());
+        session.setConnectTime(now);
+        session.setLastOnlineTime(now);
+        session.setHeartbeatTime(now);
+        session.setTimeout(sessionTimeout);
+
+        Map<String, String> hash = DeviceSessionCodec.encode(session);
+        Object[] args = new Object[1 + hash.size() * 2];
+        args[0] = String.valueOf(sessionTimeout);
+        int i = 1;
+        for (Map.Entry<String, String> entry : hash.entrySet()) {
+            args[i++] = entry.getKey();
+            args[i++] = entry.getValue();
+        }
+        String deviceKey = session.getDeviceKey();
+        String clientId = session.getClientId();
+        List<String> previous = stringRedisTemplate.execute(ONLINE_SCRIPT, List.of(getSessionKey(deviceKey)), args);
+        String previousClientId = previous != null && !previous.isEmpty() ? previous.get(1) : null;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection redis = (StringRedisConnection) connection;
+            if (previousClientId != null && !previousClientId.equals(clientId)) {
+                // 设备换了客户端ID：原映射仍指向本设备时删除
+                redis.eval(RELEASE_CLIENT_ID_SCRIPT, ReturnType.INTEGER, 1, getClientIdKey(previousClientId), deviceKey);
             }
+            redis.setEx(getClientIdKey(clientId), sessionTimeout, deviceKey);
+            redis.sAdd(SESSION_SET_KEY, deviceKey);
+            redis.zAdd(HeartbeatAggregator.HEARTBEAT_KEY, System.currentTimeMillis() / 1000, deviceKey);
+            redis.publish(SessionCache.EVENT_CHANNEL,
+                    new SessionEvent(SessionEvent.ONLINE, deviceKey, localNode.getId()).format());
+            return null;
+        });
+        sessionCache.putOwned(session);
+        if (previous == null || previous.isEmpty()) {
+            return null;
         }
+        return new SessionOwner(previous.get(0), previous.get(1), String.valueOf(STATUS_ONLINE).equals(previous.get(2)));
     }
-}
\ No newline at end of file
+}
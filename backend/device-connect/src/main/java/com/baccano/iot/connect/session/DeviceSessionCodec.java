@@ -0,0 +1,243 @@
+package com.baccano.iot.connect.session;
+
+import com.baccano.iot.connect.entity.DeviceSession;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 设备会话的Redis哈希编码
+ * <p>
+ * 会话以哈希存储，每个字段单独可写（心跳只需HSET一个字段）。为减小每个会话的内存占用：
+ * 字段名使用短名称并按固定顺序写入，时间存为epoch毫秒，状态和协议存为小整数，
+ * 较长的属性JSON压缩后以Base64存储。空字段不写入。
+ * <p>
+ * 哈希使用独立的Key前缀 {@value #KEY_PREFIX}：原先整对象存为字符串的会话在 {@code device:session:{设备Key}} 下，
+ * 滚动升级期间旧节点仍会写入，同名Key上的哈希命令会因类型不符（WRONGTYPE）失败。旧Key不再读取，随过期时间清除。
+ *
+ * @author baccano-iot
+ */
+public final class DeviceSessionCodec {
+    /**
+     * 会话哈希的Key前缀，后接设备Key
+     */
+    public static final String KEY_PREFIX = "device:session:h:";
+
+    public static final String DEVICE_ID = "di";
+    public static final String DEVICE_KEY = "dk";
+    public static final String PRODUCT_ID = "pi";
+    public static final String STATUS = "st";
+    public static final String PROTOCOL = "pr";
+    public static final String CLIENT_ID = "ci";
+    public static final String NODE_ID = "nd";
+    public static final String CLEAN_SESSION = "cs";
+    public static final String IP = "ip";
+    public static final String PORT = "pt";
+    public static final String CONNECT_TIME = "ct";
+    public static final String LAST_ONLINE_TIME = "ot";
+    public static final String DISCONNECT_TIME = "dt";
+    public static final String HEARTBEAT_TIME = "hb";
+    public static final String TIMEOUT = "to";
+    public static final String ATTRIBUTES = "at";
+
+    /**
+     * 协议编码，下标+1即为编码值；不在表中的协议按原值存储
+     */
+    private static final String[] PROTOCOLS = {"mqtt", "coap", "http"};
+
+    /**
+     * 属性超过该长度（字节）时压缩
+     */
+    private static final int COMPRESS_THRESHOLD = 256;
+
+    /**
+     * 压缩属性的前缀（后接Base64）。原文以该字符开头时再加一个该字符转义，Base64不含该字符，两种情况不会混淆
+     */
+    private static final char COMPRESSED_MARKER = '~';
+
+    private DeviceSessionCodec() {
+    }
+
+    /**
+     * 会话编码为哈希字段
+     *
+     * @param session 设备会话
+     * @return 字段 -> 值，按固定顺序
+     */
+    public static Map<String, String> encode(DeviceSession session) {
+        Map<String, String> hash = new LinkedHashMap<>(32);
+        put(hash, DEVICE_ID, session.getDeviceId());
+        put(hash, DEVICE_KEY, session.getDeviceKey());
+        put(hash, PRODUCT_ID, session.getProductId());
+        put(hash, STATUS, session.getStatus());
+        put(hash, PROTOCOL, encodeProtocol(session.getProtocol()));
+        put(hash, CLIENT_ID, session.getClientId());
+        put(hash, NODE_ID, session.getNodeId());
+        put(hash, CLEAN_SESSION, encodeFlag(session.getCleanSession()));
+        put(hash, IP, session.getIp());
+        put(hash, PORT, session.getPort());
+        put(hash, CONNECT_TIME, encodeTime(session.getConnectTime()));
+        put(hash, LAST_ONLINE_TIME, encodeTime(session.getLastOnlineTime()));
+        put(hash, DISCONNECT_TIME, encodeTime(session.getDisconnectTime()));
+        put(hash, HEARTBEAT_TIME, encodeTime(session.getHeartbeatTime()));
+        put(hash, TIMEOUT, session.getTimeout());
+        put(hash, ATTRIBUTES, encodeAttributes(session.getAttributes()));
+        return hash;
+    }
+
+    /**
+     * 哈希字段解码为会话
+     *
+     * @param hash 字段 -> 值
+     * @return 设备会话
+     */
+    public static DeviceSession decode(Map<?, ?> hash) {
+        DeviceSession session = new DeviceSession();
+        session.setDeviceId(get(hash, DEVICE_ID));
+        session.setDeviceKey(get(hash, DEVICE_KEY));
+        session.setProductId(get(hash, PRODUCT_ID));
+        session.setStatus(parseInt(get(hash, STATUS)));
+        session.setProtocol(decodeProtocol(get(hash, PROTOCOL)));
+        session.setClientId(get(hash, CLIENT_ID));
+        session.setNodeId(get(hash, NODE_ID));
+        session.setCleanSession(decodeFlag(get(hash, CLEAN_SESSION)));
+        session.setIp(get(hash, IP));
+        session.setPort(parseInt(get(hash, PORT)));
+        session.setConnectTime(decodeTime(get(hash, CONNECT_TIME)));
+        session.setLastOnlineTime(decodeTime(get(hash, LAST_ONLINE_TIME)));
+        session.setDisconnectTime(decodeTime(get(hash, DISCONNECT_TIME)));
+        session.setHeartbeatTime(decodeTime(get(hash, HEARTBEAT_TIME)));
+        session.setTimeout(parseInt(get(hash, TIMEOUT)));
+        session.setAttributes(decodeAttributes(get(hash, ATTRIBUTES)));
+        return session;
+    }
+
+    /**
+     * 时间编码为epoch毫秒
+     *
+     * @param time 本地时间
+     * @return epoch毫秒字符串，时间为空时返回null
+     */
+    public static String encodeTime(LocalDateTime time) {
+        return time != null ? String.valueOf(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()) : null;
+    }
+
+    private static LocalDateTime decodeTime(String value) {
+        return value != null
+                ? LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(value)), ZoneId.systemDefault())
+                : null;
+    }
+
+    private static String encodeFlag(Boolean flag) {
+        return flag != null ? (flag ? "1" : "0") : null;
+    }
+
+    private static Boolean decodeFlag(String value) {
+        return value != null ? "1".equals(value) : null;
+    }
+
+    private static String encodeProtocol(String protocol) {
+        if (protocol == null) {
+            return null;
+        }
+        for (int i = 0; i < PROTOCOLS.length; i++) {
+            if (PROTOCOLS[i].equals(protocol)) {
+                return String.valueOf(i + 1);
+            }
+        }
+        return protocol;
+    }
+
+    private static String decodeProtocol(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.length() == 1 && value.charAt(0) >= '1' && value.charAt(0) < '1' + PROTOCOLS.length) {
+            return PROTOCOLS[value.charAt(0) - '1'];
+        }
+        return value;
+    }
+
+    private static String encodeAttributes(String attributes) {
+        if (attributes == null) {
+            return null;
+        }
+        byte[] bytes = attributes.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= COMPRESS_THRESHOLD) {
+            return escapeAttributes(attributes);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            String compressed = COMPRESSED_MARKER + Base64.getEncoder().encodeToString(out.toByteArray());
+            // 压缩后反而更长（已压缩或随机内容）时保留原文
+            return compressed.length() < attributes.length() ? compressed : escapeAttributes(attributes);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String escapeAttributes(String attributes) {
+        return !attributes.isEmpty() && attributes.charAt(0) == COMPRESSED_MARKER
+                ? COMPRESSED_MARKER + attributes
+                : attributes;
+    }
+
+    private static String decodeAttributes(String value) {
+        if (value == null || value.isEmpty() || value.charAt(0) != COMPRESSED_MARKER) {
+            return value;
+        }
+        if (value.length() > 1 && value.charAt(1) == COMPRESSED_MARKER) {
+            return value.substring(1);
+        }
+        byte[] compressed = Base64.getDecoder().decode(value.substring(1));
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("会话属性解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void put(Map<String, String> hash, String field, Object value) {
+        if (value != null) {
+            hash.put(field, value.toString());
+        }
+    }
+
+    private static String get(Map<?, ?> hash, String field) {
+        Object value = hash.get(field);
+        return value != null ? value.toString() : null;
+    }
+
+    private static Integer parseInt(String value) {
+        return value != null ? Integer.valueOf(value) : null;
+    }
+}
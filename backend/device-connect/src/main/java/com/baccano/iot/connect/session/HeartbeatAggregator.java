@@ -0,0 +1,216 @@
+package com.baccano.iot.connect.session;
+
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳聚合器
+ * <p>
+ * 心跳只写入连接上的最后心跳epoch秒（{@link ClientConnection} 的基本类型字段，同一秒内只写一次，不分配对象），
+ * 刷新任务每个周期扫描本节点的连接，把上次刷新后有新心跳的设备批量写入Redis（同一设备在一个刷新周期内的多次心跳合并为一次）：
+ * 每个会话哈希由单Key脚本写入心跳时间和最后在线时间并续期（只处理仍在线的会话），
+ * 有序集合 {@value #HEARTBEAT_KEY}（成员为设备Key，分值为最后心跳的epoch秒）以 {@code ZADD XX} 更新，
+ * 成员由上线加入、下线和删除时移除，已下线或已删除的会话不会被心跳重新写回。
+ * 一批设备的写入在一次管道中完成，每条命令只访问一个Key，兼容Redis Cluster和代理。
+ * Redis中的心跳时间最多落后一个刷新周期。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class HeartbeatAggregator {
+    /**
+     * 心跳索引有序集合
+     */
+    public static final String HEARTBEAT_KEY = "device:heartbeat";
+
+    private static final int STATUS_ONLINE = 1;
+
+    /**
+     * 写入单个会话的心跳：仍在线时续期并写入心跳时间和最后在线时间（epoch毫秒）。在管道中以EVAL执行，脚本很短，不依赖脚本缓存
+     */
+    private static final String TOUCH_SCRIPT =
+            "if redis.call('HGET', KEYS[1], '" + DeviceSessionCodec.STATUS + "') == ARGV[1] then "
+                    + "  redis.call('EXPIRE', KEYS[1], ARGV[2]) "
+                    + "  redis.call('HSET', KEYS[1], '" + DeviceSessionCodec.HEARTBEAT_TIME + "', ARGV[3], '"
+                    + DeviceSessionCodec.LAST_ONLINE_TIME + "', ARGV[3]) "
+                    + "  return 1 "
+                    + "end "
+                    + "return 0";
+
+    /**
+     * 认领过期成员：取出分值不大于截止时间的一页成员并在同一脚本中删除，
+     * 多个节点并发清理时每个成员只会被一个节点认领
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> CLAIM_EXPIRED_SCRIPT = new DefaultRedisScript<>(
+            "local members = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) "
+                    + "if #members > 0 then redis.call('ZREM', KEYS[1], unpack(members)) end "
+                    + "return members",
+            List.class);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    /**
+     * 会话超时时间，单位：秒
+     */
+    @Value("${device.session.timeout}")
+    private Integer sessionTimeout;
+
+    /**
+     * 刷新周期（允许的最大陈旧时间），单位：秒
+     */
+    @Value("${device.session.heartbeat.flushInterval}")
+    private Integer flushInterval;
+
+    /**
+     * 单次批量写入的最大设备数
+     */
+    @Value("${device.session.heartbeat.batchSize}")
+    private Integer batchSize;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("heartbeat-flush", true));
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录一次心跳，必须在Channel所属EventLoop中调用
+     *
+     * @param connection 设备连接
+     */
+    public void record(ClientConnection connection) {
+        long nowSecond = System.currentTimeMillis() / 1000;
+        if (connection.getLastHeartbeatSecond() != nowSecond) {
+            connection.setLastHeartbeatSecond(nowSecond);
+        }
+    }
+
+    /**
+     * 记录本节点连接的设备的一次心跳，设备不在本节点时忽略
+     *
+     * @param deviceKey 设备Key
+     */
+    public void record(String deviceKey) {
+        ClientConnection connection = clientRegistry.get(deviceKey);
+        if (connection != null) {
+            record(connection);
+        }
+    }
+
+    /**
+     * 获取设备最后心跳时间，优先使用本地尚未刷新的值
+     *
+     * @param deviceKey 设备Key
+     * @return 最后心跳epoch秒，不存在时返回null
+     */
+    public Long lastSeen(String deviceKey) {
+        ClientConnection connection = clientRegistry.get(deviceKey);
+        if (connection != null && connection.getLastHeartbeatSecond() > connection.getFlushedHeartbeatSecond()) {
+            return connection.getLastHeartbeatSecond();
+        }
+        Double score = stringRedisTemplate.opsForZSet().score(HEARTBEAT_KEY, deviceKey);
+        return score != null ? score.longValue() : null;
+    }
+
+    /**
+     * 认领一页已超时的设备，认领后这些设备从心跳索引中移除
+     *
+     * @param cutoff 截止时间（epoch秒），最后心跳不晚于该时间的设备视为超时
+     * @param limit  本页最大数量
+     * @return 被本节点认领的设备Key
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> claimExpired(long cutoff, int limit) {
+        List<String> members = stringRedisTemplate.execute(CLAIM_EXPIRED_SCRIPT,
+                Collections.singletonList(HEARTBEAT_KEY), String.valueOf(cutoff), String.valueOf(limit));
+        return members != null ? members : Collections.emptyList();
+    }
+
+    /**
+     * 将本节点连接上次刷新后的心跳批量写入Redis，刷新任务与超时清理都会调用，同一时间只有一个线程在刷新
+     */
+    public synchronized void flush() {
+        List<ClientConnection> batch = new ArrayList<>(batchSize);
+        long[] seconds = new long[batchSize];
+        for (ClientConnection connection : clientRegistry.connections()) {
+            long second = connection.getLastHeartbeatSecond();
+            if (second <= connection.getFlushedHeartbeatSecond()) {
+                continue;
+            }
+            seconds[batch.size()] = second;
+            batch.add(connection);
+            if (batch.size() >= batchSize) {
+                writeBatch(batch, seconds);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch, seconds);
+        }
+    }
+
+    private void writeBatch(List<ClientConnection> batch, long[] seconds) {
+        String online = String.valueOf(STATUS_ONLINE);
+        String timeout = String.valueOf(sessionTimeout);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection redis = (StringRedisConnection) connection;
+            for (int i = 0; i < batch.size(); i++) {
+                String deviceKey = batch.get(i).getDeviceKey();
+                redis.eval(TOUCH_SCRIPT, ReturnType.INTEGER, 1, DeviceSessionCodec.KEY_PREFIX + deviceKey,
+                        online, timeout, seconds[i] + "000");
+                // 只更新已在索引中的成员（在线会话），不会把已下线或已删除的设备加回索引
+                redis.zAdd(HEARTBEAT_KEY, seconds[i], deviceKey, RedisZSetCommands.ZAddArgs.empty().ifExists());
+            }
+            return null;
+        });
+        // 只标记已写入的值，刷新期间到达的新心跳留到下个周期
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setFlushedHeartbeatSecond(seconds[i]);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("心跳刷新失败: connections={}, error={}", clientRegistry.size(), e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        flushQuietly();
+    }
+}
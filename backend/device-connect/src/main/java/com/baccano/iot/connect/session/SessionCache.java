@@ -0,0 +1,365 @@
+package com.baccano.iot.connect.session;
+
+import com.baccano.iot.connect.cluster.LocalNode;
+import com.baccano.iot.connect.entity.DeviceSession;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.SubscriptionListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 设备会话近端缓存
+ * <p>
+ * 两级缓存：
+ * <ul>
+ *     <li>本地会话：连接在本节点的设备，会话由本节点写入，以本地副本为准，不设上限，
+ *     随设备上线/下线/删除维护</li>
+ *     <li>远端会话：连接在其他节点的设备，按条数限制并带过期时间，超出上限时淘汰任意一条</li>
+ * </ul>
+ * 会话服务在归属变更（上线、下线、删除）时向 {@value #EVENT_CHANNEL} 发布 {@link SessionEvent}，
+ * 其他节点收到后丢弃两级缓存中该设备的条目。Redis发布订阅最多投递一次，错过的通知这样兜底：
+ * <ul>
+ *     <li>远端条目按过期时间失效</li>
+ *     <li>本地条目定时与Redis核对归属（节点ID和客户端ID），已被其他节点接管或已删除的条目丢弃</li>
+ *     <li>订阅断开重连后（期间的通知全部丢失）立即清空远端条目并核对一次本地条目</li>
+ * </ul>
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class SessionCache implements MessageListener, SubscriptionListener {
+    /**
+     * 会话变更通知频道
+     */
+    public static final String EVENT_CHANNEL = "device:session:events";
+
+    /**
+     * 淘汰时最多检查的条目数
+     */
+    private static final int EVICTION_SCAN = 16;
+
+    /**
+     * 核对本地条目时每次管道查询的条数
+     */
+    private static final int REVALIDATE_BATCH = 500;
+
+    @Autowired
+    private LocalNode localNode;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 远端会话缓存上限
+     */
+    @Value("${device.session.cache.remoteMaxSize}")
+    private Integer remoteMaxSize;
+
+    /**
+     * 远端会话缓存过期时间，单位：秒
+     */
+    @Value("${device.session.cache.remoteTtl}")
+    private Integer remoteTtl;
+
+    /**
+     * 本地会话与Redis核对归属的周期，单位：秒
+     */
+    @Value("${device.session.cache.ownedRevalidateInterval}")
+    private Integer ownedRevalidateInterval;
+
+    /**
+     * 本地会话：设备Key -> 会话
+     */
+    private final ConcurrentHashMap<String, DeviceSession> owned = new ConcurrentHashMap<>(1 << 16);
+
+    /**
+     * 本地会话的客户端ID索引：客户端ID -> 设备Key
+     */
+    private final ConcurrentHashMap<String, String> ownedClientIds = new ConcurrentHashMap<>(1 << 16);
+
+    /**
+     * 远端会话：设备Key -> 缓存条目
+     */
+    private final ConcurrentHashMap<String, RemoteEntry> remote = new ConcurrentHashMap<>();
+
+    /**
+     * 远端客户端ID索引：客户端ID -> 设备Key，命中后需校验会话的客户端ID
+     */
+    private final ConcurrentHashMap<String, String> remoteClientIds = new ConcurrentHashMap<>();
+
+    /**
+     * 是否已完成首次订阅，之后的订阅回调都是断线重连
+     */
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("session-cache", true));
+        scheduler.scheduleWithFixedDelay(this::revalidateQuietly,
+                ownedRevalidateInterval, ownedRevalidateInterval, TimeUnit.SECONDS);
+        listenerContainer.addMessageListener(this, new ChannelTopic(EVENT_CHANNEL));
+    }
+
+    /**
+     * 获取缓存的会话
+     *
+     * @param deviceKey 设备Key
+     * @return 会话，未缓存时返回null
+     */
+    public DeviceSession get(String deviceKey) {
+        DeviceSession session = owned.get(deviceKey);
+        if (session != null) {
+            return session;
+        }
+        RemoteEntry entry = remote.get(deviceKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAtNanos - System.nanoTime() < 0) {
+            remote.remove(deviceKey, entry);
+            return null;
+        }
+        return entry.session;
+    }
+
+    /**
+     * 根据客户端ID获取缓存的会话
+     *
+     * @param clientId 客户端ID
+     * @return 会话，未缓存时返回null
+     */
+    public DeviceSession getByClientId(String clientId) {
+        String deviceKey = ownedClientIds.get(clientId);
+        if (deviceKey == null) {
+            deviceKey = remoteClientIds.get(clientId);
+        }
+        if (deviceKey == null) {
+            return null;
+        }
+        DeviceSession session = get(deviceKey);
+        return session != null && clientId.equals(session.getClientId()) ? session : null;
+    }
+
+    /**
+     * 缓存本节点写入的会话
+     *
+     * @param session 会话
+     */
+    public void putOwned(DeviceSession session) {
+        String deviceKey = session.getDeviceKey();
+        remote.remove(deviceKey);
+        DeviceSession previous = owned.put(deviceKey, session);
+        if (previous != null && previous.getClientId() != null) {
+            ownedClientIds.remove(previous.getClientId(), deviceKey);
+        }
+        if (session.getClientId() != null) {
+            ownedClientIds.put(session.getClientId(), deviceKey);
+        }
+    }
+
+    /**
+     * 缓存从Redis读取的会话：属于本节点的会话只有经本节点写入后才缓存，这里只缓存其他节点的会话
+     *
+     * @param session 会话
+     */
+    public void putRemote(DeviceSession session) {
+        if (localNode.getId().equals(session.getNodeId())) {
+            return;
+        }
+        String deviceKey = session.getDeviceKey();
+        if (remote.size() >= remoteMaxSize && !remote.containsKey(deviceKey)) {
+            evictRemote();
+        }
+        remote.put(deviceKey, new RemoteEntry(session, System.nanoTime() + TimeUnit.SECONDS.toNanos(remoteTtl)));
+        if (session.getClientId() != null && remoteClientIds.size() < remoteMaxSize) {
+            remoteClientIds.put(session.getClientId(), deviceKey);
+        }
+    }
+
+    /**
+     * 丢弃设备的缓存条目
+     *
+     * @param deviceKey 设备Key
+     */
+    public void invalidate(String deviceKey) {
+        DeviceSession session = owned.remove(deviceKey);
+        if (session != null && session.getClientId() != null) {
+            ownedClientIds.remove(session.getClientId(), deviceKey);
+        }
+        RemoteEntry entry = remote.remove(deviceKey);
+        if (entry != null && entry.session.getClientId() != null) {
+            remoteClientIds.remove(entry.session.getClientId(), deviceKey);
+        }
+    }
+
+    /**
+     * 本地会话数
+     *
+     * @return 会话数
+     */
+    public int ownedSize() {
+        return owned.size();
+    }
+
+    /**
+     * 远端会话缓存条数
+     *
+     * @return 条数
+     */
+    public int remoteSize() {
+        return remote.size();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        SessionEvent event = SessionEvent.parse(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (event != null && !localNode.getId().equals(event.originNode())) {
+            invalidate(event.deviceKey());
+            log.debug("会话缓存失效: type={}, deviceKey={}, originNode={}",
+                    event.type(), event.deviceKey(), event.originNode());
+        }
+    }
+
+    /**
+     * 重新订阅时（Redis连接断开后恢复）期间的通知已丢失：清空远端条目，并立即核对本地条目
+     */
+    @Override
+    public void onChannelSubscribed(byte[] channel, long count) {
+        if (subscribed.compareAndSet(false, true)) {
+            return;
+        }
+        remote.clear();
+        remoteClientIds.clear();
+        log.warn("会话变更通知重新订阅，清空远端会话缓存并核对本地会话");
+        scheduler.execute(this::revalidateQuietly);
+    }
+
+    private void revalidateQuietly() {
+        try {
+            revalidateOwned();
+        } catch (Exception e) {
+            log.error("核对本地会话缓存失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 分批读取本地条目在Redis中的归属，已不属于本节点该客户端的条目丢弃。
+     * 只在条目未被替换时丢弃，核对期间重新写入的会话不受影响
+     */
+    private void revalidateOwned() {
+        List<Map.Entry<String, DeviceSession>> batch = new ArrayList<>(REVALIDATE_BATCH);
+        int dropped = 0;
+        for (Map.Entry<String, DeviceSession> entry : owned.entrySet()) {
+            batch.add(Map.entry(entry.getKey(), entry.getValue()));
+            if (batch.size() >= REVALIDATE_BATCH) {
+                dropped += revalidateBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            dropped += revalidateBatch(batch);
+        }
+        if (dropped > 0) {
+            log.info("丢弃失效的本地会话缓存: count={}", dropped);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int revalidateBatch(List<Map.Entry<String, DeviceSession>> batch) {
+        List<Object> owners = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection redis = (StringRedisConnection) connection;
+            for (Map.Entry<String, DeviceSession> entry : batch) {
+                redis.hMGet(DeviceSessionCodec.KEY_PREFIX + entry.getKey(), DeviceSessionCodec.NODE_ID, DeviceSessionCodec.CLIENT_ID);
+            }
+            return null;
+        });
+        int dropped = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            List<String> owner = (List<String>) owners.get(i);
+            DeviceSession session = batch.get(i).getValue();
+            if (owner != null && localNode.getId().equals(owner.get(0))
+                    && Objects.equals(session.getClientId(), owner.get(1))) {
+                continue;
+            }
+            String deviceKey = batch.get(i).getKey();
+            if (owned.remove(deviceKey, session)) {
+                if (session.getClientId() != null) {
+                    ownedClientIds.remove(session.getClientId(), deviceKey);
+                }
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 优先淘汰已过期的条目，没有则淘汰遍历到的第一条
+     */
+    private void evictRemote() {
+        long now = System.nanoTime();
+        Iterator<RemoteEntry> iterator = remote.values().iterator();
+        RemoteEntry victim = null;
+        for (int scanned = 0; iterator.hasNext() && scanned < EVICTION_SCAN; scanned++) {
+            RemoteEntry entry = iterator.next();
+            if (entry.expireAtNanos - now < 0) {
+                victim = entry;
+                break;
+            }
+            if (victim == null) {
+                victim = entry;
+            }
+        }
+        if (victim != null) {
+            invalidateRemote(victim);
+        }
+        if (remoteClientIds.size() >= remoteMaxSize) {
+            remoteClientIds.clear();
+        }
+    }
+
+    private void invalidateRemote(RemoteEntry entry) {
+        String deviceKey = entry.session.getDeviceKey();
+        if (remote.remove(deviceKey, entry) && entry.session.getClientId() != null) {
+            remoteClientIds.remove(entry.session.getClientId(), deviceKey);
+        }
+    }
+
+    private record RemoteEntry(DeviceSession session, long expireAtNanos) {
+    }
+}
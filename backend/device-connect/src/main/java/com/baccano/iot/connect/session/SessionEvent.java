@@ -0,0 +1,52 @@
+package com.baccano.iot.connect.session;
+
+/**
+ * 会话变更通知，由会话服务发布到 {@link SessionCache#EVENT_CHANNEL}，格式为 "类型 设备Key 来源节点"
+ *
+ * @param type       变更类型
+ * @param deviceKey  设备Key
+ * @param originNode 发起变更的节点ID
+ * @author baccano-iot
+ */
+public record SessionEvent(String type, String deviceKey, String originNode) {
+    /**
+     * 上线或接管
+     */
+    public static final String ONLINE = "online";
+    /**
+     * 下线
+     */
+    public static final String OFFLINE = "offline";
+    /**
+     * 删除（含超时清理）
+     */
+    public static final String DELETE = "delete";
+    /**
+     * 会话内容更新
+     */
+    public static final String UPDATE = "update";
+
+    /**
+     * 解析通知内容
+     *
+     * @param body 通知内容
+     * @return 会话变更通知，格式不正确时返回null
+     */
+    public static SessionEvent parse(String body) {
+        int first = body.indexOf(' ');
+        int last = body.lastIndexOf(' ');
+        if (first <= 0 || last <= first + 1) {
+            return null;
+        }
+        return new SessionEvent(body.substring(0, first), body.substring(first + 1, last), body.substring(last + 1));
+    }
+
+    /**
+     * 格式化为通知内容
+     *
+     * @return 通知内容
+     */
+    public String format() {
+        return type + " " + deviceKey + " " + originNode;
+    }
+}
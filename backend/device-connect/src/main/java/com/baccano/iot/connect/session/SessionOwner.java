@@ -0,0 +1,12 @@
+package com.baccano.iot.connect.session;
+
+/**
+ * 会话归属：会话所在节点及对应的客户端
+ *
+ * @param nodeId   节点ID
+ * @param clientId 客户端ID
+ * @param online   会话是否处于在线状态
+ * @author baccano-iot
+ */
+public record SessionOwner(String nodeId, String clientId, boolean online) {
+}
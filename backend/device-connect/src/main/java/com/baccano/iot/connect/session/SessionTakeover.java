@@ -0,0 +1,174 @@
+package com.baccano.iot.connect.session;
+
+import com.baccano.iot.connect.cluster.DownlinkRouter;
+import com.baccano.iot.connect.cluster.LocalNode;
+import com.baccano.iot.connect.cluster.NodeForwarder;
+import com.baccano.iot.connect.cluster.NodeMessage;
+import com.baccano.iot.connect.executor.SessionExecutor;
+import com.baccano.iot.connect.mqtt.qos.InflightMessage;
+import com.baccano.iot.connect.mqtt.qos.QosDeliveryManager;
+import com.baccano.iot.connect.mqtt.topic.SubscriptionRouter;
+import com.baccano.iot.connect.registry.ClientConnection;
+import com.baccano.iot.connect.registry.ClientRegistry;
+import com.baccano.iot.connect.service.DeviceSessionService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话接管
+ * <p>
+ * 同一设备重复连接时由新连接接管会话，旧连接必须关闭，其QoS 1/2在途状态迁移到新连接：
+ * <ul>
+ *     <li>旧连接在本节点：注册新连接时从注册表得到旧连接，在旧连接的EventLoop中取出在途消息和
+ *     等待PUBREL的报文标识符后关闭旧连接，再在新连接的EventLoop中恢复（新连接回复CONNACK之后才重发）</li>
+ *     <li>旧连接在其他节点：新节点写入会话后发布 {@link SessionEvent#ONLINE} 通知，旧节点收到后注销并关闭旧连接，
+ *     在途消息连同原报文标识符和状态通过节点间转发交给新节点，由新节点按本节点内接管的方式恢复</li>
+ * </ul>
+ * 接管耗时记录在 {@code mqtt.session.takeover}（scope=local/remote），从发现旧连接到旧连接关闭完成。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class SessionTakeover implements MessageListener {
+    @Autowired
+    private ClientRegistry clientRegistry;
+
+    @Autowired
+    private QosDeliveryManager qosDeliveryManager;
+
+    @Autowired
+    private SubscriptionRouter subscriptionRouter;
+
+    @Autowired
+    private NodeForwarder nodeForwarder;
+
+    @Autowired
+    private DownlinkRouter downlinkRouter;
+
+    @Autowired
+    private DeviceSessionService deviceSessionService;
+
+    @Autowired
+    private LocalNode localNode;
+
+    @Autowired
+    private SessionExecutor sessionExecutor;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Timer localTimer;
+    private Timer remoteTimer;
+
+    @PostConstruct
+    public void init() {
+        localTimer = Timer.builder("mqtt.session.takeover").tag("scope", "local").register(meterRegistry);
+        remoteTimer = Timer.builder("mqtt.session.takeover").tag("scope", "remote").register(meterRegistry);
+        listenerContainer.addMessageListener(this, new ChannelTopic(SessionCache.EVENT_CHANNEL));
+    }
+
+    /**
+     * 本节点内接管：关闭旧连接并把在途状态迁移到新连接，可在任意线程调用
+     *
+     * @param previous   被替换的旧连接
+     * @param connection 新连接
+     */
+    public void takeoverLocal(ClientConnection previous, ClientConnection connection) {
+        long start = System.nanoTime();
+        Channel oldChannel = previous.getChannel();
+        oldChannel.eventLoop().execute(() -> {
+            List<InflightMessage> inflight = previous.getInflightWindow().drain();
+            int[] awaitingRelease = previous.getInflightWindow().drainAwaitingRelease();
+            oldChannel.close().addListener(f -> localTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+            connection.getChannel().eventLoop().execute(() -> {
+                for (int packetId : awaitingRelease) {
+                    connection.getInflightWindow().awaitRelease(packetId);
+                }
+                for (InflightMessage message : inflight) {
+                    qosDeliveryManager.resume(connection, message);
+                }
+            });
+            log.info("设备会话被本节点新连接接管: deviceKey={}, oldChannel={}, newChannel={}, inflight={}",
+                    previous.getDeviceKey(), oldChannel.id().asShortText(),
+                    connection.getChannel().id().asShortText(), inflight.size());
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        SessionEvent event = SessionEvent.parse(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (event == null || !SessionEvent.ONLINE.equals(event.type()) || localNode.getId().equals(event.originNode())) {
+            return;
+        }
+        ClientConnection connection = clientRegistry.get(event.deviceKey());
+        if (connection == null) {
+            return;
+        }
+        // 监听线程不能阻塞，读取归属在会话执行器上完成，与该设备的上线、下线按序执行
+        if (!sessionExecutor.execute(event.deviceKey(), () -> {
+            // 通知可能晚于设备再次连回本节点，以Redis中的当前归属为准
+            if (!localNode.getId().equals(deviceSessionService.getOwnerNode(event.deviceKey()))) {
+                takeoverRemote(connection, event.originNode());
+            }
+        })) {
+            log.warn("会话IO队列已满，未能处理会话接管通知: deviceKey={}, newNode={}",
+                    event.deviceKey(), event.originNode());
+        }
+    }
+
+    /**
+     * 被其他节点接管：注销并关闭本节点的旧连接，在途消息转发到新节点
+     */
+    private void takeoverRemote(ClientConnection connection, String newNode) {
+        long start = System.nanoTime();
+        Channel channel = connection.getChannel();
+        channel.eventLoop().execute(() -> {
+            // 先注销，连接关闭时不再把已被接管的会话置为离线
+            if (clientRegistry.unregister(channel) == null) {
+                return;
+            }
+            subscriptionRouter.unsubscribeAll(connection.getDeviceKey());
+            List<InflightMessage> inflight = connection.getInflightWindow().drain();
+            int forwarded = 0;
+            for (InflightMessage message : inflight) {
+                try {
+                    // 保留原报文标识符和状态：已发送PUBLISH的由新节点DUP置位重发，已发送PUBREL的只补发PUBREL，
+                    // 设备已收到的QoS 2消息不会以新的报文标识符再收到一次
+                    NodeMessage nodeMessage = NodeMessage.resume(connection.getDeviceKey(), message.getTopic(),
+                            message.getQos().value(), message.getPacketId(), message.getState().ordinal(),
+                            message.getState() == InflightMessage.State.PUBREL_SENT
+                                    ? new byte[0] : ByteBufUtil.getBytes(message.getPayload()));
+                    if (nodeForwarder.forward(newNode, nodeMessage)) {
+                        // 已交给新节点，本节点离线日志中的记录不再需要
+                        downlinkRouter.ackOffline(connection.getDeviceKey(), message.getOfflineId());
+                        forwarded++;
+                    }
+                } finally {
+                    message.release();
+                }
+            }
+            connection.getInflightWindow().clear();
+            channel.close().addListener(f -> remoteTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+            log.info("设备会话被其他节点接管: deviceKey={}, newNode={}, inflight={}, forwarded={}",
+                    connection.getDeviceKey(), newNode, inflight.size(), forwarded);
+        });
+    }
+}
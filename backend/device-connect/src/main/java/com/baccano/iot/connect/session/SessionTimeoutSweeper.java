@@ -0,0 +1,60 @@
+package com.baccano.iot.connect.session;
+
+import com.baccano.iot.connect.service.DeviceSessionService;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 超时会话清理任务
+ * <p>
+ * 每个节点都定时运行，超时设备由心跳索引按分页原子认领（见 {@link HeartbeatAggregator#claimExpired}），
+ * 多节点同时运行时不会重复处理同一设备。首次执行加入随机延迟，错开各节点的清理时间。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Component
+public class SessionTimeoutSweeper {
+    @Autowired
+    private DeviceSessionService deviceSessionService;
+
+    /**
+     * 清理周期，单位：秒
+     */
+    @Value("${device.session.sweep.interval}")
+    private Integer sweepInterval;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("session-sweeper", true));
+        long initialDelay = sweepInterval + ThreadLocalRandom.current().nextLong(sweepInterval + 1L);
+        scheduler.scheduleWithFixedDelay(this::sweep, initialDelay, sweepInterval, TimeUnit.SECONDS);
+    }
+
+    private void sweep() {
+        try {
+            deviceSessionService.cleanTimeoutSessions();
+        } catch (Exception e) {
+            log.error("清理超时会话失败: error={}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
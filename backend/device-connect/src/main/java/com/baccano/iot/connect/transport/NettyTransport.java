@@ -0,0 +1,116 @@
+package com.baccano.iot.connect.transport;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringChannelOption;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 选定的Netty传输实现
+ * <p>
+ * 原生传输（io_uring/epoll）不可用时自动降级，降级原因记录在日志中；
+ * 只有原生传输支持SO_REUSEPORT，可以让多个acceptor绑定同一端口、由内核分摊新连接。
+ *
+ * @author baccano-iot
+ */
+@Slf4j
+@Getter
+public final class NettyTransport {
+    /**
+     * 实际使用的传输类型
+     */
+    private final TransportType type;
+
+    /**
+     * EventLoop的IO处理器工厂
+     */
+    private final IoHandlerFactory ioHandlerFactory;
+
+    /**
+     * 服务端Channel类型
+     */
+    private final Class<? extends ServerChannel> serverChannelClass;
+
+    /**
+     * 是否支持SO_REUSEPORT
+     */
+    private final boolean reusePortSupported;
+
+    private NettyTransport(TransportType type, IoHandlerFactory ioHandlerFactory,
+                           Class<? extends ServerChannel> serverChannelClass, boolean reusePortSupported) {
+        this.type = type;
+        this.ioHandlerFactory = ioHandlerFactory;
+        this.serverChannelClass = serverChannelClass;
+        this.reusePortSupported = reusePortSupported;
+    }
+
+    /**
+     * 按偏好选择传输实现，不可用时依次降级到 epoll、nio
+     *
+     * @param preferred 偏好的传输类型
+     * @return 传输实现
+     */
+    public static NettyTransport select(TransportType preferred) {
+        if (preferred == TransportType.AUTO || preferred == TransportType.IO_URING) {
+            if (IoUring.isAvailable()) {
+                return new NettyTransport(TransportType.IO_URING, IoUringIoHandler.newFactory(),
+                        IoUringServerSocketChannel.class, true);
+            }
+            logUnavailable(preferred, TransportType.IO_URING, IoUring.unavailabilityCause());
+        }
+        if (preferred != TransportType.NIO) {
+            if (Epoll.isAvailable()) {
+                return new NettyTransport(TransportType.EPOLL, EpollIoHandler.newFactory(),
+                        EpollServerSocketChannel.class, true);
+            }
+            logUnavailable(preferred, TransportType.EPOLL, Epoll.unavailabilityCause());
+        }
+        return new NettyTransport(TransportType.NIO, NioIoHandler.newFactory(), NioServerSocketChannel.class, false);
+    }
+
+    /**
+     * 创建EventLoopGroup
+     *
+     * @param threads    线程数，0表示使用Netty默认值（CPU核数 * 2）
+     * @param threadName 线程名前缀
+     * @return EventLoopGroup
+     */
+    public EventLoopGroup newEventLoopGroup(int threads, String threadName) {
+        return new MultiThreadIoEventLoopGroup(threads, new DefaultThreadFactory(threadName), ioHandlerFactory);
+    }
+
+    /**
+     * 开启SO_REUSEPORT，允许同一端口被多次绑定
+     *
+     * @param bootstrap 服务端引导
+     */
+    public void enableReusePort(ServerBootstrap bootstrap) {
+        if (type == TransportType.IO_URING) {
+            bootstrap.option(IoUringChannelOption.SO_REUSEPORT, true);
+        } else if (type == TransportType.EPOLL) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+    }
+
+    private static void logUnavailable(TransportType preferred, TransportType type, Throwable cause) {
+        if (preferred == type) {
+            log.warn("{}传输不可用，自动降级: {}", type, cause != null ? cause.getMessage() : "unknown");
+        } else {
+            log.debug("{}传输不可用: {}", type, cause != null ? cause.getMessage() : "unknown");
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.baccano.iot.connect.transport;
+
+/**
+ * Netty传输实现类型
+ *
+ * @author baccano-iot
+ */
+public enum TransportType {
+    /**
+     * 自动选择：io_uring > epoll > nio
+     */
+    AUTO,
+    /**
+     * Linux io_uring（需要5.9+内核）
+     */
+    IO_URING,
+    /**
+     * Linux epoll
+     */
+    EPOLL,
+    /**
+     * JDK NIO，所有平台可用
+     */
+    NIO
+}